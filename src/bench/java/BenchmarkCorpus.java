@@ -0,0 +1,62 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Picks the fixed set of icons from src/main/resources the benchmarks
+ * run against, so results from different runs and machines compare.</p>
+ */
+public class BenchmarkCorpus {
+
+    /** The icon resources the corpus is taken from. */
+    static final File RESOURCES = new File("src/main/resources");
+
+    private BenchmarkCorpus() {
+    }
+
+    /**
+     * Collects the svg files below a directory.
+     *
+     * @param dir
+     * @param found
+     */
+    static void findIcons(File dir, List<File> found) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                findIcons(child, found);
+            } else if (child.getName().endsWith(".svg")) {
+                found.add(child);
+            }
+        }
+    }
+
+    /**
+     * Picks an evenly spread, repeatable sample of icons.
+     *
+     * @param resources
+     * @param count
+     * @return at most count svg files, in path order
+     */
+    static List<File> sampleIcons(File resources, int count) {
+        List<File> all = new ArrayList<File>();
+        findIcons(resources, all);
+        Collections.sort(all);
+
+        if (all.size() <= count) {
+            return all;
+        }
+
+        List<File> sample = new ArrayList<File>(count);
+        double step = all.size() / (double) count;
+        for (int i = 0; i < count; i++) {
+            sample.add(all.get((int) (i * step)));
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <p>A small benchmark harness modelled on JMH's average time mode: each
+ * benchmark runs warmup iterations, then measured iterations of a fixed
+ * duration, and reports the mean time per operation with a 99.9%
+ * confidence interval.</p>
+ *
+ * <p>Results are written as JSON in the layout JMH uses for
+ * <code>-rf json</code>, so the same CI tooling can track both, and as
+ * CSV.</p>
+ */
+public class BenchmarkRunner {
+
+    /**
+     * The 99.9% two-sided critical values of Student's t distribution, for
+     * the degrees of freedom in T_DEGREES, as JMH uses for its error. Few
+     * iterations are measured, so the normal distribution's 3.29 would
+     * understate the error several times over.
+     */
+    private static final double[] T_VALUES = { 636.62, 31.60, 12.92, 8.61,
+            6.87, 5.96, 5.41, 5.04, 4.78, 4.59, 4.32, 4.07, 3.85, 3.65, 3.46,
+            3.37 };
+
+    private static final int[] T_DEGREES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10,
+            12, 15, 20, 30, 60, 120 };
+
+    /**
+     * <p>One measured stage. An operation processes a single item (an icon,
+     * an image, a traversal) chosen by index so every item in the corpus
+     * gets its turn.</p>
+     */
+    public static abstract class Benchmark {
+
+        /** The name reported for the benchmark. */
+        final String name;
+
+        protected Benchmark(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Prepares the benchmark's inputs, not measured.
+         *
+         * @throws Exception
+         */
+        protected void setup() throws Exception {
+        }
+
+        /**
+         * @return the number of distinct items run() cycles through
+         */
+        protected abstract int items();
+
+        /**
+         * Performs one operation.
+         *
+         * @param index
+         *            the item to process, less than items()
+         * @return a value derived from the work, consumed so the JIT can't
+         *         remove it
+         * @throws Exception
+         */
+        protected abstract Object run(int index) throws Exception;
+    }
+
+    /**
+     * <p>The measurements of one benchmark.</p>
+     */
+    public static class Result {
+
+        /** The benchmark's name. */
+        String name;
+
+        /** The milliseconds per operation of each measured iteration. */
+        double[] iterations;
+
+        /** The mean milliseconds per operation. */
+        double score;
+
+        /** The half width of the 99.9% confidence interval. */
+        double error;
+    }
+
+    /** Consumes benchmark results so their work isn't optimised away. */
+    private volatile int sink;
+
+    /** The number of unmeasured iterations before measuring. */
+    private final int warmupIterations;
+
+    /** The number of measured iterations. */
+    private final int measurementIterations;
+
+    /** How long each iteration runs for. */
+    private final long iterationMillis;
+
+    /**
+     * @param warmupIterations
+     * @param measurementIterations
+     * @param iterationMillis
+     */
+    public BenchmarkRunner(int warmupIterations, int measurementIterations,
+            long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    /**
+     * Sets up and measures a benchmark.
+     *
+     * @param benchmark
+     * @return the measurements
+     * @throws Exception
+     *             if the benchmark fails
+     */
+    public Result run(Benchmark benchmark) throws Exception {
+        benchmark.setup();
+
+        int items = benchmark.items();
+        if (items == 0) {
+            throw new IllegalStateException("No items to benchmark: "
+                    + benchmark.name);
+        }
+
+        int next = 0;
+        for (int i = 0; i < warmupIterations; i++) {
+            next = iteration(benchmark, items, next, null);
+        }
+
+        Result result = new Result();
+        result.name = benchmark.name;
+        result.iterations = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            double[] msPerOp = new double[1];
+            next = iteration(benchmark, items, next, msPerOp);
+            result.iterations[i] = msPerOp[0];
+        }
+
+        double sum = 0;
+        for (double value : result.iterations) {
+            sum += value;
+        }
+        result.score = sum / result.iterations.length;
+
+        if (result.iterations.length > 1) {
+            double variance = 0;
+            for (double value : result.iterations) {
+                variance += (value - result.score) * (value - result.score);
+            }
+            variance /= result.iterations.length - 1;
+            result.error = criticalValue(result.iterations.length - 1)
+                    * Math.sqrt(variance)
+                    / Math.sqrt(result.iterations.length);
+        }
+
+        System.out.println(String.format(Locale.ROOT,
+                "%-40s %10.4f +- %8.4f ms/op", result.name, result.score,
+                result.error));
+
+        return result;
+    }
+
+    /**
+     * @param degrees
+     *            the degrees of freedom, at least 1
+     * @return the 99.9% two-sided critical value of Student's t, for
+     *         degrees between the table's entries that of the next lower
+     *         entry, so the error is never understated
+     */
+    static double criticalValue(int degrees) {
+        for (int i = T_DEGREES.length - 1; i > 0; i--) {
+            if (T_DEGREES[i] <= degrees) {
+                return T_VALUES[i];
+            }
+        }
+        return T_VALUES[0];
+    }
+
+    /**
+     * Runs operations until the iteration time is used up, always finishing
+     * at least one.
+     */
+    private int iteration(Benchmark benchmark, int items, int next,
+            double[] msPerOp) throws Exception {
+        long start = System.nanoTime();
+        long end = start + iterationMillis * 1000000L;
+        long operations = 0;
+        long now;
+
+        do {
+            Object value = benchmark.run(next);
+            sink ^= System.identityHashCode(value);
+            next = (next + 1) % items;
+            operations++;
+            now = System.nanoTime();
+        } while (now < end);
+
+        if (msPerOp != null) {
+            msPerOp[0] = (now - start) / 1e6 / operations;
+        }
+        return next;
+    }
+
+    /**
+     * Writes the results in JMH's JSON result layout.
+     *
+     * @param results
+     * @param file
+     * @throws IOException
+     */
+    public void writeJson(List<Result> results, File file) throws IOException {
+        JsonWriter json = new JsonWriter(new FileWriter(file));
+        try {
+            json.beginArray();
+            for (Result result : results) {
+                json.beginObject();
+                json.name("benchmark").value(result.name);
+                json.name("mode").value("avgt");
+                json.name("threads").value(1);
+                json.name("forks").value(1);
+                json.name("warmupIterations").value(warmupIterations);
+                json.name("warmupTime").value(iterationMillis + " ms");
+                json.name("measurementIterations").value(
+                        measurementIterations);
+                json.name("measurementTime").value(iterationMillis + " ms");
+
+                json.name("primaryMetric").beginObject();
+                json.name("score").value(result.score);
+                json.name("scoreError").value(result.error);
+                json.name("scoreUnit").value("ms/op");
+                json.name("rawData").beginArray().beginArray();
+                for (double value : result.iterations) {
+                    json.value(value);
+                }
+                json.endArray().endArray();
+                json.endObject();
+
+                json.endObject();
+            }
+            json.endArray();
+        } finally {
+            json.close();
+        }
+    }
+
+    /**
+     * Writes one row per benchmark.
+     *
+     * @param results
+     * @param file
+     * @throws IOException
+     */
+    public void writeCsv(List<Result> results, File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println("benchmark,mode,iterations,score,error,unit");
+            for (Result result : results) {
+                writer.println(String.format(Locale.ROOT,
+                        "%s,avgt,%d,%.6f,%.6f,ms/op", result.name,
+                        result.iterations.length, result.score, result.error));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.apache.batik.transcoder.TranscoderInput;
+import org.w3c.dom.svg.SVGDocument;
+
+import com.jhlabs.image.GrayscaleFilter;
+import com.jhlabs.image.HSBAdjustFilter;
+
+/**
+ * <p>Benchmarks each stage of the rasterization pipeline on a fixed corpus
+ * of icons from src/main/resources: svg parsing, Batik transcoding, PNG
+ * encoding (and the ImageIO encoding it replaced), disabled icon generation
+ * (and the two filter pass it replaced), rendering an icon and its @2x
+ * variant separately or supersampled, gallery composition and the icon
+ * gathering traversal.</p>
+ *
+ * <p>Run with <code>ant benchmark</code>, results are written to
+ * target/bench/rasterizer-benchmark.json (JMH result layout) and .csv.
+ * System properties eclipse.svg.bench.icons, .warmup, .iterations and
+ * .time (ms) adjust the corpus size and run length.</p>
+ */
+public class RasterizerBenchmark {
+
+    private static final int ICON_SIZE = 16;
+
+    /** The icons every stage runs over. */
+    private final List<File> corpus;
+
+    /** Where the rendered corpus is written for the gallery stage. */
+    private final File outputDir;
+
+    /**
+     * @param corpus
+     * @param outputDir
+     */
+    public RasterizerBenchmark(List<File> corpus, File outputDir) {
+        this.corpus = corpus;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Parses the corpus once for the stages that start from a document.
+     */
+    private List<SVGDocument> parseCorpus() throws Exception {
+        List<SVGDocument> documents = new ArrayList<SVGDocument>();
+        for (File icon : corpus) {
+            documents.add(RenderContext.get().parse(icon.toURI().toString(),
+                    icon));
+        }
+        return documents;
+    }
+
+    /**
+     * Renders the corpus once for the stages that start from a raster.
+     */
+    private List<BufferedImage> renderCorpus() throws Exception {
+        List<BufferedImage> images = new ArrayList<BufferedImage>();
+        for (SVGDocument document : parseCorpus()) {
+            images.add(RenderContext.get().render(ICON_SIZE, ICON_SIZE,
+                    new TranscoderInput(document)));
+        }
+        return images;
+    }
+
+    /**
+     * @return the stages to measure
+     */
+    List<BenchmarkRunner.Benchmark> createBenchmarks() {
+        List<BenchmarkRunner.Benchmark> benchmarks = new ArrayList<BenchmarkRunner.Benchmark>();
+
+        benchmarks.add(new BenchmarkRunner.Benchmark("svgParse") {
+            protected int items() {
+                return corpus.size();
+            }
+
+            protected Object run(int index) throws Exception {
+                File icon = corpus.get(index);
+                return RenderContext.get().parse(icon.toURI().toString(), icon);
+            }
+        });
+
+        benchmarks.add(new BenchmarkRunner.Benchmark("batikTranscode") {
+            private List<SVGDocument> documents;
+
+            protected void setup() throws Exception {
+                documents = parseCorpus();
+            }
+
+            protected int items() {
+                return documents.size();
+            }
+
+            protected Object run(int index) throws Exception {
+                return RenderContext.get().render(ICON_SIZE, ICON_SIZE,
+                        new TranscoderInput(documents.get(index)));
+            }
+        });
+
+        benchmarks.add(new BenchmarkRunner.Benchmark("sizesSeparately") {
+            private List<SVGDocument> documents;
+
+            protected void setup() throws Exception {
+                documents = parseCorpus();
+            }
+
+            protected int items() {
+                return documents.size();
+            }
+
+            protected Object run(int index) throws Exception {
+                // An icon and its @2x variant, each rendered by Batik
+                TranscoderInput input = new TranscoderInput(
+                        documents.get(index));
+                RenderContext.get().render(ICON_SIZE * 2, ICON_SIZE * 2,
+                        input);
+                return RenderContext.get().render(ICON_SIZE, ICON_SIZE,
+                        input);
+            }
+        });
+
+        for (final int factor : new int[] { 2, 4 }) {
+            benchmarks.add(new BenchmarkRunner.Benchmark("sizesSupersampled"
+                    + factor + "x") {
+                private final IconResampler resampler = new IconResampler(
+                        IconResampler.filter("box"));
+
+                private List<SVGDocument> documents;
+
+                protected void setup() throws Exception {
+                    documents = parseCorpus();
+                }
+
+                protected int items() {
+                    return documents.size();
+                }
+
+                protected Object run(int index) throws Exception {
+                    // One render scaled down to the icon and its @2x variant
+                    int size = ICON_SIZE * 2 * factor;
+                    BufferedImage supersampled = RenderContext.get().render(
+                            size, size,
+                            new TranscoderInput(documents.get(index)));
+                    resampler.resample(supersampled, ICON_SIZE * 2,
+                            ICON_SIZE * 2);
+                    return resampler.resample(supersampled, ICON_SIZE,
+                            ICON_SIZE);
+                }
+            });
+        }
+
+        benchmarks.add(new BenchmarkRunner.Benchmark("pngEncode") {
+            // As the rasterizer encodes icons by default
+            private final PngEncoder encoder = new PngEncoder(9, true, false);
+
+            private List<BufferedImage> images;
+
+            protected void setup() throws Exception {
+                images = renderCorpus();
+            }
+
+            protected int items() {
+                return images.size();
+            }
+
+            protected Object run(int index) throws Exception {
+                return encoder.encode(images.get(index));
+            }
+        });
+
+        benchmarks.add(new BenchmarkRunner.Benchmark("pngEncodeImageIO") {
+            private List<BufferedImage> images;
+
+            protected void setup() throws Exception {
+                images = renderCorpus();
+            }
+
+            protected int items() {
+                return images.size();
+            }
+
+            protected Object run(int index) throws Exception {
+                // How icons were encoded before PngEncoder
+                ByteArrayOutputStream stream = new ByteArrayOutputStream(2048);
+                ImageIO.write(images.get(index), "PNG", stream);
+                return stream.toByteArray();
+            }
+        });
+
+        benchmarks.add(new BenchmarkRunner.Benchmark("disabledFilter") {
+            private final DisabledFilter filter = new DisabledFilter();
+
+            private List<BufferedImage> images;
+
+            protected void setup() throws Exception {
+                images = renderCorpus();
+            }
+
+            protected int items() {
+                return images.size();
+            }
+
+            protected Object run(int index) throws Exception {
+                return filter.filterReused(images.get(index));
+            }
+        });
+
+        benchmarks.add(new BenchmarkRunner.Benchmark("disabledFilterTwoPass") {
+            private List<BufferedImage> images;
+
+            protected void setup() throws Exception {
+                images = renderCorpus();
+            }
+
+            protected int items() {
+                return images.size();
+            }
+
+            protected Object run(int index) throws Exception {
+                // How disabled icons were made before DisabledFilter
+                HSBAdjustFilter desaturator = new HSBAdjustFilter();
+                desaturator.setSFactor(0.0f);
+                return desaturator.filter(
+                        new GrayscaleFilter().filter(images.get(index), null),
+                        null);
+            }
+        });
+
+        benchmarks.add(new BenchmarkRunner.Benchmark("galleryComposition") {
+            private RasterizerUtil rasterizer;
+
+            private List<RasterizerUtil.IconDef> icons;
+
+            protected void setup() throws Exception {
+                // The gallery composes the rendered corpus from disk
+                rasterizer = new RasterizerUtil(1);
+                icons = new ArrayList<RasterizerUtil.IconDef>();
+                File iconDir = new File(outputDir, "icons");
+                for (File icon : corpus) {
+                    RasterizerUtil.IconDef def = rasterizer.createIcon(icon,
+                            iconDir, null, new int[] { ICON_SIZE });
+                    rasterizer.rasterize(def);
+                    icons.add(def);
+                }
+            }
+
+            protected int items() {
+                return 1;
+            }
+
+            protected Object run(int index) throws Exception {
+                rasterizer.renderGallery(outputDir, "benchmark", icons,
+                        ICON_SIZE, 800, 3);
+                return icons;
+            }
+        });
+
+        benchmarks.add(new BenchmarkRunner.Benchmark("gatherIcons") {
+            protected int items() {
+                return 1;
+            }
+
+            protected Object run(int index) throws Exception {
+                RasterizerUtil rasterizer = new RasterizerUtil(1);
+                File resources = BenchmarkCorpus.RESOURCES;
+                for (File bundle : resources.listFiles()) {
+                    rasterizer.gatherIcons(bundle.getName(), bundle, bundle,
+                            new File(outputDir, bundle.getName()));
+                }
+                return rasterizer;
+            }
+        });
+
+        return benchmarks;
+    }
+
+    /**
+     * @param args
+     *            optionally the names of the stages to run, all by default
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int iconCount = Integer.getInteger("eclipse.svg.bench.icons", 100);
+        int warmup = Integer.getInteger("eclipse.svg.bench.warmup", 3);
+        int iterations = Integer.getInteger("eclipse.svg.bench.iterations", 5);
+        int time = Integer.getInteger("eclipse.svg.bench.time", 1000);
+
+        File outputDir = new File("target/bench");
+        outputDir.mkdirs();
+
+        List<File> corpus = BenchmarkCorpus.sampleIcons(
+                BenchmarkCorpus.RESOURCES, iconCount);
+        System.out.println("Benchmarking the rasterizer with " + corpus.size()
+                + " icons.");
+
+        RasterizerBenchmark benchmark = new RasterizerBenchmark(corpus,
+                outputDir);
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, time);
+
+        List<BenchmarkRunner.Result> results = new ArrayList<BenchmarkRunner.Result>();
+        for (BenchmarkRunner.Benchmark stage : benchmark.createBenchmarks()) {
+            if (args.length > 0 && !contains(args, stage.name)) {
+                continue;
+            }
+            results.add(runner.run(stage));
+        }
+
+        runner.writeJson(results, new File(outputDir,
+                "rasterizer-benchmark.json"));
+        runner.writeCsv(results,
+                new File(outputDir, "rasterizer-benchmark.csv"));
+
+        System.exit(0);
+    }
+
+    private static boolean contains(String[] values, String value) {
+        for (String candidate : values) {
+            if (candidate.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
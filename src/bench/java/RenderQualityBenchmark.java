@@ -0,0 +1,189 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.batik.transcoder.TranscoderInput;
+import org.w3c.dom.svg.SVGDocument;
+
+/**
+ * <p>Compares the render quality profiles: how many icons each renders a
+ * second, and how far its pixels are from the release profile's.</p>
+ *
+ * <p>Each pass renders the same fixed sample of icons from
+ * src/main/resources, parsed once up front, at each of the given sizes.
+ * The difference to release is the mean absolute difference of the
+ * premultiplied channels over every pixel, as a percentage of full scale,
+ * along with the share of pixels that differ by more than one level and
+ * the largest difference. Results are printed and written to
+ * target/bench/render-quality.csv.</p>
+ */
+public class RenderQualityBenchmark {
+
+    /**
+     * <p>How a profile's rasters differ from the release rasters.</p>
+     */
+    static class Difference {
+        long pixels, differing;
+        double sum;
+        int max;
+
+        void add(BufferedImage image, BufferedImage reference) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    int a = image.getRGB(x, y);
+                    int b = reference.getRGB(x, y);
+                    int largest = 0;
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        int d = Math.abs(premultiplied(a, shift)
+                                - premultiplied(b, shift));
+                        sum += d / 4.0;
+                        largest = Math.max(largest, d);
+                    }
+                    pixels++;
+                    if (largest > 1) {
+                        differing++;
+                    }
+                    max = Math.max(max, largest);
+                }
+            }
+        }
+
+        /** @return the mean difference, in percent of full scale */
+        double meanPercent() {
+            return pixels == 0 ? 0 : sum / pixels / 255 * 100;
+        }
+
+        /** @return the share of pixels that differ, in percent */
+        double differingPercent() {
+            return pixels == 0 ? 0 : differing * 100.0 / pixels;
+        }
+
+        private static int premultiplied(int argb, int shift) {
+            int channel = (argb >>> shift) & 0xff;
+            return shift == 24 ? channel : channel * (argb >>> 24) / 255;
+        }
+    }
+
+    /**
+     * Renders every document once at a size.
+     *
+     * @param documents
+     * @param size
+     * @param quality
+     * @param images
+     *            receives the rasters, or null to drop them
+     * @return the elapsed time in nanoseconds
+     */
+    static long renderPass(List<SVGDocument> documents, int size,
+            RenderQuality quality, List<BufferedImage> images) {
+        RenderContext context = RenderContext.get();
+        long start = System.nanoTime();
+        for (SVGDocument document : documents) {
+            BufferedImage image = null;
+            try {
+                image = context.render(size, size, new TranscoderInput(
+                        document), quality);
+            } catch (TranscoderException e) {
+                System.err.println("Could not render " + document.getURL()
+                        + ": " + e.getMessage());
+            }
+            if (images != null) {
+                images.add(image);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @param args
+     *            optionally the number of icons to sample, the number of
+     *            measured passes and the comma separated sizes
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int iconCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        float[] sizes = RenderSettings.parseList(args.length > 2 ? args[2]
+                : "16,32");
+
+        List<File> icons = BenchmarkCorpus.sampleIcons(
+                BenchmarkCorpus.RESOURCES, iconCount);
+        List<SVGDocument> documents = new ArrayList<SVGDocument>();
+        for (File icon : icons) {
+            documents.add(RenderContext.get().parse(icon.toURI().toString(),
+                    icon));
+        }
+        System.out.println("Benchmarking render quality with "
+                + documents.size() + " icons, " + passes + " passes.");
+
+        File outputDir = new File("target/bench");
+        outputDir.mkdirs();
+        PrintWriter writer = new PrintWriter(new FileWriter(new File(outputDir,
+                "render-quality.csv")));
+        try {
+            writer.println("quality,size,icons,passes,ms_per_icon,icons_per_second,"
+                    + "mean_diff_percent,differing_pixels_percent,max_diff");
+
+            // Warm up the JIT and Batik's static caches for every profile
+            for (RenderQuality quality : RenderQuality.values()) {
+                renderPass(documents, Math.round(sizes[0]), quality, null);
+            }
+
+            for (float sizeValue : sizes) {
+                int size = Math.round(sizeValue);
+
+                RenderQuality[] qualities = RenderQuality.values();
+                List<List<BufferedImage>> images = new ArrayList<List<BufferedImage>>();
+                for (RenderQuality quality : qualities) {
+                    // Keep the rasters of an unmeasured pass to compare
+                    List<BufferedImage> rasters = new ArrayList<BufferedImage>();
+                    renderPass(documents, size, quality, rasters);
+                    images.add(rasters);
+                }
+                List<BufferedImage> release = images
+                        .get(RenderQuality.RELEASE.ordinal());
+
+                // Take turns, so the profiles share any drift of the machine
+                long[] elapsed = new long[qualities.length];
+                for (int i = 0; i < passes; i++) {
+                    for (RenderQuality quality : qualities) {
+                        elapsed[quality.ordinal()] += renderPass(documents,
+                                size, quality, null);
+                    }
+                }
+
+                for (RenderQuality quality : qualities) {
+                    List<BufferedImage> rasters = images.get(quality.ordinal());
+                    Difference difference = new Difference();
+                    for (int i = 0; i < rasters.size(); i++) {
+                        if (rasters.get(i) != null && release.get(i) != null) {
+                            difference.add(rasters.get(i), release.get(i));
+                        }
+                    }
+
+                    double perIcon = elapsed[quality.ordinal()] / 1e6
+                            / (documents.size() * passes);
+                    System.out.println(String.format(Locale.ROOT,
+                            "%-8s %3dpx: %.3f ms/icon, %6.0f icons/s, "
+                                    + "%.3f%% mean difference, %.2f%% of pixels differ, max %d",
+                            quality.getName(), size, perIcon, 1000 / perIcon,
+                            difference.meanPercent(),
+                            difference.differingPercent(), difference.max));
+                    writer.println(String.format(Locale.ROOT,
+                            "%s,%d,%d,%d,%.4f,%.1f,%.4f,%.3f,%d",
+                            quality.getName(), size, documents.size(), passes,
+                            perIcon, 1000 / perIcon, difference.meanPercent(),
+                            difference.differingPercent(), difference.max));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.batik.transcoder.TranscoderInput;
+import org.w3c.dom.svg.SVGDocument;
+
+/**
+ * <p>Measures what it costs to set up the parser and transcoder for every
+ * icon, compared to reusing a {@link RenderContext} per thread.</p>
+ *
+ * <p>Each pass parses and renders the same fixed sample of icons from
+ * src/main/resources at 16x16. Results are printed and written to
+ * target/bench/render-setup.csv.</p>
+ */
+public class RenderSetupBenchmark {
+
+    private static final int ICON_SIZE = 16;
+
+    /**
+     * Parses and renders every icon once.
+     *
+     * @param icons
+     * @param reuse
+     *            true to use the thread's shared context, false to build a
+     *            new one per icon as the rasterizer used to
+     * @return the elapsed time in nanoseconds
+     * @throws IOException
+     */
+    static long renderPass(List<File> icons, boolean reuse) throws IOException {
+        long start = System.nanoTime();
+        for (File icon : icons) {
+            RenderContext context = reuse ? RenderContext.get()
+                    : new RenderContext();
+            SVGDocument document = context.parse(icon.toURI().toString(),
+                    icon);
+            try {
+                context.render(ICON_SIZE, ICON_SIZE, new TranscoderInput(
+                        document));
+            } catch (TranscoderException e) {
+                System.err.println("Could not render " + icon + ": "
+                        + e.getMessage());
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @param passes
+     * @return the elapsed time in nanoseconds to create the contexts
+     */
+    static long setupPass(int passes) {
+        long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            new RenderContext();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @param args
+     *            optionally the number of icons to sample and the number of
+     *            measured passes
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int iconCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<File> icons = BenchmarkCorpus.sampleIcons(
+                BenchmarkCorpus.RESOURCES, iconCount);
+        System.out.println("Benchmarking render setup with " + icons.size()
+                + " icons, " + passes + " passes.");
+
+        // Warm up the JIT and Batik's static caches for both paths
+        renderPass(icons, false);
+        renderPass(icons, true);
+
+        long fresh = 0;
+        long reused = 0;
+        long setup = 0;
+        for (int i = 0; i < passes; i++) {
+            fresh += renderPass(icons, false);
+            reused += renderPass(icons, true);
+            setup += setupPass(icons.size());
+        }
+
+        int samples = icons.size() * passes;
+        double freshPerIcon = fresh / 1e6 / samples;
+        double reusedPerIcon = reused / 1e6 / samples;
+        double setupPerIcon = setup / 1e6 / samples;
+
+        System.out.println(String.format(Locale.ROOT, "New context per icon: %.3f ms/icon",
+                freshPerIcon));
+        System.out.println(String.format(Locale.ROOT, "Reused context:       %.3f ms/icon",
+                reusedPerIcon));
+        System.out.println(String.format(Locale.ROOT, "Context setup only:   %.3f ms/icon",
+                setupPerIcon));
+
+        File outputDir = new File("target/bench");
+        outputDir.mkdirs();
+        PrintWriter writer = new PrintWriter(new FileWriter(new File(outputDir,
+                "render-setup.csv")));
+        try {
+            writer.println("mode,icons,passes,ms_per_icon");
+            writer.println(String.format(Locale.ROOT, "fresh,%d,%d,%.4f", icons.size(),
+                    passes, freshPerIcon));
+            writer.println(String.format(Locale.ROOT, "reused,%d,%d,%.4f", icons.size(),
+                    passes, reusedPerIcon));
+            writer.println(String.format(Locale.ROOT, "setup,%d,%d,%.4f", icons.size(),
+                    passes, setupPerIcon));
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>Packs rectangles into as few pages as it can with the MaxRects
+ * algorithm: every free area of a page is tracked as a maximal rectangle,
+ * and each rectangle goes in the free area it fits most snugly (best short
+ * side fit).</p>
+ *
+ * <p>Pages are as wide as a square holding every rectangle would be, and
+ * are trimmed to the height used, so a bundle with a handful of icons gets
+ * a small page rather than a mostly empty one of the maximum size.</p>
+ */
+public class AtlasPacker {
+
+    /**
+     * <p>A rectangle to pack and, once packed, where it went.</p>
+     */
+    public static class Item {
+
+        /** Whatever the caller wants to get back with the placement. */
+        final Object key;
+
+        final int width, height;
+
+        /** The page the item went on. */
+        int page;
+
+        /** The item's position on its page. */
+        int x, y;
+
+        public Item(Object key, int width, int height) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * <p>One page being filled.</p>
+     */
+    private static class Page {
+
+        final List<Rectangle> free = new ArrayList<Rectangle>();
+
+        int usedWidth, usedHeight;
+
+        Page(int width, int height) {
+            free.add(new Rectangle(0, 0, width, height));
+        }
+    }
+
+    /** The largest page width and height. */
+    private final int maxSize;
+
+    /** The empty pixels left around each item. */
+    private final int padding;
+
+    /** The size of each page, worked out by pack(). */
+    private final List<Rectangle> pageSizes = new ArrayList<Rectangle>();
+
+    /**
+     * @param maxSize
+     *            the largest page width and height
+     * @param padding
+     *            the empty pixels to leave between items, so filtered
+     *            sampling doesn't bleed one icon into the next
+     */
+    public AtlasPacker(int maxSize, int padding) {
+        this.maxSize = maxSize;
+        this.padding = padding;
+    }
+
+    /**
+     * Packs the items, setting their page and position.
+     *
+     * @param items
+     * @throws IllegalArgumentException
+     *             if an item is larger than a page
+     */
+    public void pack(List<Item> items) {
+        pageSizes.clear();
+
+        List<Item> sorted = new ArrayList<Item>(items);
+        // Taller (then wider) items first leave the fewest gaps
+        Collections.sort(sorted, new Comparator<Item>() {
+            public int compare(Item o1, Item o2) {
+                if (o1.height != o2.height) {
+                    return o2.height - o1.height;
+                }
+                return o2.width - o1.width;
+            }
+        });
+
+        long area = 0;
+        int widest = 0;
+        for (Item item : sorted) {
+            int width = item.width + padding;
+            int height = item.height + padding;
+            if (width > maxSize || height > maxSize) {
+                throw new IllegalArgumentException("Item larger than a page: "
+                        + item.key);
+            }
+            area += (long) width * height;
+            widest = Math.max(widest, width);
+        }
+
+        int pageWidth = Math.min(maxSize,
+                Math.max(widest, (int) Math.ceil(Math.sqrt(area))));
+
+        List<Page> pages = new ArrayList<Page>();
+        for (Item item : sorted) {
+            int width = item.width + padding;
+            int height = item.height + padding;
+
+            boolean placed = false;
+            for (int i = 0; i < pages.size() && !placed; i++) {
+                placed = place(pages.get(i), item, i, width, height);
+            }
+
+            if (!placed) {
+                Page page = new Page(pageWidth, maxSize);
+                pages.add(page);
+                place(page, item, pages.size() - 1, width, height);
+            }
+        }
+
+        for (Page page : pages) {
+            pageSizes.add(new Rectangle(0, 0, page.usedWidth, page.usedHeight));
+        }
+    }
+
+    /**
+     * @return the number of pages used by the last pack()
+     */
+    public int getPageCount() {
+        return pageSizes.size();
+    }
+
+    /**
+     * @param page
+     * @return the size of a page used by the last pack(), trimmed to its
+     *         items
+     */
+    public Rectangle getPageSize(int page) {
+        return pageSizes.get(page);
+    }
+
+    /**
+     * Puts an item in the free rectangle it fits best, if there is one.
+     */
+    private static boolean place(Page page, Item item, int pageIndex,
+            int width, int height) {
+        Rectangle best = null;
+        int bestShort = Integer.MAX_VALUE;
+        int bestLong = Integer.MAX_VALUE;
+
+        for (Rectangle free : page.free) {
+            if (free.width >= width && free.height >= height) {
+                int leftoverX = free.width - width;
+                int leftoverY = free.height - height;
+                int shortSide = Math.min(leftoverX, leftoverY);
+                int longSide = Math.max(leftoverX, leftoverY);
+                if (shortSide < bestShort
+                        || (shortSide == bestShort && longSide < bestLong)) {
+                    best = free;
+                    bestShort = shortSide;
+                    bestLong = longSide;
+                }
+            }
+        }
+
+        if (best == null) {
+            return false;
+        }
+
+        Rectangle used = new Rectangle(best.x, best.y, width, height);
+        item.page = pageIndex;
+        item.x = used.x;
+        item.y = used.y;
+        page.usedWidth = Math.max(page.usedWidth, used.x + item.width);
+        page.usedHeight = Math.max(page.usedHeight, used.y + item.height);
+
+        split(page.free, used);
+        prune(page.free);
+        return true;
+    }
+
+    /**
+     * Replaces every free rectangle overlapping the used one with the
+     * (overlapping) maximal rectangles left around it.
+     */
+    private static void split(List<Rectangle> free, Rectangle used) {
+        List<Rectangle> created = new ArrayList<Rectangle>();
+
+        for (int i = free.size() - 1; i >= 0; i--) {
+            Rectangle rect = free.get(i);
+            if (!rect.intersects(used)) {
+                continue;
+            }
+            free.remove(i);
+
+            if (used.x > rect.x) {
+                created.add(new Rectangle(rect.x, rect.y, used.x - rect.x,
+                        rect.height));
+            }
+            if (used.x + used.width < rect.x + rect.width) {
+                created.add(new Rectangle(used.x + used.width, rect.y, rect.x
+                        + rect.width - used.x - used.width, rect.height));
+            }
+            if (used.y > rect.y) {
+                created.add(new Rectangle(rect.x, rect.y, rect.width, used.y
+                        - rect.y));
+            }
+            if (used.y + used.height < rect.y + rect.height) {
+                created.add(new Rectangle(rect.x, used.y + used.height,
+                        rect.width, rect.y + rect.height - used.y
+                                - used.height));
+            }
+        }
+
+        free.addAll(created);
+    }
+
+    /**
+     * Removes the free rectangles contained in another one.
+     */
+    private static void prune(List<Rectangle> free) {
+        for (int i = free.size() - 1; i >= 0; i--) {
+            Rectangle rect = free.get(i);
+            for (int j = 0; j < free.size(); j++) {
+                if (i != j && free.get(j).contains(rect)) {
+                    free.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+}
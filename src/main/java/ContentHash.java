@@ -0,0 +1,64 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>Computes the content hashes used to decide whether an icon needs to be
+ * rendered again.</p>
+ *
+ */
+public class ContentHash {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ContentHash() {
+    }
+
+    /**
+     * @param file
+     *            the file to hash
+     * @return the hex encoded SHA-1 of the file's contents
+     * @throws IOException
+     */
+    public static String of(File file) throws IOException {
+        return of(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * @param text
+     *            the string to hash, encoded as UTF-8
+     * @return the hex encoded SHA-1 of the string
+     */
+    public static String of(String text) {
+        return of(text.getBytes(UTF8));
+    }
+
+    /**
+     * @param data
+     *            the bytes to hash
+     * @return the hex encoded SHA-1 of the data
+     */
+    public static String of(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to ship SHA-1
+            throw new IllegalStateException(e);
+        }
+
+        byte[] hash = digest.digest(data);
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+}
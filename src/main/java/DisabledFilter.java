@@ -0,0 +1,205 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Creates the desaturated variant of an icon Eclipse shows when the
+ * action is disabled, in one pass over the pixels.</p>
+ *
+ * <p>The pixels are turned gray with the weights of jhlabs'
+ * GrayscaleFilter, the filter the rasterizer used to run followed by an
+ * HSBAdjustFilter with no saturation. Once a pixel is gray the HSB pass
+ * leaves it as it is, so the output is the same as the two filters'. An
+ * optional brightness and contrast adjustment, as done by jhlabs'
+ * ContrastFilter, is applied to the gray level through a lookup table.</p>
+ *
+ * <p>Images with int ARGB pixels, which Batik renders to, are read and
+ * written directly through their data buffers. Each thread can reuse its
+ * destination images, see {@link #filterReused(BufferedImage)}.</p>
+ */
+public class DisabledFilter {
+
+    /**
+     * The number of image sizes each thread keeps a destination for, icons
+     * are rendered at a few sizes.
+     */
+    private static final int REUSED_SIZES = 4;
+
+    /** The destination images reused by each thread, by size. */
+    private final ThreadLocal<Map<Long, BufferedImage>> reused = new ThreadLocal<Map<Long, BufferedImage>>();
+
+    /** The pixels read from images not stored as int ARGB, per thread. */
+    private final ThreadLocal<int[]> pixelBuffer = new ThreadLocal<int[]>();
+
+    /** Maps gray levels to adjusted levels, null if there's no adjustment. */
+    private final int[] levels;
+
+    /**
+     * Creates a filter that only desaturates.
+     */
+    public DisabledFilter() {
+        this(1.0f, 1.0f);
+    }
+
+    /**
+     * @param brightness
+     *            multiplies the gray level, 1 to leave it unchanged
+     * @param contrast
+     *            scales the gray level around the middle gray, 1 to leave
+     *            it unchanged
+     */
+    public DisabledFilter(float brightness, float contrast) {
+        if (brightness == 1.0f && contrast == 1.0f) {
+            levels = null;
+        } else {
+            // ContrastFilter's transfer function and table
+            levels = new int[256];
+            for (int i = 0; i < 256; i++) {
+                float f = i / 255.0f * brightness;
+                f = (f - 0.5f) * contrast + 0.5f;
+                levels[i] = Math.max(0, Math.min(255, (int) (255.0f * f)));
+            }
+        }
+    }
+
+    /**
+     * @param image
+     *            the rendered icon
+     * @return a new disabled image
+     */
+    public BufferedImage filter(BufferedImage image) {
+        BufferedImage disabled = new BufferedImage(image.getWidth(),
+                image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        filter(image, disabled);
+        return disabled;
+    }
+
+    /**
+     * Filters into one of this thread's reused destination images, so
+     * filtering many icons of the same few sizes doesn't allocate.
+     *
+     * @param image
+     *            the rendered icon
+     * @return the disabled image, only valid until the thread calls this
+     *         method again
+     */
+    public BufferedImage filterReused(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        Map<Long, BufferedImage> images = reused.get();
+        if (images == null) {
+            images = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                protected boolean removeEldestEntry(
+                        Map.Entry<Long, BufferedImage> eldest) {
+                    return size() > REUSED_SIZES;
+                }
+            };
+            reused.set(images);
+        }
+
+        Long size = Long.valueOf(((long) width << 32) | height);
+        BufferedImage disabled = images.get(size);
+        if (disabled == null) {
+            disabled = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_ARGB);
+            images.put(size, disabled);
+        }
+
+        filter(image, disabled);
+        return disabled;
+    }
+
+    /**
+     * @param image
+     *            the rendered icon
+     * @param disabled
+     *            the image to write the disabled icon to, int ARGB and the
+     *            same size as the icon
+     */
+    public void filter(BufferedImage image, BufferedImage disabled) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        int[] dst = pixels(disabled);
+        int dstOffset = offset(disabled);
+        int dstStride = stride(disabled);
+
+        int[] src = pixels(image);
+        int srcOffset = offset(image);
+        int srcStride = stride(image);
+        if (src == null) {
+            // Let the image convert its pixels to ARGB
+            src = pixelBuffer.get();
+            if (src == null || src.length < width) {
+                src = new int[width];
+                pixelBuffer.set(src);
+            }
+        }
+
+        for (int y = 0; y < height; y++) {
+            int in;
+            if (srcStride == 0) {
+                image.getRGB(0, y, width, 1, src, 0, width);
+                in = 0;
+            } else {
+                in = srcOffset + y * srcStride;
+            }
+            int out = dstOffset + y * dstStride;
+
+            for (int x = 0; x < width; x++) {
+                int argb = src[in + x];
+                int gray = (((argb >> 16) & 0xff) * 77
+                        + ((argb >> 8) & 0xff) * 151 + (argb & 0xff) * 28) >> 8;
+                if (levels != null) {
+                    gray = levels[gray];
+                }
+                dst[out + x] = (argb & 0xff000000) | (gray << 16) | (gray << 8)
+                        | gray;
+            }
+        }
+    }
+
+    /**
+     * @return the image's int ARGB pixels, null if it is stored some other
+     *         way
+     */
+    private static int[] pixels(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            return null;
+        }
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @return the index of the image's top left pixel in its data
+     */
+    private static int offset(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            return 0;
+        }
+        WritableRaster raster = image.getRaster();
+        SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster
+                .getSampleModel();
+        return raster.getDataBuffer().getOffset()
+                + model.getOffset(-raster.getSampleModelTranslateX(),
+                        -raster.getSampleModelTranslateY());
+    }
+
+    /**
+     * @return the distance between the image's rows in its data, 0 if it
+     *         isn't stored as int ARGB
+     */
+    private static int stride(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            return 0;
+        }
+        return ((SinglePixelPackedSampleModel) image.getRaster()
+                .getSampleModel()).getScanlineStride();
+    }
+}
@@ -0,0 +1,675 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Writes the distribution archive while the icons render: the rendered
+ * icon sets under rendered/, the svgs under svg/ and the license files,
+ * the same layout the dist target used to zip once rendering had
+ * finished.</p>
+ *
+ * <p>Each PNG and gif is added as the render pipeline writes it. They are
+ * compressed already, so they are stored, which only needs a CRC. The svgs
+ * and other text files are deflated on a pool of their own. Entries are
+ * appended in the order they are done, so two runs don't give the same
+ * byte for byte archive, only the same entries. When the render has
+ * finished, {@link #finish(Collection)} adds the files that weren't written
+ * this run, icons that were up to date, so the archive holds everything in
+ * the icon sets either way.</p>
+ *
+ * <p>Optionally each bundle also gets an archive of its own, holding the
+ * bundle's entries under the same names as the full archive plus the
+ * license files, so unpacking several of them gives the same tree as
+ * unpacking the full one.</p>
+ *
+ * <p>The archives are plain zips, without zip64 extensions, so they are
+ * limited to 65535 entries and 4 GB.</p>
+ */
+public class DistPackager {
+
+    /** The extensions of files that are compressed already. */
+    private static final String[] STORED_EXTENSIONS = { ".png", ".gif",
+            ".jpg", ".jpeg", ".zip" };
+
+    private static final int MAX_ENTRIES = 0xffff;
+
+    private static final long MAX_OFFSET = 0xffffffffL;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The directory the icon sets are rendered to. */
+    private final File targetDir;
+
+    /** The icon sets to package, all of them if empty. */
+    private final Set<String> sets;
+
+    /** The full archive. */
+    private final ZipWriter archive;
+
+    /**
+     * The directory the per-bundle archives are written to, null to only
+     * write the full archive.
+     */
+    private final File bundleDir;
+
+    /** Set/bundle -> the bundle's archive. */
+    private final Map<String, ZipWriter> bundleArchives = new TreeMap<String, ZipWriter>();
+
+    /** Entries of every bundle archive, the license files. */
+    private final List<Entry> commonEntries = new ArrayList<Entry>();
+
+    /** Deflates text entries. */
+    private final ExecutorService pool;
+
+    private final List<Future<?>> tasks = Collections
+            .synchronizedList(new ArrayList<Future<?>>());
+
+    /** The names of the entries added so far. */
+    private final Set<String> added = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** The directory the svgs are packaged from. */
+    private File svgRoot;
+
+    /** The first entry that could not be added, thrown by finish. */
+    private volatile IOException failure;
+
+    private AtomicInteger stored = new AtomicInteger();
+
+    private AtomicInteger deflated = new AtomicInteger();
+
+    private AtomicInteger streamed = new AtomicInteger();
+
+    private AtomicLong bytesIn = new AtomicLong();
+
+    private AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * @param archive
+     *            the archive to write
+     * @param targetDir
+     *            the directory the icon sets are rendered to
+     * @param sets
+     *            the names of the icon sets to package, or empty to
+     *            package all of them
+     * @param bundles
+     *            whether to also write an archive per bundle, next to the
+     *            full archive in a directory named after it
+     * @param threads
+     *            the number of threads deflating text entries
+     */
+    public DistPackager(File archive, File targetDir, Collection<String> sets,
+            boolean bundles, int threads) {
+        this.targetDir = targetDir;
+        this.sets = new HashSet<String>(sets);
+        this.archive = new ZipWriter(archive);
+
+        String name = archive.getName();
+        int dot = name.lastIndexOf('.');
+        bundleDir = bundles ? new File(archive.getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + "-bundles") : null;
+
+        pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+
+    /**
+     * Opens the archive and starts adding the svgs and license files, to be
+     * called before rendering.
+     *
+     * @param svgRoot
+     *            the directory the svgs are packaged from, the resources
+     *            or their optimized copies
+     * @param licenses
+     *            files added at the root of every archive
+     * @throws IOException
+     *             if the archive can't be created or the svgs listed
+     */
+    public void start(File svgRoot, File... licenses) throws IOException {
+        this.svgRoot = svgRoot;
+        try {
+            archive.open();
+
+            for (File license : licenses) {
+                addFromDisk(license, license.getName());
+            }
+
+            final Path root = svgRoot.toPath();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs) {
+                    if (file.getFileName().toString().endsWith(".svg")) {
+                        addFromDisk(file.toFile(),
+                                "svg/" + relativeName(root, file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            pool.shutdownNow();
+            archive.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a file the render pipeline has just written, if it is in one of
+     * the packaged icon sets. Safe to call from several threads. Failures
+     * are kept for {@link #finish(Collection)} to report, rather than
+     * failing the icon.
+     *
+     * @param file
+     *            the file, which must exist
+     * @param data
+     *            its contents
+     */
+    public void add(File file, byte[] data) {
+        String name = entryName(file);
+        if (name != null && submit(name, data, file.lastModified())) {
+            streamed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds the files of the icon sets that weren't added while rendering,
+     * waits for the entries being deflated and writes the archives.
+     *
+     * @param renderedSets
+     *            the names of the icon sets that were rendered
+     * @throws IOException
+     *             if an entry or an archive could not be written, in which
+     *             case no archive is left behind
+     */
+    public void finish(Collection<String> renderedSets) throws IOException {
+        try {
+            final Path target = targetDir.toPath();
+            for (String set : renderedSets) {
+                File setDir = new File(targetDir, set);
+                if (!isPackaged(set) || !setDir.isDirectory()) {
+                    continue;
+                }
+                Files.walkFileTree(setDir.toPath(),
+                        new SimpleFileVisitor<Path>() {
+                            public FileVisitResult visitFile(Path file,
+                                    BasicFileAttributes attrs) {
+                                addFromDisk(file.toFile(), "rendered/"
+                                        + relativeName(target, file));
+                                return FileVisitResult.CONTINUE;
+                            }
+                        });
+            }
+
+            List<Future<?>> pending;
+            synchronized (tasks) {
+                pending = new ArrayList<Future<?>>(tasks);
+            }
+            for (Future<?> task : pending) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    fail(new IOException(e.getCause()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while packaging", e);
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            archive.close();
+            for (ZipWriter bundle : bundleArchives.values()) {
+                bundle.close();
+            }
+        } catch (IOException e) {
+            archive.discard();
+            for (ZipWriter bundle : bundleArchives.values()) {
+                bundle.discard();
+            }
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @param out
+     *            the stream to print what was packaged to
+     */
+    public void printSummary(PrintStream out) {
+        out.println(String.format(Locale.ROOT,
+                "Packaged %d files into %s (%d stored, %d deflated), "
+                        + "%.1f to %.1f MB, %d added while rendering",
+                stored.get() + deflated.get(), archive.file, stored.get(),
+                deflated.get(), bytesIn.get() / (1024.0 * 1024),
+                bytesOut.get() / (1024.0 * 1024), streamed.get()));
+        if (bundleDir != null) {
+            out.println("Packaged " + bundleArchives.size()
+                    + " bundle archives into " + bundleDir);
+        }
+    }
+
+    /**
+     * @return the name of the file's entry, or null if it isn't packaged
+     */
+    private String entryName(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        Path svgs = svgRoot.toPath().toAbsolutePath().normalize();
+        if (path.startsWith(svgs)) {
+            return file.getName().endsWith(".svg") ? "svg/"
+                    + relativeName(svgs, path) : null;
+        }
+
+        Path target = targetDir.toPath().toAbsolutePath().normalize();
+        if (path.startsWith(target)) {
+            String name = relativeName(target, path);
+            int slash = name.indexOf('/');
+            if (slash > 0 && isPackaged(name.substring(0, slash))) {
+                return "rendered/" + name;
+            }
+        }
+        return null;
+    }
+
+    private boolean isPackaged(String set) {
+        return sets.isEmpty() || sets.contains(set);
+    }
+
+    private void addFromDisk(File file, String name) {
+        if (added.contains(name)) {
+            return;
+        }
+        try {
+            submit(name, Files.readAllBytes(file.toPath()), file.lastModified());
+        } catch (IOException e) {
+            fail(new IOException("Could not read " + file + ": "
+                    + e.getMessage(), e));
+        }
+    }
+
+    /**
+     * Stores the entry on the calling thread if it's compressed already,
+     * otherwise has the pool deflate it.
+     *
+     * @return false if there already is an entry of that name
+     */
+    private boolean submit(final String name, final byte[] data,
+            final long time) {
+        if (!added.add(name)) {
+            return false;
+        }
+
+        if (isCompressed(name)) {
+            try {
+                write(Entry.stored(name, data, time));
+                stored.incrementAndGet();
+            } catch (IOException e) {
+                fail(e);
+            }
+        } else {
+            tasks.add(pool.submit(new Runnable() {
+                public void run() {
+                    try {
+                        Entry entry = Entry.deflated(name, data, time);
+                        write(entry);
+                        if (entry.method == Entry.DEFLATED) {
+                            deflated.incrementAndGet();
+                        } else {
+                            stored.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            }));
+        }
+        return true;
+    }
+
+    private static boolean isCompressed(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (String extension : STORED_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends the entry to the full archive and its bundle's.
+     */
+    private void write(Entry entry) throws IOException {
+        archive.append(entry);
+        bytesIn.addAndGet(entry.size);
+        bytesOut.addAndGet(entry.data.length);
+
+        if (bundleDir == null) {
+            return;
+        }
+
+        if (entry.name.indexOf('/') < 0) {
+            List<ZipWriter> bundles;
+            synchronized (bundleArchives) {
+                commonEntries.add(entry);
+                bundles = new ArrayList<ZipWriter>(bundleArchives.values());
+            }
+            for (ZipWriter bundle : bundles) {
+                bundle.append(entry);
+            }
+            return;
+        }
+
+        String bundle = bundleOf(entry.name);
+        if (bundle != null) {
+            bundleArchive(bundle).append(entry);
+        }
+    }
+
+    /**
+     * @return the bundle's archive, opened with the common entries if it's
+     *         new
+     */
+    private ZipWriter bundleArchive(String bundle) throws IOException {
+        synchronized (bundleArchives) {
+            ZipWriter writer = bundleArchives.get(bundle);
+            if (writer == null) {
+                String set = bundle.substring(0, bundle.indexOf('/'));
+                String name = bundle.substring(bundle.lastIndexOf('/') + 1);
+                writer = new ZipWriter(new File(new File(bundleDir, set), name
+                        + ".zip"));
+                writer.open();
+                for (Entry entry : commonEntries) {
+                    writer.append(entry);
+                }
+                bundleArchives.put(bundle, writer);
+            }
+            return writer;
+        }
+    }
+
+    /**
+     * Finds the bundle of an entry like {@link RasterizerUtil#bundlePath}:
+     * the first directory below the icon set, or below its bundles folder.
+     *
+     * @param name
+     *            an entry name, e.g.
+     *            svg/eclipse.platform.ui/bundles/org.eclipse.ui/icons/a.svg
+     * @return the set and bundle, e.g.
+     *         eclipse.platform.ui/bundles/org.eclipse.ui, or null if the
+     *         entry isn't in a bundle
+     */
+    static String bundleOf(String name) {
+        String[] segments = name.split("/");
+        if (segments.length > 4 && segments[2].equals("bundles")) {
+            return segments[1] + "/" + segments[2] + "/" + segments[3];
+        }
+        if (segments.length > 3) {
+            return segments[1] + "/" + segments[2];
+        }
+        return null;
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private static String relativeName(Path dir, Path file) {
+        return dir.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * <p>A compressed entry, ready to be appended to any number of
+     * archives.</p>
+     */
+    static class Entry {
+
+        static final int STORED = 0, DEFLATED = 8;
+
+        final String name;
+
+        final byte[] nameBytes;
+
+        final int method;
+
+        /** The contents, compressed if the method is DEFLATED. */
+        final byte[] data;
+
+        /** The uncompressed size. */
+        final int size;
+
+        final long crc;
+
+        /** The modification time in MS-DOS format, date and time. */
+        final int dosTime;
+
+        private Entry(String name, int method, byte[] data, int size,
+                long crc, long time) {
+            this.name = name;
+            this.nameBytes = name.getBytes(UTF8);
+            this.method = method;
+            this.data = data;
+            this.size = size;
+            this.crc = crc;
+            this.dosTime = dosTime(time);
+        }
+
+        static Entry stored(String name, byte[] data, long time) {
+            return new Entry(name, STORED, data, data.length, crc(data), time);
+        }
+
+        /**
+         * @return the deflated entry, or stored if deflating doesn't make
+         *         it smaller
+         */
+        static Entry deflated(String name, byte[] data, long time) {
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    data.length / 2 + 64);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(buffer);
+                    out.write(buffer, 0, length);
+                }
+            } finally {
+                deflater.end();
+            }
+
+            if (out.size() >= data.length) {
+                return stored(name, data, time);
+            }
+            return new Entry(name, DEFLATED, out.toByteArray(), data.length,
+                    crc(data), time);
+        }
+
+        private static long crc(byte[] data) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            return crc.getValue();
+        }
+
+        private static int dosTime(long time) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(time);
+            int year = calendar.get(Calendar.YEAR);
+            if (year < 1980) {
+                return (1 << 21) | (1 << 16);
+            }
+            return (year - 1980) << 25
+                    | (calendar.get(Calendar.MONTH) + 1) << 21
+                    | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                    | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                    | calendar.get(Calendar.MINUTE) << 5
+                    | calendar.get(Calendar.SECOND) >> 1;
+        }
+    }
+
+    /**
+     * <p>Appends entries to a zip, writing it next to its final name and
+     * moving it there once the central directory is written.</p>
+     */
+    static class ZipWriter {
+
+        /** Entries use UTF-8 names. */
+        private static final int FLAGS = 0x0800;
+
+        /** Version 2.0, deflate. */
+        private static final int VERSION = 20;
+
+        final File file;
+
+        private final File part;
+
+        private OutputStream out;
+
+        private long offset;
+
+        private ByteArrayOutputStream central = new ByteArrayOutputStream();
+
+        private int entries;
+
+        ZipWriter(File file) {
+            this.file = file;
+            this.part = new File(file.getPath() + ".part");
+        }
+
+        void open() throws IOException {
+            File parent = part.getAbsoluteFile().getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            out = new BufferedOutputStream(new FileOutputStream(part), 65536);
+        }
+
+        synchronized void append(Entry entry) throws IOException {
+            if (entries == MAX_ENTRIES) {
+                throw new IOException(file + " would have more than "
+                        + MAX_ENTRIES + " entries");
+            }
+            if (offset + entry.data.length + 30 + entry.nameBytes.length > MAX_OFFSET) {
+                throw new IOException(file + " would be larger than 4 GB");
+            }
+
+            writeInt(out, 0x04034b50);
+            writeShort(out, VERSION);
+            writeHeader(out, entry);
+            writeShort(out, 0);
+            out.write(entry.nameBytes);
+            out.write(entry.data);
+
+            writeInt(central, 0x02014b50);
+            writeShort(central, VERSION);
+            writeShort(central, VERSION);
+            writeHeader(central, entry);
+            writeShort(central, 0);
+            writeShort(central, 0);
+            writeShort(central, 0);
+            writeShort(central, 0);
+            writeInt(central, 0);
+            writeInt(central, offset);
+            central.write(entry.nameBytes);
+
+            offset += 30 + entry.nameBytes.length + entry.data.length;
+            entries++;
+        }
+
+        /**
+         * Writes the central directory and moves the archive in place.
+         */
+        synchronized void close() throws IOException {
+            central.writeTo(out);
+            writeInt(out, 0x06054b50);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeShort(out, entries);
+            writeShort(out, entries);
+            writeInt(out, central.size());
+            writeInt(out, offset);
+            writeShort(out, 0);
+            out.close();
+            out = null;
+
+            Files.move(part.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Deletes the partly written archive.
+         */
+        synchronized void discard() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Deleted anyway
+                }
+                out = null;
+            }
+            part.delete();
+        }
+
+        /**
+         * Writes the fields the local and central headers share, from the
+         * flags to the name length.
+         */
+        private static void writeHeader(OutputStream out, Entry entry)
+                throws IOException {
+            writeShort(out, FLAGS);
+            writeShort(out, entry.method);
+            writeInt(out, entry.dosTime);
+            writeInt(out, entry.crc);
+            writeInt(out, entry.data.length);
+            writeInt(out, entry.size);
+            writeShort(out, entry.nameBytes.length);
+        }
+
+        private static void writeShort(OutputStream out, int value)
+                throws IOException {
+            out.write(value & 0xff);
+            out.write((value >>> 8) & 0xff);
+        }
+
+        private static void writeInt(OutputStream out, long value)
+                throws IOException {
+            out.write((int) (value & 0xff));
+            out.write((int) ((value >>> 8) & 0xff));
+            out.write((int) ((value >>> 16) & 0xff));
+            out.write((int) ((value >>> 24) & 0xff));
+        }
+    }
+}
@@ -1,218 +1,318 @@
 import java.awt.Color;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Hack that generates E4 workbench edit icons.
- * 
+ *
+ * <p>Each gif with the prefix (Create by default) in the given directories
+ * that has no svg yet gets one, filled in from a template with three stars
+ * in a random color each. The colors come from a seeded random, picked by
+ * the seed and the icon's name, so the same seed generates the same icons
+ * whichever directory or thread they are generated in. The icons are
+ * generated in parallel, and are either written next to their gif or
+ * rendered to target/ straight from memory.</p>
+ *
  * @author tmccrary
  *
  */
 public class E4EditStarGenerator {
 
-    private final static String STAR_BORDER_LIGHT = "${star_border_light";
-    private final static String STAR_BORDER_DARK = "${star_border_dark";
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final static String STAR_BORDER_LIGHT = "star_border_light";
+    private final static String STAR_BORDER_DARK = "star_border_dark";
+
+    private final static String STAR_INNER = "star_inner_";
+
+    /** The number of stars in the template. */
+    private final static int STARS = 3;
 
-    private final static String STAR_INNER_1 = "${star_inner_1";
-    private final static String STAR_INNER_2 = "${star_inner_2";
-    private final static String STAR_INNER_3 = "${star_inner_3";
-    private final static String STAR_INNER_4 = "${star_inner_4";
-    private final static String STAR_INNER_5 = "${star_inner_5";
+    /** The brightness of each shade of a star's fill, lightest first. */
+    private final static float[] INNER_BRIGHTNESS = { 1f, 0.9f, 0.8f, 0.7f,
+            0.65f };
+
+    private final SvgTemplate template;
 
     /**
-     * 
-     * @param dir
+     * The index of each color of each star in the template's values, the
+     * light and dark border then the shades of the fill.
+     */
+    private final int[][] starSlots;
+
+    private final long seed;
+
+    /**
+     *
      * @param template
-     * @param output
+     *            the template with the star colors as placeholders, e.g.
+     *            ${star_border_light_1} or ${star_inner_2_1}
+     * @param seed
+     *            the seed the colors are picked with
      */
-    private static void generateIcons(File dir, File template, File output) {
-        String templateData = readTemplate(template);
-        
-        if(templateData == null) {
-            return;
-        }
-        
-        for(File child : dir.listFiles()) {
-            if(child.isDirectory()) {
-                continue;
-            }
-            
-            if(!child.getName().startsWith("Create")) {
-                continue;
-            }
-            
-            String svgName = child.getName().replace("gif", "svg");
-            
-            File childOutput = new File(output, svgName);
-            
-            if(!childOutput.exists()) {
-                String newStar = new String(templateData);
-                for(int k=1; k<4; k++) {
-                    newStar = generateNewStar(k, newStar);
-                }
-                
-                PrintWriter writer = null;
-                try {
-                    writer = new PrintWriter(childOutput);
-                    writer.write(newStar);
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                } finally {
-                    writer.close();
-                }
+    public E4EditStarGenerator(SvgTemplate template, long seed) {
+        this.template = template;
+        this.seed = seed;
+
+        starSlots = new int[STARS][];
+        for (int star = 0; star < STARS; star++) {
+            String suffix = "_" + (star + 1);
+            int[] slots = new int[2 + INNER_BRIGHTNESS.length];
+            slots[0] = template.indexOf(STAR_BORDER_LIGHT + suffix);
+            slots[1] = template.indexOf(STAR_BORDER_DARK + suffix);
+            for (int shade = 0; shade < INNER_BRIGHTNESS.length; shade++) {
+                slots[2 + shade] = template.indexOf(STAR_INNER + (shade + 1)
+                        + suffix);
             }
+            starSlots[star] = slots;
         }
-        
     }
-    
+
     /**
-     * 
-     * @return
+     * Picks the colors of an icon.
+     *
+     * @param name
+     *            the icon's name, picks its colors along with the seed
+     * @return the template's values, the same for the same name and seed
      */
-    public static Color getRandomColor() {
-        int R = (int)(Math.random()*256);
-        int G = (int)(Math.random()*256);
-        int B= (int)(Math.random()*256);
-        return new Color(R, G, B);
+    public String[] generate(String name) {
+        Random random = new Random(seed * 31 + name.hashCode());
+        String[] values = new String[template.getTokens().size()];
+        for (int[] slots : starSlots) {
+            generateNewStar(random, slots, values);
+        }
+        return values;
     }
-    
+
     /**
-     * 
-     * @param input
-     * @param brightness
-     * @return
+     * Picks a random color for a star and fills in its border and fill
+     * shades.
+     *
+     * @param random
+     * @param slots
+     *            the star's colors' indexes in values
+     * @param values
      */
-    private static String adjustBrightness(Color input, float brightness) {
-        float[] strokeHsb = new float[3];
-        Color.RGBtoHSB(input.getRed(), input.getGreen(), input.getBlue(), strokeHsb);
-        strokeHsb[2] = brightness;
-        Color strokeColor = new Color(Color.HSBtoRGB(strokeHsb[0], strokeHsb[1], strokeHsb[2]));
-
-        String lightRed = Integer.toHexString(strokeColor.getRed());
-        String lightGreen = Integer.toHexString(strokeColor.getGreen());
-        String lightBlue = Integer.toHexString(strokeColor.getBlue());
-        
-        StringBuilder lightBuilder = new StringBuilder();
-            lightBuilder.append("#").append(lightRed).append(lightGreen).append(lightBlue);
-        String lightString = lightBuilder.toString();
-        
-        return lightString;
+    private static void generateNewStar(Random random, int[] slots,
+            String[] values) {
+        float[] baseHsb = Color.RGBtoHSB(random.nextInt(256),
+                random.nextInt(256), random.nextInt(256), null);
+        float hue = baseHsb[0];
+        float saturation = baseHsb[1];
+
+        // The border is a stronger shade of the color than the fill
+        set(values, slots[0], hex(Color.HSBtoRGB(hue, 0.7f, 0.8f)));
+        set(values, slots[1], hex(Color.HSBtoRGB(hue, 0.7f, 0.5f)));
+        for (int shade = 0; shade < INNER_BRIGHTNESS.length; shade++) {
+            set(values, slots[2 + shade], hex(Color.HSBtoRGB(hue, saturation,
+                    INNER_BRIGHTNESS[shade])));
+        }
     }
-    
-    private static String getHex(int input) {
-        String hexString = Integer.toHexString(input);
-        if(hexString.length() == 1) {
-            hexString = "0" + hexString;
+
+    private static void set(String[] values, int index, String value) {
+        if (index >= 0) {
+            values[index] = value;
         }
-        
-        return hexString;
     }
-    
+
+    private static String hex(int rgb) {
+        return String.format("#%06x", rgb & 0xffffff);
+    }
+
     /**
-     * 
-     * @param templateData
-     * @return
+     * Finds the gifs in a directory that get an svg.
+     *
+     * @param dir
+     * @param prefix
+     *            the prefix of the gifs' names
+     * @param overwrite
+     *            whether gifs that already have an svg are included
+     * @return the svgs to generate
      */
-    private static String generateNewStar(int id, String templateData) {
-        Color baseColor = getRandomColor();
-        
-        float[] fillHsb = new float[3];
-        Color.RGBtoHSB(baseColor.getRed(), baseColor.getGreen(), baseColor.getBlue(), fillHsb);
-        fillHsb[2] = 0.9f;
-        Color fillColor = new Color(Color.HSBtoRGB(fillHsb[0], fillHsb[1], fillHsb[2]));
-
-        float[] strokeHsb = new float[3];
-        Color.RGBtoHSB(baseColor.getRed(), baseColor.getGreen(), baseColor.getBlue(), strokeHsb);
-        strokeHsb[1] = 0.7f;
-        strokeHsb[2] = 0.7f;
-        Color strokeColor = new Color(Color.HSBtoRGB(strokeHsb[0], strokeHsb[1], strokeHsb[2]));
-        
-        float[] lightHsb = new float[3];
-        float[] darkHsb = new float[3];
-        Color.RGBtoHSB(strokeColor.getRed(), strokeColor.getGreen(), strokeColor.getBlue(), lightHsb);
-        Color.RGBtoHSB(strokeColor.getRed(), strokeColor.getGreen(), strokeColor.getBlue(), darkHsb);
-        
-        lightHsb[2] = 0.8f;
-        darkHsb[2] = 0.5f;
-        
-        Color light = new Color(Color.HSBtoRGB(lightHsb[0], lightHsb[1], lightHsb[2]));
-        Color dark = new Color(Color.HSBtoRGB(darkHsb[0], darkHsb[1], darkHsb[2]));
-        
-        String lightRed = getHex(light.getRed());
-        String lightGreen = getHex(light.getGreen());
-        String lightBlue = getHex(light.getBlue());
-        
-        StringBuilder lightBuilder = new StringBuilder();
-            lightBuilder.append("#").append(lightRed).append(lightGreen).append(lightBlue);
-        String lightString = lightBuilder.toString();
-        
-        
-        String darkRed = getHex(dark.getRed());
-        String darkGreen = getHex(dark.getGreen());
-        String darkBlue = getHex(dark.getBlue());
-
-        StringBuilder darkBuilder = new StringBuilder();
-            darkBuilder.append("#").append(darkRed).append(darkGreen).append(darkBlue);
-        String darkString = darkBuilder.toString();
-
-        System.out.println(lightString + " " + darkString);
-        
-        String suffix = "_" + id + "}";
-        templateData = templateData.replace(STAR_BORDER_LIGHT + suffix, lightString);
-        templateData = templateData.replace(STAR_BORDER_DARK + suffix, darkString);
-        templateData = templateData.replace(STAR_INNER_1 + suffix, adjustBrightness(fillColor, 2f));
-        templateData = templateData.replace(STAR_INNER_2 + suffix, adjustBrightness(fillColor, 0.9f));
-        templateData = templateData.replace(STAR_INNER_3 + suffix, adjustBrightness(fillColor, 0.8f));
-        templateData = templateData.replace(STAR_INNER_4 + suffix, adjustBrightness(fillColor, 0.7f));
-        templateData = templateData.replace(STAR_INNER_5 + suffix, adjustBrightness(fillColor, 0.65f));
-        
-        return templateData;
+    static List<File> findIcons(File dir, String prefix, boolean overwrite) {
+        List<File> svgs = new ArrayList<File>();
+        File[] children = dir.listFiles();
+        if (children == null) {
+            System.err.println("Not a directory: " + dir);
+            return svgs;
+        }
+
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory() || !name.startsWith(prefix)
+                    || !name.endsWith(".gif")) {
+                continue;
+            }
+
+            File svg = new File(dir, name.substring(0, name.length() - 4)
+                    + ".svg");
+            if (overwrite || !svg.exists()) {
+                svgs.add(svg);
+            }
+        }
+        return svgs;
     }
 
-    private static String readTemplate(File template) {
-        BufferedReader bufReader = null;
+    /**
+     * Generates icons on a thread pool, writing each next to its gif or, if
+     * a rasterizer is given, submitting it to be rendered from memory.
+     *
+     * @param svgs
+     *            the svgs to generate
+     * @param resources
+     *            the directory holding the icon sets
+     * @param targetDir
+     *            the directory rendered icon sets are written to
+     * @param rasterizer
+     *            renders the icons, or null to write the svgs
+     * @param threads
+     * @return the number of icons generated
+     */
+    public int generateIcons(List<File> svgs, final File resources,
+            final File targetDir, final RasterizerUtil rasterizer, int threads) {
+        final AtomicInteger generated = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
         try {
-            FileReader reader = new FileReader(template);
-            bufReader = new BufferedReader(reader);
-
-            String line = bufReader.readLine();
-            StringBuilder builder = new StringBuilder();
-            
-            while(line != null) {
-                builder.append(line);
-                builder.append("\n");
-                line = bufReader.readLine();
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final File svg : svgs) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        String name = svg.getName();
+                        String[] values = generate(name.substring(0,
+                                name.length() - 4));
+                        if (rasterizer == null) {
+                            // Streamed, without the svg as a whole string
+                            Writer out = Files.newBufferedWriter(
+                                    svg.toPath(), UTF8);
+                            try {
+                                template.write(out, values);
+                            } finally {
+                                out.close();
+                            }
+                        } else {
+                            submit(rasterizer, resources, targetDir, svg,
+                                    template.fillBytes(values));
+                        }
+                        generated.incrementAndGet();
+                        return null;
+                    }
+                }));
             }
-            
-            return builder.toString();
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } finally {
-            try {
-                bufReader.close();
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    System.err.println("Could not generate " + svgs.get(i)
+                            + ": " + e.getCause());
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
         }
-        
-        return null;
+        return generated.get();
     }
 
+    /**
+     * Hands a generated svg to the rasterizer, with the output locations
+     * it would have if it were in the resources.
+     */
+    private static void submit(final RasterizerUtil rasterizer,
+            File resources, File targetDir, File svg, final byte[] data)
+            throws IOException {
+        Path absoluteResources = resources.toPath().toAbsolutePath()
+                .normalize();
+        Path path = svg.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(absoluteResources)
+                || absoluteResources.relativize(path).getNameCount() < 2) {
+            throw new IOException("Not in an icon set below " + resources);
+        }
+
+        String setName = absoluteResources.relativize(path).getName(0)
+                .toString();
+        IconDiscovery.visit(setName, absoluteResources.resolve(setName), path,
+                new File(targetDir, setName), new IconDiscovery.Listener() {
+                    public void iconFound(String setName, File svg,
+                            File outputDir, File disabledDir) {
+                        RasterizerUtil.IconDef icon = rasterizer.addIcon(
+                                setName, svg, outputDir, disabledDir);
+                        icon.svgData = data;
+                        rasterizer.submit(icon);
+                    }
+                });
+    }
+
+    /**
+     * Generates the icons of the directories in eclipse.svg.generate.dirs,
+     * see build.xml.
+     *
+     * @param args
+     */
     public static void main(String[] args) {
-        File root = new File("src/main/resources/eclipse.platform.ui/bundles/org.eclipse.e4.ui.model.workbench.edit/icons/full/ctool16");
-        File template = new File("reference/star.svg");
-        
-        generateIcons(root, template, root);
+        File resources = new File("src/main/resources");
+        File targetDir = new File("target");
+        File templateFile = new File(System.getProperty(
+                "eclipse.svg.generate.template", "reference/star.svg"));
+        String dirs = System.getProperty("eclipse.svg.generate.dirs",
+                "src/main/resources/eclipse.platform.ui/bundles/org.eclipse.e4.ui.model.workbench.edit/icons/full/ctool16");
+        String prefix = System.getProperty("eclipse.svg.generate.prefix",
+                "Create");
+        long seed = Long.getLong("eclipse.svg.generate.seed", 0);
+        boolean overwrite = Boolean
+                .getBoolean("eclipse.svg.generate.overwrite");
+        boolean render = Boolean.getBoolean("eclipse.svg.generate.render");
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        SvgTemplate template;
+        try {
+            template = SvgTemplate.read(templateFile);
+        } catch (IOException e) {
+            System.err.println("Could not read template " + templateFile
+                    + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        List<File> svgs = new ArrayList<File>();
+        for (String dir : dirs.split(File.pathSeparator)) {
+            if (dir.trim().length() > 0) {
+                svgs.addAll(findIcons(new File(dir.trim()), prefix, overwrite));
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        RasterizerUtil rasterizer = null;
+        if (render) {
+            rasterizer = new RasterizerUtil(threads,
+                    RenderSettings.fromSystemProperties());
+        }
+
+        E4EditStarGenerator generator = new E4EditStarGenerator(template, seed);
+        int generated = generator.generateIcons(svgs, resources, targetDir,
+                rasterizer, threads);
+        if (rasterizer != null) {
+            rasterizer.awaitRendering();
+        }
+
+        System.out.println(generated + " Icons Generated"
+                + (rasterizer != null ? ", " + rasterizer.getIconsRendered()
+                        + " Rendered" : "") + ", Took: "
+                + (System.currentTimeMillis() - startTime) + " ms.");
     }
 
 }
@@ -0,0 +1,298 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import com.mortennobel.imagescaling.ResampleFilters;
+
+/**
+ * <p>Scores how closely a rendered icon matches the legacy gif it replaces,
+ * so the icons that drifted from their gif can be found without looking
+ * through every row of a comparison gallery.</p>
+ *
+ * <p>The score is the structural similarity (SSIM) of the two icons' luma,
+ * both drawn over white, times one minus the difference in the area they
+ * cover. SSIM compares local brightness, contrast and structure in a small
+ * Gaussian window around each pixel, so an icon that is a little smoother
+ * or sharper than its gif still scores high while a changed shape or a
+ * lost detail doesn't. The coverage term catches what luma over white
+ * can't, e.g. white parts of an icon that went missing. 1 is a perfect
+ * match.</p>
+ *
+ * <p>Gifs have one bit of alpha and icons are antialiased, so even a
+ * faithful icon scores a little below 1.</p>
+ */
+public class GifFidelity {
+
+    /** The SSIM constants for 8 bit channels, (0.01 * 255)^2 and (0.03 * 255)^2. */
+    private static final double C1 = 6.5025, C2 = 58.5225;
+
+    /** The radius and standard deviation of the SSIM window. */
+    private static final int RADIUS = 3;
+
+    private static final double SIGMA = 1.5;
+
+    /** The pixels an icon may be moved by to line it up with its gif. */
+    private static final int MAX_SHIFT = 1;
+
+    private static final double[] WINDOW = new double[RADIUS * 2 + 1];
+
+    static {
+        for (int i = -RADIUS; i <= RADIUS; i++) {
+            WINDOW[i + RADIUS] = Math.exp(-i * i / (2 * SIGMA * SIGMA));
+        }
+    }
+
+    /** Scales renders of another size than their gif to it. */
+    private static final IconResampler RESAMPLER = new IconResampler(
+            ResampleFilters.getBoxFilter());
+
+    /**
+     * <p>How well one icon matches its gif.</p>
+     */
+    static class Score {
+
+        /** The icon set the icon belongs to. */
+        final String set;
+
+        /** The rendered raster. */
+        final File file;
+
+        /** SSIM of the luma, 1 for identical icons. */
+        final double ssim;
+
+        /** The share of the covered area covered by only one of them. */
+        final double coverageDifference;
+
+        /** The pixels the icon was moved by to best match the gif. */
+        final int dx, dy;
+
+        Score(String set, File file, double ssim, double coverageDifference,
+                int dx, int dy) {
+            this.set = set;
+            this.file = file;
+            this.ssim = ssim;
+            this.coverageDifference = coverageDifference;
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        /**
+         * @return the combined score, 1 for identical icons
+         */
+        double getScore() {
+            return Math.max(0, ssim) * (1 - coverageDifference);
+        }
+    }
+
+    /**
+     * Scores a rendered icon against its gif, scaling the icon to the gif's
+     * size if they differ.
+     *
+     * @param set
+     * @param file
+     *            the rendered raster, for the report
+     * @param gif
+     * @param icon
+     * @return the score
+     */
+    public static Score score(String set, File file, BufferedImage gif,
+            BufferedImage icon) {
+        int width = gif.getWidth();
+        int height = gif.getHeight();
+        if (icon.getWidth() != width || icon.getHeight() != height) {
+            icon = RESAMPLER.resample(icon, width, height);
+        }
+
+        int[] gifPixels = gif.getRGB(0, 0, width, height, null, 0, width);
+        int[] iconPixels = icon.getRGB(0, 0, width, height, null, 0, width);
+
+        double[] gifLuma = new double[gifPixels.length];
+        for (int i = 0; i < gifPixels.length; i++) {
+            gifLuma[i] = lumaOverWhite(gifPixels[i]);
+        }
+
+        // A redrawn icon is often a pixel off its gif, which shouldn't
+        // count as much as a different shape, so the best alignment within
+        // a pixel is scored
+        Score best = null;
+        int[] shifted = new int[iconPixels.length];
+        double[] iconLuma = new double[iconPixels.length];
+        for (int dy = -MAX_SHIFT; dy <= MAX_SHIFT; dy++) {
+            for (int dx = -MAX_SHIFT; dx <= MAX_SHIFT; dx++) {
+                shift(iconPixels, shifted, width, height, dx, dy);
+
+                long alphaDifference = 0, alphaCovered = 0;
+                for (int i = 0; i < gifPixels.length; i++) {
+                    iconLuma[i] = lumaOverWhite(shifted[i]);
+
+                    int gifAlpha = gifPixels[i] >>> 24;
+                    int iconAlpha = shifted[i] >>> 24;
+                    alphaDifference += Math.abs(gifAlpha - iconAlpha);
+                    alphaCovered += Math.max(gifAlpha, iconAlpha);
+                }
+
+                Score score = new Score(set, file, ssim(gifLuma, iconLuma,
+                        width, height), alphaCovered == 0 ? 0
+                        : alphaDifference / (double) alphaCovered, dx, dy);
+                if (best == null || score.getScore() > best.getScore()) {
+                    best = score;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Moves an image's pixels, filling in with transparent pixels.
+     */
+    private static void shift(int[] pixels, int[] shifted, int width,
+            int height, int dx, int dy) {
+        for (int y = 0; y < height; y++) {
+            int sy = y - dy;
+            for (int x = 0; x < width; x++) {
+                int sx = x - dx;
+                shifted[y * width + x] = sx < 0 || sx >= width || sy < 0
+                        || sy >= height ? 0 : pixels[sy * width + sx];
+            }
+        }
+    }
+
+    private static double lumaOverWhite(int argb) {
+        double alpha = (argb >>> 24) / 255.0;
+        double luma = 0.299 * ((argb >> 16) & 0xff) + 0.587
+                * ((argb >> 8) & 0xff) + 0.114 * (argb & 0xff);
+        return luma * alpha + 255 * (1 - alpha);
+    }
+
+    /**
+     * @return the mean SSIM of two single channel images, with the window
+     *         cut off and its weights renormalized at the edges
+     */
+    static double ssim(double[] a, double[] b, int width, int height) {
+        double total = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double weights = 0, meanA = 0, meanB = 0;
+                double squaresA = 0, squaresB = 0, products = 0;
+                for (int dy = -RADIUS; dy <= RADIUS; dy++) {
+                    int sy = y + dy;
+                    if (sy < 0 || sy >= height) {
+                        continue;
+                    }
+                    for (int dx = -RADIUS; dx <= RADIUS; dx++) {
+                        int sx = x + dx;
+                        if (sx < 0 || sx >= width) {
+                            continue;
+                        }
+                        double weight = WINDOW[dy + RADIUS] * WINDOW[dx + RADIUS];
+                        double va = a[sy * width + sx];
+                        double vb = b[sy * width + sx];
+                        weights += weight;
+                        meanA += weight * va;
+                        meanB += weight * vb;
+                        squaresA += weight * va * va;
+                        squaresB += weight * vb * vb;
+                        products += weight * va * vb;
+                    }
+                }
+                meanA /= weights;
+                meanB /= weights;
+                double varianceA = squaresA / weights - meanA * meanA;
+                double varianceB = squaresB / weights - meanB * meanB;
+                double covariance = products / weights - meanA * meanB;
+
+                total += (2 * meanA * meanB + C1) * (2 * covariance + C2)
+                        / ((meanA * meanA + meanB * meanB + C1)
+                                * (varianceA + varianceB + C2));
+            }
+        }
+        return total / (width * height);
+    }
+
+    /**
+     * @param scores
+     * @return the scores, worst match first
+     */
+    public static List<Score> rank(Collection<Score> scores) {
+        List<Score> ranked = new ArrayList<Score>(scores);
+        Collections.sort(ranked, new Comparator<Score>() {
+            public int compare(Score a, Score b) {
+                int order = Double.compare(a.getScore(), b.getScore());
+                return order != 0 ? order : a.file.compareTo(b.file);
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Writes the ranked scores as CSV, worst match first.
+     *
+     * @param ranked
+     * @param root
+     *            the directory the rasters' paths are given relative to
+     * @param file
+     * @throws IOException
+     */
+    public static void writeCsv(List<Score> ranked, File root, File file)
+            throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("score,ssim,coverage_difference,dx,dy,set,icon");
+            for (Score score : ranked) {
+                out.println(String.format(Locale.ROOT,
+                        "%.4f,%.4f,%.4f,%d,%d,%s,%s", score.getScore(),
+                        score.ssim, score.coverageDifference, score.dx,
+                        score.dy, score.set, relativeName(root, score.file)));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Prints how many icons are below the threshold and the worst of them.
+     *
+     * @param out
+     * @param ranked
+     * @param root
+     *            the directory the rasters' paths are given relative to
+     * @param threshold
+     * @param count
+     *            the number of icons to print
+     */
+    public static void printSummary(PrintStream out, List<Score> ranked,
+            File root, double threshold, int count) {
+        int below = 0;
+        double total = 0;
+        for (Score score : ranked) {
+            below += score.getScore() < threshold ? 1 : 0;
+            total += score.getScore();
+        }
+        out.println(String.format(Locale.ROOT,
+                "GIF fidelity: %d icons scored, mean %.3f, %d below %.2f",
+                ranked.size(), ranked.isEmpty() ? 1 : total / ranked.size(),
+                below, threshold));
+        for (int i = 0; i < Math.min(count, below); i++) {
+            Score score = ranked.get(i);
+            out.println(String.format(Locale.ROOT,
+                    "  %.3f  ssim %.3f  coverage %.3f  %s",
+                    score.getScore(), score.ssim, score.coverageDifference,
+                    relativeName(root, score.file)));
+        }
+    }
+
+    private static String relativeName(File root, File file) {
+        return root.toPath().toAbsolutePath().normalize()
+                .relativize(file.toPath().toAbsolutePath().normalize())
+                .toString().replace(File.separatorChar, '/');
+    }
+}
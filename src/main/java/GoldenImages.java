@@ -0,0 +1,503 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * <p>Checks the rendered icons against a stored golden set, so a Batik
+ * upgrade, a change to the rendering hints or an svg edit can't change the
+ * output unnoticed.</p>
+ *
+ * <p>The golden set holds a PNG for every raster, at the same path below
+ * the golden directory as the raster has below the target directory. Each
+ * raster is compared as it comes out of the render, on the encode thread
+ * that has it in memory, so only the golden images are read from disk. The
+ * PNGs are lossless, so an unchanged icon matches exactly. A pixel differs
+ * when one of its premultiplied channels is more than the tolerance apart,
+ * and an icon differs when more than the threshold of its pixels do. Each
+ * icon that differs gets a diff image in target/golden-diff, the golden
+ * raster, the new raster and the differing pixels in red side by side.</p>
+ *
+ * <p>A raster without a golden image and a golden image without a raster,
+ * e.g. of an icon that was removed or failed to render, fail the check
+ * too, so a check against an empty or misplaced golden set can't pass.</p>
+ *
+ * <p>In update mode the rendered PNGs are written to the golden set
+ * instead, after an intended change.</p>
+ */
+public class GoldenImages {
+
+    /** The size the panels of diff images are scaled up to, at least. */
+    private static final int DIFF_PANEL_SIZE = 96;
+
+    /** How many of the differing icons are printed. */
+    private static final int PRINTED_DIFFERENCES = 20;
+
+    /**
+     * <p>A raster that differs from its golden image.</p>
+     */
+    static class Difference {
+
+        /** The raster's path relative to the target directory. */
+        final String name;
+
+        /** The pixels differing by more than the tolerance. */
+        final int pixels;
+
+        /** The largest difference of any premultiplied channel. */
+        final int maxDifference;
+
+        /** Whether the raster has a different size than its golden image. */
+        final boolean resized;
+
+        Difference(String name, int pixels, int maxDifference, boolean resized) {
+            this.name = name;
+            this.pixels = pixels;
+            this.maxDifference = maxDifference;
+            this.resized = resized;
+        }
+    }
+
+    private final File goldenDir;
+
+    private final File targetDir;
+
+    private final File diffDir;
+
+    private final boolean update;
+
+    private final int tolerance;
+
+    private final int threshold;
+
+    private AtomicInteger compared = new AtomicInteger();
+
+    /** The rasters without a golden image. */
+    private ConcurrentLinkedQueue<String> missing = new ConcurrentLinkedQueue<String>();
+
+    /** The names of the rasters checked or written. */
+    private Set<String> checked = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** The golden images without a raster, found by findStale. */
+    private List<String> stale = new ArrayList<String>();
+
+    private AtomicInteger updated = new AtomicInteger();
+
+    /** Rasters that could not be checked. */
+    private AtomicInteger errors = new AtomicInteger();
+
+    private ConcurrentLinkedQueue<Difference> differences = new ConcurrentLinkedQueue<Difference>();
+
+    /**
+     * @param goldenDir
+     *            the golden set
+     * @param targetDir
+     *            the directory the icons are rendered to
+     * @param update
+     *            whether to write the rendered rasters to the golden set
+     *            rather than compare them
+     * @param tolerance
+     *            the difference of a channel, 0 to 255, that's still the
+     *            same
+     * @param threshold
+     *            the number of differing pixels an icon may have
+     */
+    public GoldenImages(File goldenDir, File targetDir, boolean update,
+            int tolerance, int threshold) {
+        this.goldenDir = goldenDir;
+        this.targetDir = targetDir;
+        this.diffDir = new File(targetDir, "golden-diff");
+        this.update = update;
+        this.tolerance = tolerance;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Compares a rendered raster with its golden image, or in update mode
+     * makes it the golden image. Safe to call from several threads.
+     *
+     * @param output
+     *            the file the raster is written to
+     * @param image
+     *            the rendered raster
+     * @param png
+     *            the raster encoded as PNG
+     */
+    public void check(File output, BufferedImage image, byte[] png) {
+        try {
+            compare(output, image, png);
+        } catch (IOException e) {
+            // Fails the check without failing the icon
+            errors.incrementAndGet();
+            System.err.println("Could not check " + output
+                    + " against its golden image: " + e);
+        }
+    }
+
+    private void compare(File output, BufferedImage image, byte[] png)
+            throws IOException {
+        String name = targetDir.toPath().toAbsolutePath().normalize()
+                .relativize(output.toPath().toAbsolutePath().normalize())
+                .toString().replace(File.separatorChar, '/');
+        File golden = new File(goldenDir, name);
+        checked.add(name);
+
+        if (update) {
+            if (!golden.isFile()
+                    || !Arrays.equals(png,
+                            Files.readAllBytes(golden.toPath()))) {
+                golden.getParentFile().mkdirs();
+                Files.write(golden.toPath(), png);
+                updated.incrementAndGet();
+            }
+            return;
+        }
+
+        if (!golden.isFile()) {
+            missing.add(name);
+            return;
+        }
+
+        BufferedImage expected = ImageIO.read(golden);
+        if (expected == null) {
+            throw new IOException("Could not decode golden image " + golden);
+        }
+        compared.incrementAndGet();
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (expected.getWidth() != width || expected.getHeight() != height) {
+            differences.add(new Difference(name, width * height, 255, true));
+            writeDiff(name, expected, image, null);
+            return;
+        }
+
+        int[] expectedPixels = pixels(expected);
+        int[] pixels = pixels(image);
+        boolean[] differing = null;
+        int count = 0;
+        int max = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            int a = expectedPixels[i];
+            int b = pixels[i];
+            if (a == b) {
+                continue;
+            }
+
+            int difference = difference(a, b);
+            if (difference > tolerance) {
+                if (differing == null) {
+                    differing = new boolean[pixels.length];
+                }
+                differing[i] = true;
+                count++;
+            }
+            max = Math.max(max, difference);
+        }
+
+        if (count > threshold) {
+            differences.add(new Difference(name, count, max, false));
+            writeDiff(name, expected, image, differing);
+        }
+    }
+
+    /**
+     * @return the image's non-premultiplied ARGB pixels, row by row
+     */
+    private static int[] pixels(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB
+                && image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer())
+                    .getData();
+            if (data.length == width * height) {
+                return data;
+            }
+        }
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    /**
+     * @return the largest difference of the premultiplied channels of two
+     *         pixels
+     */
+    static int difference(int a, int b) {
+        int alphaA = a >>> 24;
+        int alphaB = b >>> 24;
+        int max = Math.abs(alphaA - alphaB);
+        for (int shift = 0; shift < 24; shift += 8) {
+            int channelA = ((a >>> shift) & 0xff) * alphaA / 255;
+            int channelB = ((b >>> shift) & 0xff) * alphaB / 255;
+            max = Math.max(max, Math.abs(channelA - channelB));
+        }
+        return max;
+    }
+
+    /**
+     * Writes the golden raster, the rendered raster and the differing
+     * pixels side by side, scaled up so they can be seen.
+     *
+     * @param differing
+     *            the differing pixels, or null if the sizes differ
+     */
+    private void writeDiff(String name, BufferedImage expected,
+            BufferedImage image, boolean[] differing) throws IOException {
+        int width = Math.max(expected.getWidth(), image.getWidth());
+        int height = Math.max(expected.getHeight(), image.getHeight());
+        int scale = Math.max(1, DIFF_PANEL_SIZE / Math.max(width, height));
+        int panel = width * scale + scale;
+
+        BufferedImage diff = new BufferedImage(panel * 3 - scale, height
+                * scale, BufferedImage.TYPE_INT_ARGB);
+        draw(diff, expected, 0, scale);
+        draw(diff, image, panel, scale);
+
+        // Differing pixels in red, the rest a faint copy of the golden image
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int argb;
+                if (differing == null || differing[y * image.getWidth() + x]) {
+                    argb = 0xffff0000;
+                } else {
+                    argb = (expected.getRGB(x, y) >>> 26) << 24 | 0x808080;
+                }
+                fill(diff, panel * 2 + x * scale, y * scale, scale, argb);
+            }
+        }
+
+        File file = new File(diffDir, name);
+        file.getParentFile().mkdirs();
+        ImageIO.write(diff, "png", file);
+    }
+
+    private static void draw(BufferedImage target, BufferedImage image,
+            int left, int scale) {
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                fill(target, left + x * scale, y * scale, scale,
+                        image.getRGB(x, y));
+            }
+        }
+    }
+
+    private static void fill(BufferedImage target, int left, int top,
+            int scale, int argb) {
+        for (int y = top; y < top + scale; y++) {
+            for (int x = left; x < left + scale; x++) {
+                target.setRGB(x, y, argb);
+            }
+        }
+    }
+
+    /**
+     * Finds the golden images no raster was checked against, once every
+     * icon is rendered.
+     *
+     * @throws IOException
+     *             if the golden set could not be listed
+     */
+    public void findStale() throws IOException {
+        stale.clear();
+        if (!goldenDir.isDirectory()) {
+            return;
+        }
+
+        List<Path> paths = new ArrayList<Path>();
+        collect(goldenDir, paths);
+        Path root = goldenDir.toPath();
+        for (Path path : paths) {
+            String name = root.relativize(path).toString()
+                    .replace(File.separatorChar, '/');
+            if (name.endsWith(".png") && !checked.contains(name)) {
+                stale.add(name);
+            }
+        }
+        Collections.sort(stale);
+    }
+
+    /**
+     * @return whether the check failed: a raster differs from its golden
+     *         image, has none or could not be checked, or a golden image
+     *         has no raster. In update mode, whether a raster could not be
+     *         written.
+     */
+    public boolean hasDifferences() {
+        if (update) {
+            return errors.get() > 0;
+        }
+        return !differences.isEmpty() || !missing.isEmpty()
+                || !stale.isEmpty() || errors.get() > 0;
+    }
+
+    /**
+     * @return the rasters that differ, those with the most differing
+     *         pixels first
+     */
+    public List<Difference> getDifferences() {
+        List<Difference> sorted = new ArrayList<Difference>(differences);
+        Collections.sort(sorted, new Comparator<Difference>() {
+            public int compare(Difference a, Difference b) {
+                if (a.pixels != b.pixels) {
+                    return a.pixels > b.pixels ? -1 : 1;
+                }
+                return a.name.compareTo(b.name);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @param out
+     *            the stream to print the outcome of the check to
+     */
+    public void printSummary(PrintStream out) {
+        if (update) {
+            out.println("Golden images: " + updated.get()
+                    + " written to " + goldenDir + ", " + errors.get()
+                    + " could not be written");
+            if (!stale.isEmpty()) {
+                out.println(stale.size()
+                        + " golden images have no icon, delete them if their icons were removed:");
+                printNames(out, stale);
+            }
+            return;
+        }
+
+        if (!goldenDir.isDirectory()) {
+            out.println("No golden set in " + goldenDir
+                    + ", record one with -Dgolden=update");
+        }
+
+        List<Difference> sorted = getDifferences();
+        List<String> missingNames = getMissing();
+        out.println("Golden images: " + compared.get() + " compared, "
+                + sorted.size() + " differ, " + missingNames.size()
+                + " without a golden image, " + stale.size()
+                + " without an icon, " + errors.get()
+                + " could not be checked");
+        for (int i = 0; i < Math.min(PRINTED_DIFFERENCES, sorted.size()); i++) {
+            Difference difference = sorted.get(i);
+            out.println(String.format(Locale.ROOT, "  %5d px  max %3d  %s%s",
+                    difference.pixels, difference.maxDifference,
+                    difference.name, difference.resized ? " (resized)" : ""));
+        }
+        if (!sorted.isEmpty()) {
+            out.println("Diff images written to " + diffDir);
+        }
+        if (!missingNames.isEmpty()) {
+            out.println("Without a golden image:");
+            printNames(out, missingNames);
+        }
+        if (!stale.isEmpty()) {
+            out.println("Golden images without an icon:");
+            printNames(out, stale);
+        }
+    }
+
+    private static void printNames(PrintStream out, List<String> names) {
+        for (int i = 0; i < Math.min(PRINTED_DIFFERENCES, names.size()); i++) {
+            out.println("  " + names.get(i));
+        }
+        if (names.size() > PRINTED_DIFFERENCES) {
+            out.println("  ... " + (names.size() - PRINTED_DIFFERENCES)
+                    + " more");
+        }
+    }
+
+    /**
+     * @return the rasters without a golden image, sorted by name
+     */
+    public List<String> getMissing() {
+        List<String> sorted = new ArrayList<String>(missing);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Writes the outcome of the check as JSON.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeJson(File file) throws IOException {
+        JsonWriter json = new JsonWriter(new FileWriter(file));
+        try {
+            json.beginObject();
+            json.name("golden").value(goldenDir.getPath());
+            json.name("tolerance").value(tolerance);
+            json.name("threshold").value(threshold);
+            json.name("compared").value(compared.get());
+            json.name("missing").value(missing.size());
+            json.name("errors").value(errors.get());
+            json.name("missingImages").beginArray();
+            for (String name : getMissing()) {
+                json.value(name);
+            }
+            json.endArray();
+            json.name("stale").beginArray();
+            for (String name : stale) {
+                json.value(name);
+            }
+            json.endArray();
+            json.name("differences").beginArray();
+            for (Difference difference : getDifferences()) {
+                json.beginObject();
+                json.name("name").value(difference.name);
+                json.name("pixels").value(difference.pixels);
+                json.name("maxDifference").value(difference.maxDifference);
+                json.name("resized").value(difference.resized);
+                json.name("diff").value(
+                        new File(diffDir, difference.name).getPath());
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        } finally {
+            json.close();
+        }
+    }
+
+    /**
+     * Deletes the diff images of an earlier check.
+     *
+     * @throws IOException
+     */
+    public void clearDiffs() throws IOException {
+        if (!diffDir.isDirectory()) {
+            return;
+        }
+        List<Path> paths = new ArrayList<Path>();
+        collect(diffDir, paths);
+        for (int i = paths.size() - 1; i >= 0; i--) {
+            Files.delete(paths.get(i));
+        }
+    }
+
+    private static void collect(File file, List<Path> paths) {
+        paths.add(file.toPath());
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                collect(child, paths);
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.imageio.ImageIO;
+
+/**
+ * <p>Packs the rendered icons of one bundle into a few atlas images, one set
+ * per variant (16, 16@2x, 16-disabled...), with an index of where each icon
+ * is. A product can then load a bundle's icons with one read per atlas
+ * instead of opening every PNG.</p>
+ *
+ * <p>The index is written twice. atlas.json is for people and tools.
+ * atlas.index is a compact big-endian binary file meant to be memory mapped:</p>
+ *
+ * <pre>
+ * int    magic 'ESVA'
+ * short  version (1)
+ * short  page count, then per page: the file name
+ * int    entry count, then per entry (14 bytes, sorted by name):
+ *        int name offset, short page, short x, y, width, height
+ * the names, at the offsets above
+ * </pre>
+ *
+ * <p>Strings are written as by DataOutput.writeUTF, a short length followed
+ * by the (modified) UTF-8 bytes.</p>
+ *
+ * <p>Entry names are the icon's path within the bundle, e.g.
+ * icons/full/obj16/file_obj.png, so they can be binary searched with the
+ * path a plug-in already uses.</p>
+ */
+public class IconAtlas {
+
+    static final int MAGIC = 0x45535641;
+
+    static final int VERSION = 1;
+
+    /** The largest atlas width and height. */
+    private static final int MAX_SIZE = 2048;
+
+    /** Keeps neighbouring icons from bleeding into each other. */
+    private static final int PADDING = 1;
+
+    /**
+     * <p>An icon placed in an atlas.</p>
+     */
+    private static class Entry {
+        String name;
+        int page;
+        int x, y, width, height;
+    }
+
+    private final String bundle;
+
+    /** Variant -> icon name -> rendered file. */
+    private final Map<String, Map<String, File>> variants = new TreeMap<String, Map<String, File>>();
+
+    /**
+     * @param bundle
+     *            the bundle's name, used in messages
+     */
+    public IconAtlas(String bundle) {
+        this.bundle = bundle;
+    }
+
+    /**
+     * Adds a rendered icon, the first file added with a name wins.
+     *
+     * @param variant
+     *            the variant of the icon, icons of each variant are packed
+     *            into their own atlases
+     * @param name
+     *            the icon's path within the bundle
+     * @param file
+     *            the rendered PNG
+     */
+    public void add(String variant, String name, File file) {
+        Map<String, File> icons = variants.get(variant);
+        if (icons == null) {
+            icons = new LinkedHashMap<String, File>();
+            variants.put(variant, icons);
+        }
+        if (!icons.containsKey(name)) {
+            icons.put(name, file);
+        }
+    }
+
+    /**
+     * Packs and writes the atlases and their index. Icons whose PNG
+     * doesn't exist (failed renders) are left out.
+     *
+     * @param dir
+     *            the directory to write the bundle's atlases to
+     * @param encoder
+     *            writes the atlas images
+     * @return the number of icons written to the atlases
+     * @throws IOException
+     */
+    public int write(File dir, PngEncoder encoder) throws IOException {
+        dir.mkdirs();
+
+        List<String> pageNames = new ArrayList<String>();
+        List<Entry> entries = new ArrayList<Entry>();
+
+        for (Map.Entry<String, Map<String, File>> variant : variants
+                .entrySet()) {
+            List<AtlasPacker.Item> items = new ArrayList<AtlasPacker.Item>();
+            Map<String, BufferedImage> images = new LinkedHashMap<String, BufferedImage>();
+            for (Map.Entry<String, File> icon : variant.getValue().entrySet()) {
+                if (!icon.getValue().exists()) {
+                    continue;
+                }
+
+                BufferedImage image = ImageIO.read(icon.getValue());
+                if (image == null) {
+                    System.err.println("Could not read " + icon.getValue()
+                            + " for the " + bundle + " atlas");
+                    continue;
+                }
+                images.put(icon.getKey(), image);
+                items.add(new AtlasPacker.Item(icon.getKey(),
+                        image.getWidth(), image.getHeight()));
+            }
+
+            if (items.isEmpty()) {
+                continue;
+            }
+
+            AtlasPacker packer = new AtlasPacker(MAX_SIZE, PADDING);
+            packer.pack(items);
+
+            // Compose each page and write it
+            int firstPage = pageNames.size();
+            for (int page = 0; page < packer.getPageCount(); page++) {
+                Rectangle size = packer.getPageSize(page);
+                BufferedImage atlas = new BufferedImage(size.width,
+                        size.height, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = atlas.createGraphics();
+                // Copy the pixels as they are, blending onto the empty atlas
+                // loses the color of transparent pixels
+                g.setComposite(AlphaComposite.Src);
+                for (AtlasPacker.Item item : items) {
+                    if (item.page == page) {
+                        g.drawImage(images.get(item.key), item.x, item.y, null);
+                    }
+                }
+                g.dispose();
+
+                String pageName = "atlas-" + variant.getKey()
+                        + (packer.getPageCount() > 1 ? "-" + page : "")
+                        + ".png";
+                encoder.write(atlas, new File(dir, pageName));
+                pageNames.add(pageName);
+            }
+
+            for (AtlasPacker.Item item : items) {
+                Entry entry = new Entry();
+                entry.name = (String) item.key;
+                entry.page = firstPage + item.page;
+                entry.x = item.x;
+                entry.y = item.y;
+                entry.width = item.width;
+                entry.height = item.height;
+                entries.add(entry);
+            }
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry o1, Entry o2) {
+                return o1.name.compareTo(o2.name);
+            }
+        });
+
+        writeIndex(new File(dir, "atlas.index"), pageNames, entries);
+        writeJson(new File(dir, "atlas.json"), pageNames, entries);
+
+        return entries.size();
+    }
+
+    private static void writeIndex(File file, List<String> pageNames,
+            List<Entry> entries) throws IOException {
+        // The names go after the fixed size records, find their offsets
+        ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+        DataOutputStream names = new DataOutputStream(nameBytes);
+        int[] offsets = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            offsets[i] = names.size();
+            names.writeUTF(entries.get(i).name);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(pageNames.size());
+            for (String pageName : pageNames) {
+                out.writeUTF(pageName);
+            }
+
+            int namesStart = out.size() + 4 + entries.size() * 14;
+            out.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                out.writeInt(namesStart + offsets[i]);
+                out.writeShort(entry.page);
+                out.writeShort(entry.x);
+                out.writeShort(entry.y);
+                out.writeShort(entry.width);
+                out.writeShort(entry.height);
+            }
+
+            nameBytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeJson(File file, List<String> pageNames,
+            List<Entry> entries) throws IOException {
+        JsonWriter json = new JsonWriter(new FileWriter(file));
+        try {
+            json.beginObject();
+            json.name("version").value(VERSION);
+
+            json.name("pages").beginArray();
+            for (String pageName : pageNames) {
+                json.value(pageName);
+            }
+            json.endArray();
+
+            json.name("icons").beginObject();
+            for (Entry entry : entries) {
+                json.name(entry.name).beginObject();
+                json.name("page").value(entry.page);
+                json.name("x").value(entry.x);
+                json.name("y").value(entry.y);
+                json.name("width").value(entry.width);
+                json.name("height").value(entry.height);
+                json.endObject();
+            }
+            json.endObject();
+
+            json.endObject();
+        } finally {
+            json.close();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Finds the svg icons under the resources directory and works out where
+ * their rasters go, handing each icon to a {@link Listener} as soon as it is
+ * found so rendering can start before the walk is over.</p>
+ *
+ * <p>Every directory is read once by the walk. The output and disabled
+ * output directories are worked out once per directory rather than per
+ * icon, and the top-level icon sets (eclipse.jdt.ui, eclipse.platform.ui,
+ * ...) are walked in parallel.</p>
+ */
+public class IconDiscovery {
+
+    /**
+     * <p>Receives the icons as they are found, called concurrently from the
+     * threads walking different icon sets.</p>
+     */
+    public interface Listener {
+
+        /**
+         * @param setName
+         *            the top-level icon set the icon belongs to
+         * @param svg
+         *            the svg source
+         * @param outputDir
+         *            the directory its rasters go in
+         * @param disabledDir
+         *            the directory its disabled rasters go in, or null if
+         *            the icon has no disabled variant
+         */
+        void iconFound(String setName, File svg, File outputDir,
+                File disabledDir);
+    }
+
+    /**
+     * <p>The output locations shared by every icon in a directory.</p>
+     */
+    private static class DirectoryTargets {
+        File outputDir;
+        File disabledDir;
+    }
+
+    /** The number of icon sets walked at the same time. */
+    private final int threads;
+
+    /**
+     * @param threads
+     *            the number of icon sets to walk in parallel
+     */
+    public IconDiscovery(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Walks every icon set below the resources directory in parallel,
+     * returning once all of them have been walked.
+     *
+     * @param resources
+     *            the directory holding the icon sets
+     * @param outputBase
+     *            the directory the icon set outputs go in
+     * @param listener
+     *            receives the icons as they are found
+     * @throws IOException
+     *             if an icon set could not be walked
+     */
+    public void discover(File resources, final File outputBase,
+            final Listener listener) throws IOException {
+        List<Path> sets = new ArrayList<Path>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(resources
+                .toPath());
+        try {
+            for (Path set : stream) {
+                if (Files.isDirectory(set)) {
+                    sets.add(set);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        if (sets.isEmpty()) {
+            return;
+        }
+
+        ExecutorService walkers = Executors.newFixedThreadPool(Math.min(
+                threads, sets.size()));
+        try {
+            List<Future<Object>> walks = new ArrayList<Future<Object>>();
+            for (final Path set : sets) {
+                walks.add(walkers.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        String setName = set.getFileName().toString();
+                        walk(setName, set, set, new File(outputBase,
+                                setName), listener);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Object> walk : walks) {
+                try {
+                    walk.get();
+                } catch (Exception e) {
+                    throw new IOException("Could not walk icon set", e);
+                }
+            }
+        } finally {
+            walkers.shutdown();
+        }
+    }
+
+    /**
+     * Walks (part of) a single icon set on the calling thread.
+     *
+     * @param setName
+     *            the name of the icon set
+     * @param root
+     *            the icon set's directory, output paths are relative to it
+     * @param start
+     *            the directory to walk, root or one of its descendants
+     * @param outputBase
+     *            the directory the set's output goes in
+     * @param listener
+     *            receives the icons as they are found
+     * @throws IOException
+     */
+    public void walk(final String setName, final Path root, Path start,
+            final File outputBase, final Listener listener) throws IOException {
+        final Map<Path, DirectoryTargets> targets = new HashMap<Path, DirectoryTargets>();
+
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException {
+                targets.put(dir, createTargets(root, dir, outputBase));
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().endsWith("svg")) {
+                    DirectoryTargets dirTargets = targets.get(file.getParent());
+                    listener.iconFound(setName, file.toFile(),
+                            dirTargets.outputDir, dirTargets.disabledDir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+                    throws IOException {
+                targets.remove(dir);
+                if (exc != null) {
+                    throw exc;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Hands a single svg to the listener, with the output locations a walk
+     * of its icon set would give it. Used to pick up icons added after the
+     * icon sets were walked.
+     *
+     * @param setName
+     *            the name of the icon set
+     * @param root
+     *            the icon set's directory
+     * @param svg
+     *            the svg, somewhere below root
+     * @param outputBase
+     *            the directory the set's output goes in
+     * @param listener
+     *            receives the icon
+     */
+    public static void visit(String setName, Path root, Path svg,
+            File outputBase, Listener listener) {
+        DirectoryTargets dirTargets = createTargets(root, svg.getParent(),
+                outputBase);
+        listener.iconFound(setName, svg.toFile(), dirTargets.outputDir,
+                dirTargets.disabledDir);
+    }
+
+    /**
+     * Works out where the icons of a directory go.
+     */
+    private static DirectoryTargets createTargets(Path root, Path dir,
+            File outputBase) {
+        DirectoryTargets dirTargets = new DirectoryTargets();
+        dirTargets.outputDir = outputDir(root, dir, outputBase);
+
+        // Determine if/where to put a disabled version of the icon
+        // Eclipse traditionally uses a prefix of d for disabled, e for
+        // enabled in the folder name
+        Path name = dir.getFileName();
+        Path parent = dir.getParent();
+        if (name != null && parent != null && !dir.equals(root)) {
+            String dirName = name.toString();
+            if (dirName.startsWith("e")) {
+                Path disabled = parent.resolve("d" + dirName.substring(1));
+                if (Files.isDirectory(disabled)) {
+                    dirTargets.disabledDir = outputDir(root, disabled,
+                            outputBase);
+                }
+            }
+        }
+
+        return dirTargets;
+    }
+
+    private static File outputDir(Path root, Path dir, File outputBase) {
+        String relativePath = root.relativize(dir).toString();
+        if (relativePath.length() == 0) {
+            return outputBase;
+        }
+        return new File(outputBase, relativePath);
+    }
+}
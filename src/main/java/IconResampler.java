@@ -0,0 +1,204 @@
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+
+import com.mortennobel.imagescaling.ResampleFilter;
+import com.mortennobel.imagescaling.ResampleFilters;
+
+/**
+ * <p>Scales rendered icons down with one of java-image-scaling's filter
+ * kernels, in two separable passes over premultiplied pixels.</p>
+ *
+ * <p>ResampleOp, which the kernels come from, filters the color channels
+ * without weighting them by alpha, so the transparent black around an icon
+ * darkens its antialiased edges, and places its samples half a source pixel
+ * off, shifting the icon. Neither matters much for photos, both show on a
+ * 16px icon. Here each destination pixel is centered on the source pixels
+ * it covers and the filtered colors are divided by the filtered alpha.</p>
+ */
+public class IconResampler {
+
+    private final ResampleFilter filter;
+
+    /**
+     * @param filter
+     *            the kernel to filter with
+     */
+    public IconResampler(ResampleFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @param name
+     *            a kernel name: box, triangle, hermite, bell, bspline,
+     *            mitchell, bicubic or lanczos3, in any case
+     * @return the kernel
+     * @throws IllegalArgumentException
+     *             if there's no kernel of that name
+     */
+    public static ResampleFilter filter(String name) {
+        String key = name.trim().toLowerCase(Locale.ROOT);
+        if (key.equals("box")) {
+            return ResampleFilters.getBoxFilter();
+        } else if (key.equals("triangle")) {
+            return ResampleFilters.getTriangleFilter();
+        } else if (key.equals("hermite")) {
+            return ResampleFilters.getHermiteFilter();
+        } else if (key.equals("bell")) {
+            return ResampleFilters.getBellFilter();
+        } else if (key.equals("bspline")) {
+            return ResampleFilters.getBSplineFilter();
+        } else if (key.equals("mitchell")) {
+            return ResampleFilters.getMitchellFilter();
+        } else if (key.equals("bicubic")) {
+            return ResampleFilters.getBiCubicFilter();
+        } else if (key.equals("lanczos3")) {
+            return ResampleFilters.getLanczos3Filter();
+        }
+        throw new IllegalArgumentException("Unknown resampling filter '"
+                + name + "', use box, triangle, hermite, bell, bspline, "
+                + "mitchell, bicubic or lanczos3");
+    }
+
+    /**
+     * @param image
+     *            the image to scale
+     * @param width
+     * @param height
+     * @return a new int ARGB image of the given size
+     */
+    public BufferedImage resample(BufferedImage image, int width, int height) {
+        int srcWidth = image.getWidth();
+        int srcHeight = image.getHeight();
+
+        // Premultiplied channels, four floats per pixel
+        float[] src = new float[srcWidth * srcHeight * 4];
+        int[] row = new int[srcWidth];
+        for (int y = 0; y < srcHeight; y++) {
+            image.getRGB(0, y, srcWidth, 1, row, 0, srcWidth);
+            int i = y * srcWidth * 4;
+            for (int x = 0; x < srcWidth; x++) {
+                int argb = row[x];
+                float alpha = (argb >>> 24) / 255.0f;
+                src[i++] = argb >>> 24;
+                src[i++] = ((argb >> 16) & 0xff) * alpha;
+                src[i++] = ((argb >> 8) & 0xff) * alpha;
+                src[i++] = (argb & 0xff) * alpha;
+            }
+        }
+
+        // Scale the rows, then the columns
+        Weights horizontal = new Weights(srcWidth, width);
+        float[] across = new float[width * srcHeight * 4];
+        for (int y = 0; y < srcHeight; y++) {
+            horizontal.apply(src, y * srcWidth * 4, 4, across, y * width * 4,
+                    4);
+        }
+
+        Weights vertical = new Weights(srcHeight, height);
+        float[] scaled = new float[width * height * 4];
+        for (int x = 0; x < width; x++) {
+            vertical.apply(across, x * 4, width * 4, scaled, x * 4, width * 4);
+        }
+
+        BufferedImage result = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        int[] out = new int[width];
+        for (int y = 0; y < height; y++) {
+            int i = y * width * 4;
+            for (int x = 0; x < width; x++) {
+                int alpha = clamp(scaled[i], 255);
+                if (alpha == 0) {
+                    out[x] = 0;
+                } else {
+                    // Ringing kernels can overshoot the alpha they're
+                    // premultiplied by
+                    float unpremultiply = 255.0f / alpha;
+                    out[x] = alpha << 24
+                            | clamp(scaled[i + 1] * unpremultiply, 255) << 16
+                            | clamp(scaled[i + 2] * unpremultiply, 255) << 8
+                            | clamp(scaled[i + 3] * unpremultiply, 255);
+                }
+                i += 4;
+            }
+            result.setRGB(0, y, width, 1, out, 0, width);
+        }
+        return result;
+    }
+
+    private static int clamp(float value, int max) {
+        int rounded = Math.round(value);
+        return rounded < 0 ? 0 : rounded > max ? max : rounded;
+    }
+
+    /**
+     * <p>The normalized kernel weights of every destination pixel along one
+     * axis.</p>
+     */
+    private class Weights {
+
+        /** The first source pixel of each destination pixel. */
+        final int[] first;
+
+        /** The weights of each destination pixel's source pixels. */
+        final float[][] weights;
+
+        Weights(int srcLength, int length) {
+            first = new int[length];
+            weights = new float[length][];
+
+            // Widen the kernel when scaling down so it covers every source
+            // pixel that lands in the destination pixel
+            float scale = srcLength / (float) length;
+            float stretch = Math.max(1.0f, scale);
+            float radius = filter.getSamplingRadius() * stretch;
+
+            for (int i = 0; i < length; i++) {
+                float center = (i + 0.5f) * scale - 0.5f;
+                int start = Math.max(0, (int) Math.ceil(center - radius));
+                int end = Math.min(srcLength - 1,
+                        (int) Math.floor(center + radius));
+
+                float[] pixelWeights = new float[Math.max(0, end - start + 1)];
+                float total = 0;
+                for (int j = start; j <= end; j++) {
+                    float weight = filter.apply((j - center) / stretch);
+                    pixelWeights[j - start] = weight;
+                    total += weight;
+                }
+                if (total != 0) {
+                    for (int j = 0; j < pixelWeights.length; j++) {
+                        pixelWeights[j] /= total;
+                    }
+                }
+
+                first[i] = start;
+                weights[i] = pixelWeights;
+            }
+        }
+
+        /**
+         * Filters one row or column of four channel pixels.
+         */
+        void apply(float[] src, int srcOffset, int srcStride, float[] dst,
+                int dstOffset, int dstStride) {
+            for (int i = 0; i < weights.length; i++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                float[] pixelWeights = weights[i];
+                int s = srcOffset + first[i] * srcStride;
+                for (int j = 0; j < pixelWeights.length; j++) {
+                    float weight = pixelWeights[j];
+                    a += src[s] * weight;
+                    r += src[s + 1] * weight;
+                    g += src[s + 2] * weight;
+                    b += src[s + 3] * weight;
+                    s += srcStride;
+                }
+                int d = dstOffset + i * dstStride;
+                dst[d] = a;
+                dst[d + 1] = r;
+                dst[d + 2] = g;
+                dst[d + 3] = b;
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.batik.transcoder.TranscoderInput;
+import org.w3c.dom.svg.SVGDocument;
+
+/**
+ * <p>Keeps a rasterizer running and re-renders icons as their svg is saved,
+ * so an icon being edited can be checked without a full render.</p>
+ *
+ * <p>The icon sets are walked once on startup, and the parser and
+ * transcoder are primed by rendering one icon. After that only the saved
+ * icons are rendered (with their disabled variants), on the watching
+ * thread, and their tiles in the icon set galleries of the last full
+ * render are redrawn.</p>
+ *
+ * <p>Editors often write a file several times when saving it (a temporary
+ * file, a rename, a touch), so changes are collected until the resources
+ * have been quiet for a short while and each icon is rendered once.</p>
+ */
+public class IconWatcher {
+
+    /** The icon size and width of the galleries, as rendered by main(). */
+    private static final int GALLERY_ICON_SIZE = 16;
+
+    private static final int GALLERY_WIDTH = 800;
+
+    private static final int GALLERY_MARGIN = 3;
+
+    /**
+     * <p>An icon known to the watcher.</p>
+     */
+    private static class WatchedIcon {
+
+        final String setName;
+
+        final RasterizerUtil.IconDef icon;
+
+        WatchedIcon(String setName, RasterizerUtil.IconDef icon) {
+            this.setName = setName;
+            this.icon = icon;
+        }
+    }
+
+    private final RasterizerUtil rasterizer;
+
+    private final File resources;
+
+    private final File targetDir;
+
+    /** How long the resources must be quiet before rendering. */
+    private final long debounceMillis;
+
+    /** The svg path -> icon, filled by the discovery threads. */
+    private final Map<Path, WatchedIcon> watched = new ConcurrentHashMap<Path, WatchedIcon>();
+
+    /** The watched directories by their key. */
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+    private WatchService watchService;
+
+    /**
+     * @param rasterizer
+     *            renders the changed icons
+     * @param resources
+     *            the directory holding the icon sets
+     * @param targetDir
+     *            the directory rendered icon sets are written to
+     * @param debounceMillis
+     *            how long the resources must be quiet before the changes
+     *            are rendered
+     */
+    public IconWatcher(RasterizerUtil rasterizer, File resources,
+            File targetDir, long debounceMillis) {
+        this.rasterizer = rasterizer;
+        this.resources = resources;
+        this.targetDir = targetDir;
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Finds the icons, primes the renderer and watches the resources until
+     * the process is stopped.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        new IconDiscovery(Runtime.getRuntime().availableProcessors())
+                .discover(resources, targetDir, new IconDiscovery.Listener() {
+                    public void iconFound(String setName, File svg,
+                            File outputDir, File disabledDir) {
+                        add(setName, svg, outputDir, disabledDir);
+                    }
+                });
+
+        prime();
+
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            registerAll(resources.toPath());
+            System.out.println("Watching " + watched.size() + " icons in "
+                    + resources + ", ready in "
+                    + (System.currentTimeMillis() - start)
+                    + " ms. Press Ctrl+C to stop.");
+
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<Path>();
+
+                // Wait for a change, then for the burst of changes to end
+                WatchKey key = watchService.take();
+                do {
+                    collect(key, changed);
+                } while ((key = watchService.poll(debounceMillis,
+                        TimeUnit.MILLISECONDS)) != null);
+
+                render(changed);
+            }
+        } finally {
+            watchService.close();
+        }
+    }
+
+    private void add(String setName, File svg, File outputDir,
+            File disabledDir) {
+        RasterizerUtil.IconDef icon = rasterizer.addIcon(setName, svg,
+                outputDir, disabledDir);
+        icon.galleryRasterPath = new File(outputDir, icon.nameBase + ".png");
+
+        // A full render leaves icons it failed on out of the galleries, they
+        // have no raster or no gif to copy
+        if (!icon.galleryRasterPath.exists()
+                || !new File(svg.getParentFile(), icon.nameBase + ".gif")
+                        .exists()) {
+            rasterizer.failedIcons.add(icon);
+        }
+
+        watched.put(svg.toPath().toAbsolutePath(), new WatchedIcon(setName,
+                icon));
+    }
+
+    /**
+     * Parses and renders an icon in memory, so Batik's classes are loaded
+     * and this thread's render context is set up before the first save.
+     */
+    private void prime() {
+        if (watched.isEmpty()) {
+            return;
+        }
+
+        File svg = watched.values().iterator().next().icon.inputPath;
+        try {
+            RenderContext context = RenderContext.get();
+            SVGDocument document = context.parse(svg.toURI().toString(), svg);
+            context.render(GALLERY_ICON_SIZE, GALLERY_ICON_SIZE,
+                    new TranscoderInput(document));
+        } catch (Exception e) {
+            // Only slows the first render down
+            System.err.println("Could not prime the renderer with " + svg
+                    + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Watches a directory and every directory below it.
+     */
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Adds the svgs changed according to a watch key's events.
+     */
+    private void collect(WatchKey key, final Set<Path> changed)
+            throws IOException {
+        Path dir = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || dir == null) {
+                continue;
+            }
+
+            Path path = dir.resolve((Path) event.context()).toAbsolutePath();
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(path)) {
+                // Watch the new directory and pick up the icons copied in
+                registerAll(path);
+                Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                    public FileVisitResult visitFile(Path file,
+                            BasicFileAttributes attrs) {
+                        if (file.getFileName().toString().endsWith("svg")) {
+                            changed.add(file.toAbsolutePath());
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } else if (path.getFileName().toString().endsWith("svg")) {
+                changed.add(path);
+            }
+        }
+
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    /**
+     * Renders the changed icons and redraws their gallery tiles.
+     */
+    private void render(Set<Path> changed) {
+        for (Path svg : changed) {
+            long start = System.currentTimeMillis();
+
+            if (!Files.exists(svg)) {
+                if (watched.remove(svg) != null) {
+                    System.out.println("Removed: " + svg
+                            + ", its rasters are left until the next full render");
+                }
+                continue;
+            }
+
+            WatchedIcon watchedIcon = watched.get(svg);
+            if (watchedIcon == null) {
+                watchedIcon = discover(svg);
+                if (watchedIcon == null) {
+                    continue;
+                }
+            }
+
+            boolean rendered = rasterizer.rerender(watchedIcon.icon);
+            boolean tile = false;
+            if (rendered) {
+                try {
+                    tile = rasterizer.updateGalleryTile(targetDir,
+                            watchedIcon.setName, watchedIcon.icon,
+                            GALLERY_ICON_SIZE, GALLERY_WIDTH, GALLERY_MARGIN);
+                } catch (IOException e) {
+                    System.err.println("Could not update the gallery of "
+                            + watchedIcon.setName + ": " + e.getMessage());
+                }
+            }
+
+            System.out.println((rendered ? "Rendered: " : "Failed: ")
+                    + watchedIcon.icon.nameBase
+                    + (tile ? " (and its gallery tile)" : "") + ", took "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+    }
+
+    /**
+     * Works out the icon set and output locations of an svg added while
+     * watching.
+     *
+     * @return the new icon, null if it isn't in an icon set
+     */
+    private WatchedIcon discover(Path svg) {
+        Path relative = resources.toPath().toAbsolutePath().relativize(svg);
+        if (relative.getNameCount() < 2) {
+            return null;
+        }
+
+        String setName = relative.getName(0).toString();
+        Path root = resources.toPath().toAbsolutePath().resolve(setName);
+        IconDiscovery.visit(setName, root, svg, new File(targetDir, setName),
+                new IconDiscovery.Listener() {
+                    public void iconFound(String setName, File svg,
+                            File outputDir, File disabledDir) {
+                        add(setName, svg, outputDir, disabledDir);
+                    }
+                });
+        return watched.get(svg);
+    }
+
+    /**
+     * Watches src/main/resources and renders saved icons to target/ with the
+     * eclipse.svg.* settings of a render, see build.xml.
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        RenderSettings settings = RenderSettings.fromSystemProperties();
+        RasterizerUtil rasterizer = new RasterizerUtil(1, settings);
+
+        if (settings.cache) {
+            RenderCache cache = new RenderCache(settings.cacheDir,
+                    settings.cacheSize);
+            cache.open();
+            rasterizer.setCache(cache);
+        }
+
+        new IconWatcher(rasterizer, new File("src/main/resources/"), new File(
+                "target/"), Long.getLong("eclipse.svg.debounce", 200)).run();
+    }
+}
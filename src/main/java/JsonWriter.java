@@ -0,0 +1,183 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * <p>A minimal streaming JSON writer for the reports the tools produce,
+ * it takes care of separators, indentation and string escaping.</p>
+ *
+ * <pre>
+ * json.beginObject().name("count").value(3).endObject();
+ * </pre>
+ */
+public class JsonWriter implements Closeable {
+
+    private final Writer out;
+
+    /** Whether the current object or array already has a member. */
+    private boolean[] hasMember = new boolean[16];
+
+    /** The nesting depth of the current object or array. */
+    private int depth;
+
+    /** Set after name(), the next value completes the member. */
+    private boolean afterName;
+
+    /**
+     * @param out
+     *            receives the JSON text
+     */
+    public JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    /**
+     * Starts an object member, must be followed by a value or a nested
+     * object or array.
+     *
+     * @param name
+     * @return this writer
+     * @throws IOException
+     */
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(": ");
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException {
+        separate();
+        if (value == null) {
+            out.write("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(double value) throws IOException {
+        separate();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.write("null");
+        } else {
+            out.write(String.format(Locale.ROOT, "%.4f", value));
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        separate();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    public void close() throws IOException {
+        out.write('\n');
+        out.close();
+    }
+
+    private JsonWriter open(char bracket) throws IOException {
+        separate();
+        out.write(bracket);
+
+        depth++;
+        if (depth == hasMember.length) {
+            boolean[] grown = new boolean[depth * 2];
+            System.arraycopy(hasMember, 0, grown, 0, depth);
+            hasMember = grown;
+        }
+        hasMember[depth] = false;
+        return this;
+    }
+
+    private JsonWriter close(char bracket) throws IOException {
+        boolean empty = !hasMember[depth];
+        depth--;
+        if (!empty) {
+            newline();
+        }
+        out.write(bracket);
+        return this;
+    }
+
+    /**
+     * Writes the comma and indentation needed before the next value.
+     */
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+
+        if (depth > 0) {
+            if (hasMember[depth]) {
+                out.write(',');
+            }
+            hasMember[depth] = true;
+            newline();
+        }
+    }
+
+    private void newline() throws IOException {
+        out.write('\n');
+        for (int i = 0; i < depth; i++) {
+            out.write("  ");
+        }
+    }
+
+    private void string(String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.write(String.format("\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+            }
+        }
+        out.write('"');
+    }
+}
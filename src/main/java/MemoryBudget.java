@@ -0,0 +1,232 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Admits icons for rendering only while the memory they are estimated to
+ * need fits in a heap budget, so a few outsized documents can't run the
+ * render threads out of heap between them.</p>
+ *
+ * <p>A document estimated to need more than its share of the budget is a
+ * large document. Large documents are rendered one at a time, and one that
+ * needs more than the whole budget waits until it can have all of it,
+ * rather than failing.</p>
+ *
+ * <p>Waiting icons are admitted in order, a large document isn't starved by
+ * the small ones behind it.</p>
+ */
+public class MemoryBudget {
+
+    /** The granularity the budget is tracked in. */
+    private static final int UNIT = 1024;
+
+    /**
+     * The heap used by Batik's DOM per byte of svg, measured on the icon set
+     * (13-16x).
+     */
+    private static final int DOM_BYTES_PER_FILE_BYTE = 12;
+
+    /** The DOM and GVT tree heap per element, on top of the text. */
+    private static final int BYTES_PER_ELEMENT = 2560;
+
+    /**
+     * The heap per output pixel: Batik's render buffer, the raster and its
+     * disabled variant, 4 bytes per pixel each, plus their encoding.
+     */
+    private static final int BYTES_PER_PIXEL = 16;
+
+    /** The transcoder's own per-render overhead. */
+    private static final int RENDER_OVERHEAD = 256 * 1024;
+
+    /**
+     * <p>The memory held by one admitted icon.</p>
+     */
+    public class Reservation {
+
+        private final int units;
+
+        private final boolean large;
+
+        private boolean released;
+
+        Reservation(int units, boolean large) {
+            this.units = units;
+            this.large = large;
+        }
+
+        /**
+         * Returns the memory to the budget, safe to call more than once.
+         */
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+
+            reservedUnits.addAndGet(-units);
+            permits.release(units);
+            if (large) {
+                largeDocuments.release();
+            }
+        }
+    }
+
+    /** The budget in units, shared by every admitted icon. */
+    private final Semaphore permits;
+
+    /** Lets one large document in at a time. */
+    private final Semaphore largeDocuments = new Semaphore(1, true);
+
+    private final int budgetUnits;
+
+    /** Documents estimated above this are large documents. */
+    private final long largeBytes;
+
+    private final AtomicInteger reservedUnits = new AtomicInteger();
+
+    private final AtomicInteger peakUnits = new AtomicInteger();
+
+    private final AtomicInteger largeCount = new AtomicInteger();
+
+    private final AtomicInteger waitCount = new AtomicInteger();
+
+    /**
+     * @param budgetBytes
+     *            the heap the rendered icons can use between them
+     * @param threads
+     *            the number of render threads, a document estimated above
+     *            an even share of the budget is a large document
+     */
+    public MemoryBudget(long budgetBytes, int threads) {
+        budgetUnits = (int) Math.max(1,
+                Math.min(Integer.MAX_VALUE, budgetBytes / UNIT));
+        largeBytes = budgetUnits * (long) UNIT / Math.max(1, threads);
+        permits = new Semaphore(budgetUnits, true);
+    }
+
+    /**
+     * @param fraction
+     *            the part of the maximum heap to use
+     * @return the given fraction of the JVM's maximum heap
+     */
+    public static long ofMaxHeap(double fraction) {
+        return (long) (Runtime.getRuntime().maxMemory() * fraction);
+    }
+
+    /**
+     * Waits until the estimated memory fits in the budget and reserves it.
+     *
+     * @param bytes
+     *            the estimated memory, see estimate()
+     * @return the reservation, to be released when the memory is freed
+     * @throws InterruptedException
+     */
+    public Reservation reserve(long bytes) throws InterruptedException {
+        // A document needing more than the whole budget gets all of it
+        int units = (int) Math.min(budgetUnits,
+                Math.max(1, (bytes + UNIT - 1) / UNIT));
+        boolean large = bytes > largeBytes;
+
+        if (large) {
+            largeCount.incrementAndGet();
+            largeDocuments.acquire();
+        }
+
+        try {
+            // Untimed tryAcquire barges ahead of waiting threads, a zero
+            // timeout honours the fair order
+            if (!permits.tryAcquire(units, 0, TimeUnit.MILLISECONDS)) {
+                waitCount.incrementAndGet();
+                permits.acquire(units);
+            }
+        } catch (InterruptedException e) {
+            if (large) {
+                largeDocuments.release();
+            }
+            throw e;
+        }
+
+        int reserved = reservedUnits.addAndGet(units);
+        int peak;
+        while (reserved > (peak = peakUnits.get())
+                && !peakUnits.compareAndSet(peak, reserved)) {
+            // Retry until the peak is at least what we saw
+        }
+
+        return new Reservation(units, large);
+    }
+
+    /**
+     * Estimates the heap used while an icon is parsed, rendered and encoded.
+     *
+     * @param fileBytes
+     *            the size of the svg
+     * @param elements
+     *            the number of elements in the svg
+     * @param pixels
+     *            the total pixels of every raster rendered for the icon
+     * @return the estimated heap in bytes
+     */
+    public static long estimate(long fileBytes, int elements, long pixels) {
+        return fileBytes * DOM_BYTES_PER_FILE_BYTE + elements
+                * (long) BYTES_PER_ELEMENT + pixels * BYTES_PER_PIXEL
+                + RENDER_OVERHEAD;
+    }
+
+    /**
+     * Counts the elements of an svg without parsing it, by counting the
+     * start tags.
+     *
+     * @param svg
+     * @return the number of elements
+     * @throws IOException
+     */
+    public static int countElements(File svg) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(svg));
+        try {
+            return countElements(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Counts the elements of svg data by counting the start tags.
+     *
+     * @param in
+     *            the svg data, left open
+     * @return the number of elements
+     * @throws IOException
+     */
+    public static int countElements(InputStream in) throws IOException {
+        int count = 0;
+        boolean tagOpen = false;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (tagOpen && Character.isLetter(b)) {
+                count++;
+            }
+            tagOpen = b == '<';
+        }
+        return count;
+    }
+
+    /**
+     * Prints the budget, the peak reserved and how often icons had to wait.
+     *
+     * @param out
+     */
+    public void printSummary(PrintStream out) {
+        out.println(String.format(Locale.ROOT,
+                "Memory budget %.0f MB, peak reserved %.1f MB, %d icons waited, %d large documents",
+                budgetUnits / 1024.0, peakUnits.get() / 1024.0,
+                waitCount.get(), largeCount.get()));
+    }
+}
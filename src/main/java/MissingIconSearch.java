@@ -1,58 +1,643 @@
+import java.io.Closeable;
 import java.io.File;
-import java.net.URI;
-
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * <p>Finds the icons that still lack an svg version, and how far each
+ * bundle and icon folder (obj16, etool16, ...) is covered by svgs.</p>
+ *
+ * <p>Each directory is listed once into an index of its files and
+ * subdirectories, and an icon's gif, png and svg are matched by their base
+ * name within that index. The bundles are scanned in parallel. The index is
+ * kept in target/coverage-index.properties, and a later scan reuses the
+ * listing of every directory whose modification time hasn't changed, since
+ * adding, removing or renaming a file changes it. That leaves one stat per
+ * directory, cheap enough to check coverage on every commit.</p>
+ */
 public class MissingIconSearch {
 
-    private static int missingIcons = 0;
-    
+    /** The kinds of files an icon can have, as bits of a mask. */
+    static final int GIF = 1, PNG = 2, SVG = 4;
+
     /**
-     * Walks a directory searching for gifs without svg icons.
-     * 
-     * @param resources the base search dir
-     * @param filter
+     * Directories modified this close to the start of a scan are listed
+     * again by the next one, a change in the same tick of the file system's
+     * clock wouldn't show in their modification time.
+     */
+    private static final long MODIFIED_SLACK = 2000;
+
+    private static final String SEPARATOR = "/";
+
+    /**
+     * <p>How many icons of a bundle, folder or of everything have which
+     * kinds of files.</p>
+     */
+    static class Coverage {
+
+        int gifs, gifsWithSvg, pngs, pngsWithSvg, svgs, svgOnly;
+
+        void add(int mask) {
+            boolean svg = (mask & SVG) != 0;
+            if ((mask & GIF) != 0) {
+                gifs++;
+                gifsWithSvg += svg ? 1 : 0;
+            }
+            if ((mask & PNG) != 0) {
+                pngs++;
+                pngsWithSvg += svg ? 1 : 0;
+            }
+            if (svg) {
+                svgs++;
+                svgOnly += mask == SVG ? 1 : 0;
+            }
+        }
+
+        void add(Coverage other) {
+            gifs += other.gifs;
+            gifsWithSvg += other.gifsWithSvg;
+            pngs += other.pngs;
+            pngsWithSvg += other.pngsWithSvg;
+            svgs += other.svgs;
+            svgOnly += other.svgOnly;
+        }
+
+        /**
+         * @return the share of gifs with an svg, 1 if there are none
+         */
+        double getGifCoverage() {
+            return gifs == 0 ? 1 : gifsWithSvg / (double) gifs;
+        }
+
+        boolean isEmpty() {
+            return gifs == 0 && pngs == 0 && svgs == 0;
+        }
+
+        void write(JsonWriter json) throws IOException {
+            json.name("gifs").value(gifs);
+            json.name("gifsWithSvg").value(gifsWithSvg);
+            json.name("pngs").value(pngs);
+            json.name("pngsWithSvg").value(pngsWithSvg);
+            json.name("svgs").value(svgs);
+            json.name("svgOnly").value(svgOnly);
+            json.name("gifCoverage").value(getGifCoverage());
+        }
+    }
+
+    /**
+     * <p>The coverage of a bundle, the first directory below an icon set or
+     * below its bundles folder, and of each folder in it.</p>
+     */
+    static class BundleCoverage {
+
+        final String set;
+
+        /** The bundle's path in the set, empty for the set's own files. */
+        final String bundle;
+
+        final Coverage total = new Coverage();
+
+        /** The folder's path in the bundle -> its coverage. */
+        final Map<String, Coverage> folders = new TreeMap<String, Coverage>();
+
+        /** The gifs without an svg, relative to the resources. */
+        final List<String> missing = new ArrayList<String>();
+
+        BundleCoverage(String set, String bundle) {
+            this.set = set;
+            this.bundle = bundle;
+        }
+
+        String getName() {
+            return bundle.length() == 0 ? set : set + "/" + bundle;
+        }
+    }
+
+    /**
+     * <p>The subdirectories and files of a directory, as of its
+     * modification time.</p>
      */
-    private static void printMissingIcons(File resources, File root, String filter) {
-        outer:
-        for (File child : resources.listFiles()) {
-            if(child.isDirectory()) {
-                printMissingIcons(child, root, filter);
+    static class DirectoryIndex {
+
+        final long modified;
+
+        final List<String> directories;
+
+        final List<String> files;
+
+        DirectoryIndex(long modified, List<String> directories,
+                List<String> files) {
+            this.modified = modified;
+            this.directories = directories;
+            this.files = files;
+        }
+    }
+
+    private final File root;
+
+    private final int threads;
+
+    /** The index of the previous scan, by path relative to the root. */
+    private final Map<String, DirectoryIndex> previous = new HashMap<String, DirectoryIndex>();
+
+    /** The index of this scan. */
+    private final Map<String, DirectoryIndex> current = new ConcurrentHashMap<String, DirectoryIndex>();
+
+    private long scanStart;
+
+    private AtomicInteger listed = new AtomicInteger();
+
+    private AtomicInteger reused = new AtomicInteger();
+
+    /** The coverage of each bundle scanned, by name. */
+    private final Map<String, BundleCoverage> bundles = new TreeMap<String, BundleCoverage>();
+
+    /**
+     * @param root
+     *            the resources directory holding the icon sets
+     * @param threads
+     *            the number of bundles to scan in parallel
+     */
+    public MissingIconSearch(File root, int threads) {
+        this.root = root;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Scans every bundle of every icon set, reusing the listings of the
+     * directories unchanged since the index was loaded.
+     *
+     * @throws IOException
+     *             if a directory could not be listed
+     */
+    public void scan() throws IOException {
+        scanStart = System.currentTimeMillis();
+        current.clear();
+        bundles.clear();
+
+        // The sets and their bundles folders are listed up front, the
+        // bundles below them are what's scanned in parallel
+        List<Callable<BundleCoverage>> scans = new ArrayList<Callable<BundleCoverage>>();
+        Path rootPath = root.toPath();
+        for (String set : index(rootPath).directories) {
+            Path setDir = rootPath.resolve(set);
+            DirectoryIndex setIndex = index(setDir);
+            scans.add(bundleScan(set, "", setDir, false));
+            for (String child : setIndex.directories) {
+                if (!child.equals("bundles")) {
+                    scans.add(bundleScan(set, child, setDir.resolve(child), true));
+                    continue;
+                }
+
+                Path bundlesDir = setDir.resolve(child);
+                scans.add(bundleScan(set, child, bundlesDir, false));
+                for (String bundle : index(bundlesDir).directories) {
+                    scans.add(bundleScan(set, child + "/" + bundle,
+                            bundlesDir.resolve(bundle), true));
+                }
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<BundleCoverage>> results = new ArrayList<Future<BundleCoverage>>();
+            for (Callable<BundleCoverage> scan : scans) {
+                results.add(pool.submit(scan));
+            }
+
+            for (Future<BundleCoverage> result : results) {
+                try {
+                    BundleCoverage coverage = result.get();
+                    if (!coverage.total.isEmpty()) {
+                        bundles.put(coverage.getName(), coverage);
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while scanning", e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Callable<BundleCoverage> bundleScan(final String set,
+            final String bundle, final Path dir, final boolean recurse) {
+        return new Callable<BundleCoverage>() {
+            public BundleCoverage call() throws IOException {
+                BundleCoverage coverage = new BundleCoverage(set, bundle);
+                scanDirectory(coverage, dir, "", recurse);
+                Collections.sort(coverage.missing);
+                return coverage;
+            }
+        };
+    }
+
+    /**
+     * Adds a directory's icons to the bundle's coverage.
+     *
+     * @param coverage
+     * @param dir
+     * @param folder
+     *            the directory's path in the bundle, empty for the bundle
+     *            itself
+     * @param recurse
+     *            whether to add the subdirectories too
+     */
+    private void scanDirectory(BundleCoverage coverage, Path dir,
+            String folder, boolean recurse) throws IOException {
+        DirectoryIndex index = index(dir);
+
+        // Base name -> the kinds of files it has, and the gif's name
+        Map<String, Integer> icons = new HashMap<String, Integer>();
+        Map<String, String> gifs = new HashMap<String, String>();
+        for (String file : index.files) {
+            int dot = file.lastIndexOf('.');
+            if (dot <= 0) {
+                continue;
+            }
+            String baseName = file.substring(0, dot);
+            String extension = file.substring(dot + 1).toLowerCase(Locale.ROOT);
+
+            int kind;
+            if (extension.equals("gif")) {
+                kind = GIF;
+                gifs.put(baseName, file);
+            } else if (extension.equals("png")) {
+                kind = PNG;
+            } else if (extension.equals("svg")) {
+                kind = SVG;
+            } else {
                 continue;
             }
+            Integer mask = icons.get(baseName);
+            icons.put(baseName, mask == null ? kind : mask | kind);
+        }
+
+        if (!icons.isEmpty()) {
+            String folderName = folder.length() == 0 ? "." : folder;
+            Coverage folderCoverage = coverage.folders.get(folderName);
+            if (folderCoverage == null) {
+                folderCoverage = new Coverage();
+                coverage.folders.put(folderName, folderCoverage);
+            }
 
-            String childName = child.getName();
-            if(childName.endsWith("gif")) {
-                String baseName = childName.substring(0, childName.lastIndexOf('.'));
-                baseName += ".svg";
-                File parentFile = child.getParentFile();
-                // Search for a matching svg file
-                boolean found = false;
-                for(File siblings : parentFile.listFiles()) {
-                    String siblingName = siblings.getName();
-                    if(siblingName.equals(baseName)) {
-                        continue outer;
+            String path = relativeName(dir);
+            for (Map.Entry<String, Integer> icon : icons.entrySet()) {
+                int mask = icon.getValue();
+                coverage.total.add(mask);
+                folderCoverage.add(mask);
+                if ((mask & GIF) != 0 && (mask & SVG) == 0) {
+                    coverage.missing.add(path + SEPARATOR
+                            + gifs.get(icon.getKey()));
+                }
+            }
+        }
+
+        if (recurse) {
+            for (String child : index.directories) {
+                scanDirectory(coverage, dir.resolve(child),
+                        folder.length() == 0 ? child : folder + SEPARATOR
+                                + child, true);
+            }
+        }
+    }
+
+    /**
+     * @return the directory's listing, from the previous index if the
+     *         directory hasn't been modified since
+     */
+    private DirectoryIndex index(Path dir) throws IOException {
+        String key = relativeName(dir);
+        long modified = Files.getLastModifiedTime(dir).toMillis();
+
+        DirectoryIndex index = previous.get(key);
+        if (index != null && index.modified == modified
+                && modified < scanStart - MODIFIED_SLACK) {
+            reused.incrementAndGet();
+        } else {
+            List<String> directories = new ArrayList<String>();
+            List<String> files = new ArrayList<String>();
+            DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+            try {
+                for (Path child : stream) {
+                    String name = child.getFileName().toString();
+                    if (Files.isDirectory(child)) {
+                        directories.add(name);
+                    } else {
+                        files.add(name);
                     }
                 }
-                
-                if(!found) {
-                    URI res = root.toURI();
-                    URI uri = child.toURI();
-                    URI relativize = res.relativize(uri);
-                    String path = relativize.getPath();
-                    if(filter == null || path.contains(filter)) {
-                        System.out.println(relativize.getPath());
+            } finally {
+                stream.close();
+            }
+            Collections.sort(directories);
+            Collections.sort(files);
+            index = new DirectoryIndex(modified, directories, files);
+            listed.incrementAndGet();
+        }
+
+        current.put(key, index);
+        return index;
+    }
+
+    private String relativeName(Path dir) {
+        return root.toPath().relativize(dir).toString()
+                .replace(File.separator, SEPARATOR);
+    }
+
+    /**
+     * Loads the index of the previous scan, a missing or unreadable index
+     * means every directory is listed.
+     *
+     * @param file
+     */
+    public void loadIndex(File file) {
+        previous.clear();
+        if (!file.exists()) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+        } catch (IOException e) {
+            System.err.println("Could not read coverage index, listing all directories: "
+                    + e.getMessage());
+            return;
+        } finally {
+            close(in);
+        }
+
+        // Each value is modified/directory count/directories.../files...
+        for (String key : properties.stringPropertyNames()) {
+            try {
+                String[] fields = properties.getProperty(key).split(SEPARATOR, -1);
+                int directoryCount = Integer.parseInt(fields[1]);
+                List<String> directories = new ArrayList<String>();
+                List<String> files = new ArrayList<String>();
+                for (int i = 2; i < fields.length; i++) {
+                    if (fields[i].length() > 0) {
+                        (i - 2 < directoryCount ? directories : files)
+                                .add(fields[i]);
                     }
-                    
-                    missingIcons++;
                 }
+                previous.put(key, new DirectoryIndex(Long.parseLong(fields[0]),
+                        directories, files));
+            } catch (RuntimeException e) {
+                // Listed again
             }
         }
     }
-    
+
+    /**
+     * Writes the index of this scan, directories that no longer exist are
+     * dropped.
+     *
+     * @param file
+     */
+    public void saveIndex(File file) {
+        Properties properties = new Properties();
+        for (Map.Entry<String, DirectoryIndex> entry : current.entrySet()) {
+            DirectoryIndex index = entry.getValue();
+            StringBuilder value = new StringBuilder();
+            value.append(index.modified).append(SEPARATOR)
+                    .append(index.directories.size());
+            for (String directory : index.directories) {
+                value.append(SEPARATOR).append(directory);
+            }
+            for (String name : index.files) {
+                value.append(SEPARATOR).append(name);
+            }
+            properties.setProperty(entry.getKey(), value.toString());
+        }
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            properties.store(out, "Eclipse SVG coverage index");
+        } catch (IOException e) {
+            System.err.println("Could not write coverage index: "
+                    + e.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * @return the coverage of every bundle together
+     */
+    public Coverage getTotal() {
+        Coverage total = new Coverage();
+        for (BundleCoverage bundle : bundles.values()) {
+            total.add(bundle.total);
+        }
+        return total;
+    }
+
+    /**
+     * @return the gifs without an svg, relative to the resources directory
+     */
+    public List<String> getMissing() {
+        List<String> missing = new ArrayList<String>();
+        for (BundleCoverage bundle : bundles.values()) {
+            missing.addAll(bundle.missing);
+        }
+        return missing;
+    }
+
+    /**
+     * Prints the gifs without an svg whose path contains the filter, and the
+     * coverage of each bundle.
+     *
+     * @param out
+     * @param filter
+     *            the text paths have to contain, or null to print all of
+     *            them
+     */
+    public void printReport(PrintStream out, String filter) {
+        for (String path : getMissing()) {
+            if (filter == null || path.contains(filter)) {
+                out.println(path);
+            }
+        }
+
+        out.println("Coverage by bundle:");
+        for (BundleCoverage bundle : bundles.values()) {
+            Coverage total = bundle.total;
+            out.println(String.format(Locale.ROOT,
+                    "  %5.1f%%  %4d of %4d gifs, %3d of %3d pngs  %s",
+                    total.getGifCoverage() * 100, total.gifsWithSvg,
+                    total.gifs, total.pngsWithSvg, total.pngs,
+                    bundle.getName()));
+        }
+
+        Coverage total = getTotal();
+        out.println(String.format(Locale.ROOT,
+                "%.1f%% of gifs have an svg, %d of %d pngs, %d svgs, "
+                        + "%d directories listed and %d unchanged",
+                total.getGifCoverage() * 100, total.pngsWithSvg, total.pngs,
+                total.svgs, listed.get(), reused.get()));
+    }
+
+    /**
+     * Writes the coverage of everything, each bundle, each folder in a
+     * bundle and each folder name across bundles as JSON.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeJson(File file) throws IOException {
+        // Folders of the same name, e.g. every obj16, taken together
+        Map<String, Coverage> folderNames = new TreeMap<String, Coverage>();
+        for (BundleCoverage bundle : bundles.values()) {
+            for (Map.Entry<String, Coverage> folder : bundle.folders
+                    .entrySet()) {
+                String path = folder.getKey();
+                String name = path.substring(path.lastIndexOf(SEPARATOR) + 1);
+                Coverage coverage = folderNames.get(name);
+                if (coverage == null) {
+                    coverage = new Coverage();
+                    folderNames.put(name, coverage);
+                }
+                coverage.add(folder.getValue());
+            }
+        }
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        JsonWriter json = new JsonWriter(new FileWriter(file));
+        try {
+            json.beginObject();
+            getTotal().write(json);
+            json.name("missing").value(getMissing().size());
+
+            json.name("folders").beginObject();
+            for (Map.Entry<String, Coverage> folder : folderNames.entrySet()) {
+                json.name(folder.getKey()).beginObject();
+                folder.getValue().write(json);
+                json.endObject();
+            }
+            json.endObject();
+
+            json.name("bundles").beginArray();
+            for (BundleCoverage bundle : bundles.values()) {
+                json.beginObject();
+                json.name("set").value(bundle.set);
+                json.name("bundle").value(bundle.bundle);
+                bundle.total.write(json);
+
+                json.name("folders").beginObject();
+                for (Map.Entry<String, Coverage> folder : bundle.folders
+                        .entrySet()) {
+                    json.name(folder.getKey()).beginObject();
+                    folder.getValue().write(json);
+                    json.endObject();
+                }
+                json.endObject();
+
+                json.name("missing").beginArray();
+                for (String path : bundle.missing) {
+                    json.value(path);
+                }
+                json.endArray();
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        } finally {
+            json.close();
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+    }
+
     public static void main(String[] args) {
         File root = new File("src/main/resources");
-        printMissingIcons(root, root, null);
-        System.out.println("Missing Icons: " + missingIcons);
+        File target = new File("target");
+        String filter = System.getProperty("eclipse.svg.missing.filter");
+        if (filter != null && filter.trim().length() == 0) {
+            filter = null;
+        }
+        int maxMissing = Integer.getInteger("eclipse.svg.missing.max", -1);
+
+        long startTime = System.currentTimeMillis();
+        MissingIconSearch search = new MissingIconSearch(root, Runtime
+                .getRuntime().availableProcessors());
+        File indexFile = new File(target, "coverage-index.properties");
+        search.loadIndex(indexFile);
+        try {
+            search.scan();
+        } catch (IOException e) {
+            System.err.println("Could not scan icons: " + e.getMessage());
+            System.exit(1);
+        }
+        search.saveIndex(indexFile);
+
+        search.printReport(System.out, filter);
+        int missingIcons = search.getMissing().size();
+        System.out.println("Missing Icons: " + missingIcons + ", Took: "
+                + (System.currentTimeMillis() - startTime) + " ms.");
+
+        try {
+            search.writeJson(new File(target, "coverage-report.json"));
+        } catch (IOException e) {
+            System.err.println("Could not write coverage report: "
+                    + e.getMessage());
+        }
+
+        // The coverage gate, no more gifs without an svg than allowed
+        if (maxMissing >= 0 && missingIcons > maxMissing) {
+            System.err.println(missingIcons + " icons lack an svg, more than the "
+                    + maxMissing + " allowed");
+            System.exit(1);
+        }
     }
 
 }
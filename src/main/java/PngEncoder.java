@@ -0,0 +1,718 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Writes PNGs with control over how they are compressed, rather than
+ * leaving it to the JDK's writer which always writes full RGBA.</p>
+ *
+ * <ul>
+ * <li>Images with at most 256 colors (most icons) are written as indexed
+ * PNGs, at the smallest bit depth that holds the palette.</li>
+ * <li>Other images are written as RGB, with alpha only when a pixel isn't
+ * opaque. Gray color types are never used, ImageIO decodes them as linear
+ * gray which changes their colors for the tools reading the icons back.</li>
+ * <li>Each row of a truecolor image gets the filter that leaves the
+ * smallest sum of absolute differences, the heuristic libpng uses.</li>
+ * <li>Large images (galleries, atlases) can be deflated in parallel, in
+ * chunks primed with the end of the previous chunk like pigz does.</li>
+ * </ul>
+ *
+ * <p>The pixels decoded are the ARGB pixels of the image, except that fully
+ * transparent pixels all become transparent black.</p>
+ *
+ * <p>An encoder holds no state between images and can be used from several
+ * threads.</p>
+ */
+public class PngEncoder {
+
+    private static final byte[] SIGNATURE = new byte[] { (byte) 137, 80, 78,
+            71, 13, 10, 26, 10 };
+
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_INDEXED = 3;
+    private static final int COLOR_RGBA = 6;
+
+    /** Images up to this many pixels are encoded every way at level 9. */
+    private static final int EXHAUSTIVE_PIXELS = 128 * 128;
+
+    /** The size of the sample used to choose how to filter large images. */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /** The filtered data is deflated in chunks of this size in parallel. */
+    private static final int CHUNK_SIZE = 128 * 1024;
+
+    /** The window primed from the previous chunk. */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * <p>One way of storing an image, and the smallest image data found for
+     * it.</p>
+     */
+    private static class Encoding {
+
+        final int colorType;
+
+        final int bitDepth;
+
+        /** The palette, null unless indexed. */
+        final int[] colors;
+
+        /** The compressed image data. */
+        byte[] idat;
+
+        Encoding(int colorType, int bitDepth, int[] colors) {
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            this.colors = colors;
+        }
+
+        int bytesPerPixel() {
+            switch (colorType) {
+            case COLOR_INDEXED:
+                return 1;
+            case COLOR_RGB:
+                return 3;
+            default:
+                return 4;
+            }
+        }
+
+        void consider(byte[] data) {
+            if (idat == null || data.length < idat.length) {
+                idat = data;
+            }
+        }
+
+        /** The bytes written for the image data and palette. */
+        int size() {
+            return idat.length + (colors == null ? 0 : colors.length * 4);
+        }
+    }
+
+    /** Shared by every encoder deflating in parallel, created when needed. */
+    private static ExecutorService deflatePool;
+
+    /** The zlib compression level, 0-9. */
+    private final int level;
+
+    /** Whether images with few colors are written indexed. */
+    private final boolean palette;
+
+    /** Whether large images are deflated in parallel. */
+    private final boolean parallel;
+
+    /**
+     * @param level
+     *            the compression effort, 0 (none, fastest) to 9 (smallest)
+     * @param palette
+     *            write images with at most 256 colors as indexed PNGs
+     * @param parallel
+     *            deflate images larger than a chunk on several threads
+     */
+    public PngEncoder(int level, boolean palette, boolean parallel) {
+        this.level = Math.max(0, Math.min(9, level));
+        this.palette = palette;
+        this.parallel = parallel;
+    }
+
+    /**
+     * @param image
+     * @return the image encoded as PNG
+     * @throws IOException
+     */
+    public byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                image.getWidth() * image.getHeight() / 2 + 256);
+        write(image, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes an image to a PNG file.
+     *
+     * @param image
+     * @param file
+     * @throws IOException
+     */
+    public void write(BufferedImage image, File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(image, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Encodes an image as PNG.
+     *
+     * @param image
+     * @param stream
+     *            receives the PNG, left open
+     * @throws IOException
+     */
+    public void write(BufferedImage image, OutputStream stream)
+            throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = pixels(image);
+
+        // Pick the smallest color type that holds the image exactly
+        boolean opaque = true;
+        for (int i = 0; i < argb.length; i++) {
+            int alpha = argb[i] >>> 24;
+            if (alpha == 0) {
+                argb[i] = 0;
+            }
+            if (alpha != 0xff) {
+                opaque = false;
+            }
+        }
+
+        int[] colors = palette ? findPalette(argb) : null;
+        int truecolorType = opaque ? COLOR_RGB : COLOR_RGBA;
+
+        // Small images are cheap to encode, at the highest effort every way
+        // is tried and the smallest kept. Otherwise indexed data is left
+        // unfiltered as the PNG spec recommends, and truecolor data is
+        // compressed with adaptive filters and without, since images with
+        // large flat areas (galleries) often do better unfiltered
+        boolean exhaustive = level == 9 && argb.length <= EXHAUSTIVE_PIXELS;
+
+        List<Encoding> encodings = new ArrayList<Encoding>();
+        if (colors != null) {
+            int bitDepth = colors.length <= 2 ? 1 : colors.length <= 4 ? 2
+                    : colors.length <= 16 ? 4 : 8;
+            encodings.add(new Encoding(COLOR_INDEXED, bitDepth, colors));
+        }
+        if (colors == null || exhaustive) {
+            encodings.add(new Encoding(truecolorType, 8, null));
+        }
+
+        Encoding best = null;
+        for (Encoding encoding : encodings) {
+            byte[] rows = rows(argb, width, height, encoding);
+            int rowBytes = rows.length / height - 1;
+
+            List<byte[]> filterings = new ArrayList<byte[]>();
+            if (encoding.colorType != COLOR_INDEXED || exhaustive) {
+                if (encoding.bitDepth == 8) {
+                    filterings.add(filter(rows, height, rowBytes,
+                            encoding.bytesPerPixel()));
+                }
+            }
+            filterings.add(rows);
+
+            if (filterings.size() > 1 && !exhaustive
+                    && rows.length > SAMPLE_SIZE * 4) {
+                // Compressing a large image twice is slow, pick the filtering
+                // by compressing a sample of each quickly
+                filterings = Collections.singletonList(smallestSample(
+                        filterings, rowBytes + 1));
+            }
+
+            for (byte[] filtered : filterings) {
+                encoding.consider(deflate(filtered, Deflater.DEFAULT_STRATEGY));
+                if (exhaustive) {
+                    encoding.consider(deflate(filtered, Deflater.FILTERED));
+                }
+            }
+
+            if (best == null || encoding.size() < best.size()) {
+                best = encoding;
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(best.bitDepth);
+        headerData.writeByte(best.colorType);
+        headerData.writeByte(0); // deflate
+        headerData.writeByte(0); // adaptive filtering
+        headerData.writeByte(0); // no interlace
+        writeChunk(out, "IHDR", header.toByteArray());
+
+        if (best.colorType == COLOR_INDEXED) {
+            writePalette(out, best.colors);
+        }
+
+        writeChunk(out, "IDAT", best.idat);
+        writeChunk(out, "IEND", new byte[0]);
+        out.flush();
+    }
+
+    /**
+     * @return a copy of the image's pixels as non-premultiplied ARGB
+     */
+    private static int[] pixels(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB
+                && image.getRaster().getDataBuffer() instanceof DataBufferInt
+                && image.getRaster().getSampleModelTranslateX() == 0
+                && image.getRaster().getSampleModelTranslateY() == 0
+                && image.getRaster().getWidth() == width) {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer())
+                    .getData();
+            if (data.length == width * height) {
+                return data.clone();
+            }
+        }
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    /**
+     * @return the distinct colors of the image, most common first, or null
+     *         if there are more than 256
+     */
+    private static int[] findPalette(int[] argb) {
+        // A small open addressing table of color -> count
+        int[] keys = new int[1024];
+        int[] counts = new int[1024];
+        boolean[] used = new boolean[1024];
+        int size = 0;
+
+        for (int pixel : argb) {
+            int slot = (pixel * 0x9E3779B9) >>> 22;
+            while (used[slot] && keys[slot] != pixel) {
+                slot = (slot + 1) & 1023;
+            }
+            if (!used[slot]) {
+                if (size == 256) {
+                    return null;
+                }
+                used[slot] = true;
+                keys[slot] = pixel;
+                size++;
+            }
+            counts[slot]++;
+        }
+
+        // Sort by descending count, keeping the color in the low bits
+        long[] sorted = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                sorted[n++] = ((long) (Integer.MAX_VALUE - counts[i]) << 32)
+                        | (keys[i] & 0xffffffffL);
+            }
+        }
+        Arrays.sort(sorted);
+
+        // Opaque colors go last so tRNS can stop at the last transparent one
+        int[] colors = new int[size];
+        int next = 0;
+        for (long entry : sorted) {
+            if ((int) entry >>> 24 != 0xff) {
+                colors[next++] = (int) entry;
+            }
+        }
+        for (long entry : sorted) {
+            if ((int) entry >>> 24 == 0xff) {
+                colors[next++] = (int) entry;
+            }
+        }
+        return colors;
+    }
+
+    private static void writePalette(DataOutputStream out, int[] colors)
+            throws IOException {
+        byte[] plte = new byte[colors.length * 3];
+        int alphaCount = 0;
+        for (int i = 0; i < colors.length; i++) {
+            plte[i * 3] = (byte) (colors[i] >> 16);
+            plte[i * 3 + 1] = (byte) (colors[i] >> 8);
+            plte[i * 3 + 2] = (byte) colors[i];
+            if (colors[i] >>> 24 != 0xff) {
+                alphaCount = i + 1;
+            }
+        }
+        writeChunk(out, "PLTE", plte);
+
+        if (alphaCount > 0) {
+            byte[] trns = new byte[alphaCount];
+            for (int i = 0; i < alphaCount; i++) {
+                trns[i] = (byte) (colors[i] >>> 24);
+            }
+            writeChunk(out, "tRNS", trns);
+        }
+    }
+
+    /**
+     * Converts the pixels to unfiltered rows of the encoding, each starting
+     * with filter type 0.
+     */
+    private static byte[] rows(int[] argb, int width, int height,
+            Encoding encoding) {
+        int bitDepth = encoding.bitDepth;
+        int rowBytes = (width * bitDepth * encoding.bytesPerPixel() + 7) / 8;
+        byte[] data = new byte[height * (rowBytes + 1)];
+
+        int[] colors = encoding.colors;
+        int lastColor = colors == null ? 0 : colors[0];
+        int lastIndex = 0;
+        int pixelsPerByte = 8 / bitDepth;
+
+        for (int y = 0; y < height; y++) {
+            int i = y * (rowBytes + 1) + 1;
+            for (int x = 0; x < width; x++) {
+                int pixel = argb[y * width + x];
+                switch (encoding.colorType) {
+                case COLOR_INDEXED:
+                    if (pixel != lastColor) {
+                        lastIndex = indexOf(colors, pixel);
+                        lastColor = pixel;
+                    }
+                    int shift = (pixelsPerByte - 1 - x % pixelsPerByte)
+                            * bitDepth;
+                    data[i + x / pixelsPerByte] |= lastIndex << shift;
+                    break;
+                case COLOR_RGB:
+                    data[i++] = (byte) (pixel >> 16);
+                    data[i++] = (byte) (pixel >> 8);
+                    data[i++] = (byte) pixel;
+                    break;
+                default:
+                    data[i++] = (byte) (pixel >> 16);
+                    data[i++] = (byte) (pixel >> 8);
+                    data[i++] = (byte) pixel;
+                    data[i++] = (byte) (pixel >>> 24);
+                }
+            }
+        }
+        return data;
+    }
+
+    private static int indexOf(int[] colors, int color) {
+        for (int i = 0; i < colors.length; i++) {
+            if (colors[i] == color) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Color not in palette");
+    }
+
+    /**
+     * Filters each row with whichever filter leaves the smallest sum of
+     * absolute differences.
+     *
+     * @param rows
+     *            unfiltered rows
+     * @return the filtered rows
+     */
+    private static byte[] filter(byte[] rows, int height, int rowBytes,
+            int bpp) {
+        byte[] data = new byte[rows.length];
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[][] candidates = new byte[5][rowBytes];
+
+        for (int y = 0; y < height; y++) {
+            int row = y * (rowBytes + 1);
+            System.arraycopy(rows, row + 1, current, 0, rowBytes);
+
+            int best = 0;
+            long bestSum = Long.MAX_VALUE;
+            for (int filter = 0; filter < 5; filter++) {
+                long sum = filter(filter, current, previous, bpp,
+                        candidates[filter]);
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = filter;
+                }
+            }
+
+            data[row] = (byte) best;
+            System.arraycopy(candidates[best], 0, data, row + 1, rowBytes);
+
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return data;
+    }
+
+    /**
+     * Applies a PNG filter to a row. Each filter has its own loop, the
+     * filters are the bulk of the encoding time for large images.
+     *
+     * @return the sum of the filtered bytes as signed values, lower
+     *         compresses better
+     */
+    private static long filter(int filter, byte[] row, byte[] previous,
+            int bpp, byte[] out) {
+        int length = row.length;
+        long sum = 0;
+        switch (filter) {
+        case 0:
+            for (int i = 0; i < length; i++) {
+                out[i] = row[i];
+                sum += Math.abs(row[i]);
+            }
+            break;
+        case 1:
+            for (int i = 0; i < bpp; i++) {
+                out[i] = row[i];
+                sum += Math.abs(row[i]);
+            }
+            for (int i = bpp; i < length; i++) {
+                byte value = (byte) (row[i] - row[i - bpp]);
+                out[i] = value;
+                sum += Math.abs(value);
+            }
+            break;
+        case 2:
+            for (int i = 0; i < length; i++) {
+                byte value = (byte) (row[i] - previous[i]);
+                out[i] = value;
+                sum += Math.abs(value);
+            }
+            break;
+        case 3:
+            for (int i = 0; i < bpp; i++) {
+                byte value = (byte) (row[i] - ((previous[i] & 0xff) >> 1));
+                out[i] = value;
+                sum += Math.abs(value);
+            }
+            for (int i = bpp; i < length; i++) {
+                byte value = (byte) (row[i] - (((row[i - bpp] & 0xff)
+                        + (previous[i] & 0xff)) >> 1));
+                out[i] = value;
+                sum += Math.abs(value);
+            }
+            break;
+        default:
+            for (int i = 0; i < bpp; i++) {
+                // Paeth of (0, b, 0) is b
+                byte value = (byte) (row[i] - previous[i]);
+                out[i] = value;
+                sum += Math.abs(value);
+            }
+            for (int i = bpp; i < length; i++) {
+                byte value = (byte) (row[i] - paeth(row[i - bpp] & 0xff,
+                        previous[i] & 0xff, previous[i - bpp] & 0xff));
+                out[i] = value;
+                sum += Math.abs(value);
+            }
+        }
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * @param filterings
+     *            the same rows filtered different ways
+     * @param stride
+     *            the bytes per row, including the filter type
+     * @return the filtering whose sample compresses smallest
+     */
+    private static byte[] smallestSample(List<byte[]> filterings, int stride) {
+        // Evenly spaced runs of whole rows
+        int runs = 8;
+        int runRows = Math.max(1, SAMPLE_SIZE / runs / stride);
+        int rowCount = filterings.get(0).length / stride;
+
+        byte[] best = null;
+        long bestSize = Long.MAX_VALUE;
+        byte[] buffer = new byte[8192];
+        for (byte[] filtered : filterings) {
+            Deflater deflater = new Deflater(1, true);
+            long size;
+            try {
+                for (int run = 0; run < runs; run++) {
+                    int firstRow = (int) ((long) rowCount * run / runs);
+                    int length = Math.min(runRows, rowCount - firstRow)
+                            * stride;
+                    deflater.setInput(filtered, firstRow * stride, length);
+                    while (!deflater.needsInput()) {
+                        deflater.deflate(buffer);
+                    }
+                }
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflater.deflate(buffer);
+                }
+                size = deflater.getBytesWritten();
+            } finally {
+                deflater.end();
+            }
+
+            if (size < bestSize) {
+                bestSize = size;
+                best = filtered;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the data as a zlib stream
+     */
+    private byte[] deflate(byte[] data, int strategy) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                data.length / 4 + 64);
+        // zlib header: deflate with a 32K window, check bits for the level
+        out.write(0x78);
+        out.write(level >= 7 ? 0xDA : level >= 6 ? 0x9C : level >= 2 ? 0x5E
+                : 0x01);
+
+        if (parallel && data.length > CHUNK_SIZE * 2) {
+            for (byte[] chunk : deflateChunks(data, strategy)) {
+                out.write(chunk);
+            }
+        } else {
+            out.write(deflate(data, 0, data.length, null, true, strategy));
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(data);
+        int checksum = (int) adler.getValue();
+        out.write(checksum >>> 24);
+        out.write(checksum >>> 16);
+        out.write(checksum >>> 8);
+        out.write(checksum);
+        return out.toByteArray();
+    }
+
+    /**
+     * Deflates the data in independent chunks on the shared pool. Each chunk
+     * is primed with the 32K before it, so matches still reach back across
+     * chunk boundaries, and all but the last end on a byte boundary so the
+     * raw streams can simply be joined.
+     */
+    private List<byte[]> deflateChunks(final byte[] data, final int strategy)
+            throws IOException {
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        ExecutorService pool = getDeflatePool();
+
+        for (int start = 0; start < data.length; start += CHUNK_SIZE) {
+            final int offset = start;
+            final int length = Math.min(CHUNK_SIZE, data.length - start);
+            futures.add(pool.submit(new Callable<byte[]>() {
+                public byte[] call() {
+                    byte[] dictionary = null;
+                    if (offset > 0) {
+                        int dictionaryStart = Math.max(0, offset
+                                - DICTIONARY_SIZE);
+                        dictionary = Arrays.copyOfRange(data, dictionaryStart,
+                                offset);
+                    }
+                    return deflate(data, offset, length, dictionary, offset
+                            + length == data.length, strategy);
+                }
+            }));
+        }
+
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        try {
+            for (Future<byte[]> future : futures) {
+                chunks.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while deflating", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not deflate", e.getCause());
+        }
+        return chunks;
+    }
+
+    /**
+     * Deflates part of the data as a raw deflate stream.
+     */
+    private byte[] deflate(byte[] data, int offset, int length,
+            byte[] dictionary, boolean last, int strategy) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setStrategy(strategy);
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, offset, length);
+            if (last) {
+                deflater.finish();
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+            while (true) {
+                int count = deflater.deflate(buffer, 0, buffer.length, flush);
+                out.write(buffer, 0, count);
+                if (last ? deflater.finished() : count < buffer.length
+                        && deflater.needsInput()) {
+                    break;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static synchronized ExecutorService getDeflatePool() {
+        if (deflatePool == null) {
+            deflatePool = Executors.newFixedThreadPool(Runtime.getRuntime()
+                    .availableProcessors(), new ThreadFactory() {
+                private int count;
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "deflate-"
+                            + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return deflatePool;
+    }
+
+    private static void writeChunk(DataOutputStream out, String type,
+            byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+}
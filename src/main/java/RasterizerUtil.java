@@ -1,43 +1,39 @@
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.URI;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
-import org.apache.batik.dom.svg.SAXSVGDocumentFactory;
-import org.apache.batik.gvt.renderer.ImageRenderer;
-import org.apache.batik.transcoder.ErrorHandler;
 import org.apache.batik.transcoder.TranscoderException;
 import org.apache.batik.transcoder.TranscoderInput;
-import org.apache.batik.transcoder.TranscoderOutput;
-import org.apache.batik.transcoder.image.PNGTranscoder;
-import org.apache.batik.util.XMLResourceDescriptor;
 import org.w3c.dom.Element;
 import org.w3c.dom.svg.SVGDocument;
 
-import com.jhlabs.image.ContrastFilter;
-import com.jhlabs.image.GrayscaleFilter;
-import com.jhlabs.image.HSBAdjustFilter;
 import com.mortennobel.imagescaling.ResampleFilters;
 import com.mortennobel.imagescaling.ResampleOp;
 
@@ -64,6 +60,15 @@ public class RasterizerUtil {
         /** The input path of the source svg files. */
         File inputPath;
 
+        /** The svg that is rendered, the source or its optimized copy. */
+        File svgPath;
+
+        /**
+         * The svg's content if it was generated in memory rather than
+         * written to svgPath, null to read svgPath.
+         */
+        byte[] svgData;
+
         /** The sizes this icon should be rendered at */
         int[] sizes;
 
@@ -78,6 +83,27 @@ public class RasterizerUtil {
         /** The path to a disabled version of the icon (gets desaturated). */
         private File disabledPath;
 
+        /**
+         * The icon's primary raster, kept by the render for the galleries
+         * when it is small. Null to read it back from galleryRasterPath.
+         */
+        BufferedImage galleryImage;
+
+        /** The hash of the svg content, computed when rendering starts. */
+        String sourceHash;
+
+        /**
+         * The svg's dimensions and element counts, null until it is scanned
+         * or if it couldn't be.
+         */
+        SvgScan scan;
+
+        /** Every file written for this icon by the last render. */
+        List<File> outputs = new ArrayList<File>();
+
+        /** The estimated cost of rendering the icon, see estimateCost. */
+        long cost;
+
         /**
          * 
          * @param nameBase
@@ -91,19 +117,117 @@ public class RasterizerUtil {
             this.nameBase = nameBase;
             this.sizes = sizes;
             this.inputPath = inputPath;
+            this.svgPath = inputPath;
             this.outputPath = outputPath;
             this.disabledPath = disabledPath;
         }
     }
 
+    /**
+     * <p>IconRaster is one raster rendered for an icon, at one of its sizes
+     * or HiDPI scales, and where it gets written.</p>
+     */
+    static class IconRaster {
+
+        /** The pixel width of the raster. */
+        int width;
+
+        /** The pixel height of the raster. */
+        int height;
+
+        /** The file the raster is written to. */
+        File file;
+
+        /** The file the disabled variant is written to, or null for none. */
+        File disabledFile;
+
+        /** The size and HiDPI scale the raster is for, e.g. 16 or 16@2x. */
+        String variant;
+
+        /** The icon size the raster is for, e.g. 16 for 16@2x. */
+        int size;
+
+        /**
+         * The rendering hints of the raster, those of its icon size, see
+         * {@link RenderSettings#fingerprint(int[])}.
+         */
+        RenderQuality quality;
+
+        /** The rendered raster, released once encoded. */
+        BufferedImage image;
+
+        /** The encoded raster and disabled variant, released once written. */
+        byte[] png, disabledPng;
+
+        IconRaster(int width, int height, File file, File disabledFile) {
+            this.width = width;
+            this.height = height;
+            this.file = file;
+            this.disabledFile = disabledFile;
+        }
+    }
+
+    /**
+     * <p>RenderJob carries an icon through the render pipeline, holding what
+     * each stage produces for the next.</p>
+     */
+    static class RenderJob {
+
+        final IconDef icon;
+
+        final RenderMetrics.IconMetrics iconMetrics;
+
+        /** The hash of the settings, null unless rendering incrementally. */
+        String settingsHash;
+
+        /** The parsed document, released once rendered. */
+        SVGDocument document;
+
+        /** The dimensions the svg is designed at. */
+        int nativeWidth, nativeHeight;
+
+        /** The rasters of the icon, largest first. */
+        List<IconRaster> rasters;
+
+        /** The heap held for the icon, released once it is encoded. */
+        MemoryBudget.Reservation reservation;
+
+        /** The icon's render cache key, null if there's no cache. */
+        String cacheKey;
+
+        /** True if the PNGs came from the render cache. */
+        boolean cached;
+
+        RenderJob(IconDef icon, RenderMetrics.IconMetrics iconMetrics) {
+            this.icon = icon;
+            this.iconMetrics = iconMetrics;
+        }
+    }
+
     /** A list of directories with svg sources to rasterize. */
     private List<IconDef> icons;
 
-    /** A list of the output render sizes. */
-    private static final int[] SIZES = new int[] { 16 };
+    /** The size of the grid the icon set is designed on. */
+    static final int BASE_SIZE = 16;
 
-    /** The pool used to render multiple icons concurrently. */
-    private ExecutorService execPool;
+    /**
+     * What a filter primitive adds to the cost of an icon, in svg bytes.
+     * Fitted to the render times of the icon set, where file size and
+     * filters explain about 60% of the variation.
+     */
+    private static final long FILTER_PRIMITIVE_COST = 3500;
+
+    /**
+     * The largest raster kept in memory for the galleries, 1200 icons of
+     * 64x64 take about 20 MB.
+     */
+    private static final int GALLERY_IMAGE_PIXELS = 64 * 64;
+
+    /**
+     * The stages submitted icons are rendered by, null until an icon is
+     * submitted. Guarded by this.
+     */
+    private RenderPipeline<RenderJob> pipeline;
 
     /** The number of threads to use when rendering icons. */
     private int threads;
@@ -124,19 +248,175 @@ public class RasterizerUtil {
     List<IconDef> failedIcons = Collections
             .synchronizedList(new ArrayList<IconDef>(5));
 
+    /** The options for this run. */
+    private RenderSettings settings;
+
+    /**
+     * Records the inputs of rendered icons, null unless rendering
+     * incrementally.
+     */
+    private RenderManifest manifest;
+
+    /** The number of icons skipped because their output was up to date. */
+    private AtomicInteger upToDate;
+
+    /** Rendered icons shared between builds, null if not caching. */
+    private RenderCache cache;
+
+    /** The per-icon stage timings of this run. */
+    private RenderMetrics metrics;
+
+    /** Encodes the icons, each on its own render pipeline thread. */
+    private PngEncoder pngEncoder;
+
+    /** Encodes atlases, deflating them in parallel. */
+    private PngEncoder atlasEncoder;
+
+    /**
+     * Encodes galleries. They are for reviewing rather than shipping, so
+     * they aren't worth the slowest compression.
+     */
+    private PngEncoder galleryEncoder;
+
+    /** Creates the disabled variants of icons. */
+    private DisabledFilter disabledFilter;
+
+    /** Limits the icons in memory to what fits in the heap. */
+    private MemoryBudget memoryBudget;
+
+    /** Draws gallery tiles, created when the first gallery is rendered. */
+    private ExecutorService galleryPool;
+
+    /**
+     * The resources directory and the directory holding its optimized svgs,
+     * null to render the svgs themselves.
+     */
+    private File resourcesDir, optimizedDir;
+
+    /** Packages the icons as they are written, null if not packaging. */
+    private DistPackager packager;
+
+    /** Checks the rasters against the golden set, null if not checking. */
+    private GoldenImages golden;
+
     /**
      * @param threads
      *            the number of threads to use when rendering icons
      */
     public RasterizerUtil(int threads) {
+        this(threads, RenderSettings.fromSystemProperties());
+    }
+
+    /**
+     * @param threads
+     *            the number of threads to use when rendering icons
+     * @param settings
+     *            the options for this run
+     */
+    public RasterizerUtil(int threads, RenderSettings settings) {
         icons = new ArrayList<IconDef>();
         this.threads = threads;
-        execPool = Executors.newFixedThreadPool(threads);
+        this.settings = settings;
         counter = new AtomicInteger();
+        upToDate = new AtomicInteger();
+        metrics = new RenderMetrics();
+        pngEncoder = new PngEncoder(settings.pngCompression,
+                settings.pngPalette, false);
+        atlasEncoder = new PngEncoder(settings.pngCompression,
+                settings.pngPalette, true);
+        galleryEncoder = new PngEncoder(Math.min(6, settings.pngCompression),
+                settings.pngPalette, true);
+        disabledFilter = new DisabledFilter(settings.disabledBrightness,
+                settings.disabledContrast);
+        memoryBudget = new MemoryBudget(
+                settings.heapBudget > 0 ? settings.heapBudget
+                        : MemoryBudget.ofMaxHeap(0.6), threads);
 
         galleryIconSets = new HashMap<String, List<IconDef>>();
     }
 
+    /**
+     * Enables incremental rendering, icons recorded in the manifest with the
+     * same svg content and settings are not rendered again.
+     * 
+     * @param manifest
+     *            the manifest to check and update, or null to render all
+     *            icons
+     */
+    public void setManifest(RenderManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Takes icons from the cache instead of rendering them when it has them,
+     * and adds the icons rendered to it.
+     * 
+     * @param cache
+     *            the render cache, or null to always render
+     */
+    public void setCache(RenderCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Adds each icon written to the distribution archive as it is written.
+     * 
+     * @param packager
+     *            the packager, or null to not package the icons
+     */
+    public void setPackager(DistPackager packager) {
+        this.packager = packager;
+    }
+
+    /**
+     * Checks every raster against the golden set as it is encoded.
+     * 
+     * @param golden
+     *            the golden set, or null to not check the rasters
+     */
+    public void setGoldenImages(GoldenImages golden) {
+        this.golden = golden;
+    }
+
+    /**
+     * Renders the optimized copies of the svgs instead of the svgs. Gifs,
+     * the manifest and the galleries still refer to the svgs.
+     * 
+     * @param resources
+     *            the directory holding the icon sets
+     * @param optimized
+     *            the directory holding the copies, with the same layout,
+     *            see {@link SvgOptimizer#optimizeAll(File, File, int)}
+     */
+    public void setOptimizedSources(File resources, File optimized) {
+        this.resourcesDir = resources;
+        this.optimizedDir = optimized;
+    }
+
+    /**
+     * 
+     * @return the per-icon stage timings of this run.
+     */
+    public RenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 
+     * @return the heap budget rendered icons are admitted under.
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * 
+     * @return the number of icons skipped because they were up to date.
+     */
+    public int getIconsUpToDate() {
+        return upToDate.get();
+    }
+
     /**
      * 
      * @return the number of icons rendered at the time of the call.
@@ -160,15 +440,57 @@ public class RasterizerUtil {
 
         IconDef def = new IconDef(split[0], input, outputPath, disabledPath,
                 sizes);
+        if (optimizedDir != null) {
+            File copy = optimizedDir.toPath().resolve(
+                    resourcesDir.toPath().relativize(input.toPath())
+                            .toString()).toFile();
+            if (copy.isFile()) {
+                def.svgPath = copy;
+            }
+        }
 
-        icons.add(def);
+        synchronized (icons) {
+            icons.add(def);
+        }
 
         return def;
     }
 
     /**
-     * Generates a set of raster images from the input SVG vector image.
-     * TODO break this up
+     * Creates an IconDef for a discovered svg and adds it to its icon set's
+     * gallery. Safe to call from several discovery threads.
+     * 
+     * @param setName
+     *            the icon set (gallery) the icon belongs to
+     * @param input
+     * @param outputPath
+     * @param disabledPath
+     * @return the new icon
+     */
+    public IconDef addIcon(String setName, File input, File outputPath,
+            File disabledPath) {
+        IconDef icon = createIcon(input, outputPath, disabledPath,
+                settings.sizes);
+
+        // Update the gallery icons sets
+        synchronized (galleryIconSets) {
+            List<IconDef> list = galleryIconSets.get(setName);
+
+            if (list == null) {
+                list = new ArrayList<IconDef>();
+                galleryIconSets.put(setName, list);
+            }
+
+            list.add(icon);
+        }
+
+        return icon;
+    }
+
+    /**
+     * Generates a set of raster images from the input SVG vector image on the
+     * calling thread, running every stage of the render pipeline in turn and
+     * recording the time spent in each.
      * 
      * @param icon
      *            the icon to render
@@ -176,16 +498,100 @@ public class RasterizerUtil {
     public void rasterize(IconDef icon) {
         if (icon == null) {
             System.err.println("Null icon definition, skipping.");
+            return;
+        }
+
+        RenderJob job = new RenderJob(icon, metrics.begin(icon.nameBase,
+                String.valueOf(icon.inputPath)));
+        try {
+            if (parseStage(job) && renderStage(job) && encodeStage(job)) {
+                writeStage(job);
+            }
+        } catch (RuntimeException e) {
+            // Don't let one bad document go unreported
+            fail(icon, job.iconMetrics, "Unexpected error", e);
+        } finally {
+            releaseMemory(job);
+            metrics.finish(job.iconMetrics);
+        }
+    }
+
+    /**
+     * Renders an icon again on the calling thread, e.g. because its svg
+     * changed, forgetting any earlier failure of the icon.
+     * 
+     * @param icon
+     * @return true if the icon was rendered
+     */
+    public boolean rerender(IconDef icon) {
+        while (failedIcons.remove(icon)) {
+            // An icon fails at most once per render, but may have been
+            // rendered several times
         }
+        icon.scan = null;
+        rasterize(icon);
+        return !failedIcons.contains(icon);
+    }
+
+    /**
+     * Records a failed icon so it can be reported and fixed.
+     * 
+     * @param icon
+     * @param iconMetrics
+     * @param reason
+     *            a short description of what failed
+     * @param e
+     *            the cause, or null
+     */
+    private void fail(IconDef icon, RenderMetrics.IconMetrics iconMetrics, String reason,
+            Throwable e) {
+        String message = reason;
+        if (e != null) {
+            message += ": " + e;
+        }
+
+        iconMetrics.fail(message);
+        failedIcons.add(icon);
+
+        System.err.println("Failed icon " + icon.nameBase + ", " + message);
+        if (e != null && settings.verbose) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prints per-icon progress when running verbosely. Printing from every
+     * render thread contends on the console, so it is off by default.
+     * 
+     * @param message
+     */
+    private void log(String message) {
+        if (settings.verbose) {
+            System.out.println(Thread.currentThread().getName() + "  "
+                    + message);
+        }
+    }
+
+    /**
+     * The first stage: checks the icon's input, skips the icon if its output
+     * is up to date and otherwise parses its document.
+     * 
+     * @param job
+     * @return true if the icon goes on to be rendered
+     */
+    boolean parseStage(RenderJob job) {
+        IconDef icon = job.icon;
+        RenderMetrics.IconMetrics iconMetrics = job.iconMetrics;
 
         if (icon.inputPath == null) {
-            System.err.println("Null icon input path, skipping: "
-                    + icon.nameBase);
+            fail(icon, iconMetrics, "Null icon input path", null);
+            return false;
         }
 
-        if (!icon.inputPath.exists()) {
-            System.err.println("Input path specified does not exist, skipping: "
-                            + icon.nameBase);
+        if (icon.svgData == null && !icon.inputPath.exists()) {
+            fail(icon, iconMetrics, "Input path specified does not exist",
+                    null);
+            return false;
         }
 
         if (icon.outputPath != null && !icon.outputPath.exists()) {
@@ -196,191 +602,839 @@ public class RasterizerUtil {
             icon.disabledPath.mkdirs();
         }
 
-        int[] sizes = icon.sizes;
+        if (manifest != null || cache != null) {
+            try {
+                icon.sourceHash = icon.svgData != null ? ContentHash
+                        .of(icon.svgData) : ContentHash.of(icon.svgPath);
+            } catch (IOException e) {
+                fail(icon, iconMetrics, "Could not hash svg", e);
+                return false;
+            }
+        }
 
-        GrayscaleFilter grayFilter = new GrayscaleFilter();
+        // Skip the icon if nothing that affects its output has changed
+        if (manifest != null) {
+            job.settingsHash = ContentHash.of(settings.fingerprint(icon.sizes));
+            if (manifest.isUpToDate(icon.inputPath.getPath(), icon.sourceHash,
+                    job.settingsHash)) {
+                icon.galleryRasterPath = new File(icon.outputPath,
+                        icon.nameBase + ".png");
+                upToDate.incrementAndGet();
+                iconMetrics.status = RenderMetrics.Status.UP_TO_DATE;
+                return false;
+            }
+        }
 
-        HSBAdjustFilter desaturator = new HSBAdjustFilter();
-        desaturator.setSFactor(0.0f);
-        
-       /* ContrastFilter contrast = new ContrastFilter();
-        	contrast.setBrightness(2.9f);
-        	contrast.setContrast(0.2f);*/
+        icon.outputs.clear();
+
+        // Use the PNGs rendered by an earlier build with the same inputs
+        if (cache != null) {
+            iconMetrics.mark();
+            job.cacheKey = RenderCache.key(icon.sourceHash,
+                    settings.fingerprint(icon.sizes) + ";disabled="
+                            + (icon.disabledPath != null));
+            RenderCache.Entry entry = cache.get(job.cacheKey);
+            if (entry != null && fromCache(job, entry)) {
+                cache.hit();
+                iconMetrics.status = RenderMetrics.Status.CACHED;
+                iconMetrics.endStage(RenderMetrics.Stage.PARSE);
+                return true;
+            }
+            cache.miss();
+        }
+
+        // Wait until the icon's estimated memory fits in the heap budget,
+        // using the scan made when the icon was submitted
+        try {
+            job.reservation = memoryBudget.reserve(estimateMemory(icon));
+        } catch (IOException e) {
+            fail(icon, iconMetrics, "Could not read svg", e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(icon, iconMetrics, "Interrupted", e);
+            return false;
+        }
 
         // Load the document and find out the native height/width
         // We reuse the document later for rasterization
-        SVGDocument svgDocument = null;
+        // The parser is reused by every icon on this thread
+        iconMetrics.mark();
         try {
-            FileInputStream iconDocumentStream = new FileInputStream(
-                    icon.inputPath);
-
-            String parser = XMLResourceDescriptor.getXMLParserClassName();
-            SAXSVGDocumentFactory f = new SAXSVGDocumentFactory(parser);
-            svgDocument = (SVGDocument) f.createDocument(icon.nameBase,
-                    iconDocumentStream);
+            job.document = icon.svgData != null ? RenderContext.get().parse(
+                    icon.nameBase, new ByteArrayInputStream(icon.svgData))
+                    : RenderContext.get().parse(icon.nameBase, icon.svgPath);
         } catch (Exception e3) {
-            // TODO Auto-generated catch block
-            e3.printStackTrace();
-            failedIcons.add(icon);
-            return;
+            fail(icon, iconMetrics, "Could not parse svg", e3);
+            return false;
         }
 
-        Element svgDocumentNode = svgDocument.getDocumentElement();
-        String nativeWidthStr = svgDocumentNode.getAttribute("width");
-        String nativeHeightStr = svgDocumentNode.getAttribute("width");
+        SvgScan scan = scan(icon);
+        if (scan != null) {
+            job.nativeWidth = scan.getPixelWidth(BASE_SIZE);
+            job.nativeHeight = scan.getPixelHeight(BASE_SIZE);
+        } else {
+            // Batik read what the scan couldn't
+            Element svgDocumentNode = job.document.getDocumentElement();
+            job.nativeWidth = pixelLength(
+                    svgDocumentNode.getAttribute("width"), BASE_SIZE);
+            job.nativeHeight = pixelLength(
+                    svgDocumentNode.getAttribute("height"), BASE_SIZE);
+        }
+        iconMetrics.endStage(RenderMetrics.Stage.PARSE);
+
+        return true;
+    }
+
+    /**
+     * The second stage: renders every raster of the icon from its parsed
+     * document, then lets go of the document.
+     * 
+     * @param job
+     * @return true if the rasters go on to be encoded
+     */
+    boolean renderStage(RenderJob job) {
+        if (job.cached) {
+            return true;
+        }
 
-        int nativeWidth = Integer.parseInt(nativeWidthStr);
-        int nativeHeight = Integer.parseInt(nativeHeightStr);
+        IconDef icon = job.icon;
+        RenderMetrics.IconMetrics iconMetrics = job.iconMetrics;
+        iconMetrics.thread = Thread.currentThread().getName();
+        iconMetrics.mark();
+
+        List<IconRaster> rasters = createRasters(icon, job.nativeWidth,
+                job.nativeHeight);
+        IconRaster largest = rasters.get(0);
+        job.rasters = rasters;
+        iconMetrics.rasters = rasters.size();
+
+        // Render the largest raster straight from the document, the other
+        // sizes reuse it or the same parsed document. PNG encoding only
+        // happens once when the final files are written
+        // The transcoder is reused by every icon on this thread
+        RenderContext context = RenderContext.get();
+        TranscoderInput input = new TranscoderInput(job.document);
+        try {
+            if (settings.supersample > 1) {
+                supersample(icon, rasters, context, input);
+                iconMetrics.endStage(RenderMetrics.Stage.RENDER);
+                return true;
+            }
 
-        int doubleWidth = nativeWidth * 2;
-        int doubleHeight = nativeHeight * 2;
+            log("Rasterizing: " + icon.nameBase + ".png at " + largest.width
+                    + "x" + largest.height);
+            RenderQuality largestQuality = largest.quality;
+            largest.image = context.render(largest.width, largest.height,
+                    input, largestQuality);
 
-        int quadWidth = nativeWidth * 4;
-        int quadHeight = nativeHeight * 4;
+            for (IconRaster raster : rasters) {
+                if (raster.image != null) {
+                    continue;
+                }
 
-        // Guesstimate the PNG size in memory, BAOS will enlarge if necessary.
-        int outputInitSize = nativeWidth * nativeWidth * 4 + 1024;
-        ByteArrayOutputStream iconOutput = new ByteArrayOutputStream(
-                outputInitSize);
+                // A size and a HiDPI variant can work out to the same pixels
+                RenderQuality quality = raster.quality;
+                raster.image = findRendered(rasters, raster.width,
+                        raster.height, quality);
+                if (raster.image != null) {
+                    continue;
+                }
 
-        // Render to SVG
-        // TODO clean this up so it's less spaghetti-ish (use exceptions
-        // properly, etc)
-        try {
-            System.out.println(Thread.currentThread().getName() + " "
-                    + " Rasterizing: " + icon.nameBase + ".png at " + quadWidth
-                    + "x" + quadHeight);
-            boolean success = renderIcon(nativeWidth, nativeHeight,
-                    new TranscoderInput(svgDocument), iconOutput);
-            if (!success) {
-                System.out.println("Failed to render icon: " + icon.nameBase
-                        + ".png, skipping.");
-                failedIcons.add(icon);
-                return;
+                // Icons lose definition and accuracy when rendered directly
+                // to <128px res with Batik
+                // Here we resize the largest image down when it is at least
+                // twice the size, which gives better results. Only from a
+                // render at least as good as this size's quality
+                if (largest.width >= raster.width * 2
+                        && largest.height >= raster.height * 2
+                        && largestQuality.compareTo(quality) >= 0) {
+                    log("Rasterizing (Scaling Native): "
+                            + raster.file.getName() + " at " + raster.width
+                            + "x" + raster.height);
+                    raster.image = downscale(largest.image, raster.width,
+                            raster.height);
+                } else {
+                    raster.image = context.render(raster.width,
+                            raster.height, input, quality);
+                }
             }
         } catch (Exception e) {
-            e.printStackTrace();
-            failedIcons.add(icon);
-            return;
+            fail(icon, iconMetrics, "Could not render svg", e);
+            return false;
+        } finally {
+            job.document = null;
+        }
+        iconMetrics.endStage(RenderMetrics.Stage.RENDER);
+
+        return true;
+    }
+
+    /**
+     * Renders an icon once at the supersampling multiple of its largest
+     * raster, in the best quality any of its sizes asks for, and scales that
+     * down to every raster with the kernel of the raster's size. Rasters
+     * with the same dimensions and kernel share one image.
+     * 
+     * @param icon
+     * @param rasters
+     *            the icon's rasters, largest first
+     * @param context
+     * @param input
+     * @throws TranscoderException
+     */
+    private void supersample(IconDef icon, List<IconRaster> rasters,
+            RenderContext context, TranscoderInput input)
+            throws TranscoderException {
+        IconRaster largest = rasters.get(0);
+        RenderQuality quality = RenderQuality.PREVIEW;
+        for (IconRaster raster : rasters) {
+            if (raster.quality.compareTo(quality) > 0) {
+                quality = raster.quality;
+            }
         }
 
-        // Generate a buffered image from Batik's png output
-        ByteArrayInputStream imageInputStream = new ByteArrayInputStream(
-                iconOutput.toByteArray());
-        BufferedImage read = null;
+        int width = largest.width * settings.supersample;
+        int height = largest.height * settings.supersample;
+        log("Rasterizing (Supersampled): " + icon.nameBase + ".png at "
+                + width + "x" + height);
+        BufferedImage supersampled = context.render(width, height, input,
+                quality);
+
+        Map<String, BufferedImage> scaled = new HashMap<String, BufferedImage>();
+        for (IconRaster raster : rasters) {
+            String filter = settings.downscaleFilter(raster.size);
+            String key = raster.width + "x" + raster.height + ":" + filter;
+            raster.image = scaled.get(key);
+            if (raster.image == null) {
+                raster.image = new IconResampler(IconResampler.filter(filter))
+                        .resample(supersampled, raster.width, raster.height);
+                scaled.put(key, raster.image);
+            }
+        }
+    }
+
+    /**
+     * The third stage: creates the disabled variants and encodes every
+     * raster as PNG, then lets go of the images.
+     * 
+     * @param job
+     * @return true if the encoded rasters go on to be written
+     */
+    boolean encodeStage(RenderJob job) {
+        if (job.cached) {
+            return true;
+        }
+
+        RenderMetrics.IconMetrics iconMetrics = job.iconMetrics;
+
         try {
-            read = ImageIO.read(imageInputStream);
-        } catch (IOException e2) {
-            // TODO Auto-generated catch block
-            e2.printStackTrace();
-            failedIcons.add(icon);
-            return;
+            for (IconRaster raster : job.rasters) {
+                // Keep small primary rasters for the galleries, rather than
+                // reading them back from disk
+                if (raster.file.equals(new File(job.icon.outputPath,
+                        job.icon.nameBase + ".png"))
+                        && raster.width * raster.height <= GALLERY_IMAGE_PIXELS) {
+                    job.icon.galleryImage = raster.image;
+                }
+
+                // The golden check is timed as part of encoding
+                iconMetrics.mark();
+                raster.png = pngEncoder.encode(raster.image);
+                if (golden != null) {
+                    golden.check(raster.file, raster.image, raster.png);
+                }
+                iconMetrics.endStage(RenderMetrics.Stage.ENCODE);
+
+                if (raster.disabledFile != null) {
+                    // The filtered image is reused by this thread's next icon,
+                    // it is done with once encoded
+                    BufferedImage desaturated = disabledFilter
+                            .filterReused(raster.image);
+                    iconMetrics.endStage(RenderMetrics.Stage.FILTER);
+
+                    raster.disabledPng = pngEncoder.encode(desaturated);
+                    if (golden != null) {
+                        golden.check(raster.disabledFile, desaturated,
+                                raster.disabledPng);
+                    }
+                    iconMetrics.endStage(RenderMetrics.Stage.ENCODE);
+                }
+            }
+        } catch (IOException e) {
+            fail(job.icon, iconMetrics, "Could not encode png", e);
+            return false;
+        } finally {
+            for (IconRaster raster : job.rasters) {
+                raster.image = null;
+            }
+            releaseMemory(job);
+        }
+
+        return true;
+    }
+
+    /**
+     * The last stage: writes the encoded rasters, copies the icon's gif and
+     * records the icon in the manifest.
+     * 
+     * @param job
+     */
+    void writeStage(RenderJob job) {
+        IconDef icon = job.icon;
+        RenderMetrics.IconMetrics iconMetrics = job.iconMetrics;
+
+        if (cache != null && !job.cached) {
+            iconMetrics.mark();
+            cache.put(job.cacheKey, toCache(job));
+            iconMetrics.endStage(RenderMetrics.Stage.WRITE);
         }
 
         try {
-            // Icons lose definition and accuracy when rendered directly
-            // to <128px res with Batik
-            // Here we resize a 16x,32x,48x,64x images down, which gives better
-            // results
-            System.out.println(Thread.currentThread().getName() + " "
-                    + " Rasterizing (Scaling Native): " + icon.nameBase
-                    + ".png at " + nativeWidth + "x" + nativeHeight);
-
-            ImageIO.write(read, PNG, new File(icon.outputPath,
-                    icon.nameBase + ".png"));
-            
+            for (IconRaster raster : job.rasters) {
+                writeFile(raster.png, raster.file, icon, iconMetrics);
+                raster.png = null;
+
+                if (raster.disabledFile != null) {
+                    writeFile(raster.disabledPng, raster.disabledFile, icon,
+                            iconMetrics);
+                    raster.disabledPng = null;
+                }
+            }
+
             icon.galleryRasterPath = new File(icon.outputPath, icon.nameBase
                     + ".png");
-            
-            if (icon.disabledPath != null) {
-                BufferedImage desaturated16 = desaturator.filter(
-                        grayFilter.filter(read, null), null);
+        } catch (Exception e1) {
+            fail(icon, iconMetrics, "Could not write png", e1);
+            return;
+        }
 
-                //BufferedImage decontrast = contrast.filter(desaturated16, null);
-                
-                ImageIO.write(desaturated16, PNG, new File(icon.disabledPath,
-                        icon.nameBase + ".png"));
-            }
-            
+        try {
             File gif = new File(icon.inputPath.getParent(), icon.nameBase + ".gif");
-            
-            Files.copy(gif.toPath(), new File(icon.outputPath, icon.nameBase + ".gif").toPath());
+            File gifOutput = new File(icon.outputPath, icon.nameBase + ".gif");
+
+            // Read rather than copied, so it can be packaged too
+            writeFile(Files.readAllBytes(gif.toPath()), gifOutput, icon,
+                    iconMetrics);
+
+            if (manifest != null) {
+                manifest.record(icon.inputPath.getPath(), icon.sourceHash,
+                        job.settingsHash, icon.outputs);
+            }
         } catch (Exception e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
-            failedIcons.add(icon);
+            fail(icon, iconMetrics, "Could not copy gif", e1);
         }
     }
 
     /**
-     * Handles concurrently rasterizing the icons on many different threads to
-     * reduce the time duration on multicore systems.
+     * Fills in the job's rasters from a cache entry.
+     * 
+     * @return false if the entry is missing one of the rasters
      */
-    public void rasterizeAll() {
-        int totalSourceIcons = icons.size();
-        final int threadExecSize = icons.size() / this.threads;
+    private boolean fromCache(RenderJob job, RenderCache.Entry entry) {
+        List<IconRaster> rasters = createRasters(job.icon, entry.nativeWidth,
+                entry.nativeHeight);
+        for (IconRaster raster : rasters) {
+            raster.png = entry.parts.get(raster.variant);
+            if (raster.disabledFile != null) {
+                raster.disabledPng = entry.parts.get(raster.variant
+                        + "-disabled");
+            }
+            if (raster.png == null
+                    || (raster.disabledFile != null && raster.disabledPng == null)) {
+                return false;
+            }
+        }
+
+        job.nativeWidth = entry.nativeWidth;
+        job.nativeHeight = entry.nativeHeight;
+        job.rasters = rasters;
+        job.iconMetrics.rasters = rasters.size();
+        job.cached = true;
+        return true;
+    }
+
+    private static RenderCache.Entry toCache(RenderJob job) {
+        RenderCache.Entry entry = new RenderCache.Entry();
+        entry.nativeWidth = job.nativeWidth;
+        entry.nativeHeight = job.nativeHeight;
+        for (IconRaster raster : job.rasters) {
+            entry.parts.put(raster.variant, raster.png);
+            if (raster.disabledPng != null) {
+                entry.parts.put(raster.variant + "-disabled",
+                        raster.disabledPng);
+            }
+        }
+        return entry;
+    }
+
+    private static void releaseMemory(RenderJob job) {
+        if (job.reservation != null) {
+            job.reservation.release();
+        }
+    }
+
+    /**
+     * Writes an encoded raster or gif, timed as the write stage, and hands
+     * it to the packager.
+     * 
+     * @param data
+     * @param file
+     * @param icon
+     *            the icon the file is written for
+     * @param iconMetrics
+     * @throws IOException
+     */
+    private void writeFile(byte[] data, File file, IconDef icon,
+            RenderMetrics.IconMetrics iconMetrics) throws IOException {
+        iconMetrics.mark();
+        File parent = file.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        icon.outputs.add(file);
+        iconMetrics.bytesWritten += data.length;
+        if (packager != null) {
+            packager.add(file, data);
+        }
+        iconMetrics.endStage(RenderMetrics.Stage.WRITE);
+    }
 
-        int start = 0;
+    /**
+     * Works out every raster an icon is rendered to: each of its sizes, plus
+     * the HiDPI variants of the primary size. Sizes are relative to the
+     * {@link #BASE_SIZE} grid, so icons with other native dimensions (wizard
+     * banners etc.) scale proportionally.
+     * 
+     * @param icon
+     * @param nativeWidth
+     * @param nativeHeight
+     * @return the rasters, largest first
+     */
+    List<IconRaster> createRasters(IconDef icon, int nativeWidth,
+            int nativeHeight) {
+        List<IconRaster> rasters = new ArrayList<IconRaster>();
+        int[] sizes = icon.sizes;
+
+        for (int i = 0; i < sizes.length; i++) {
+            float scale = sizes[i] / (float) BASE_SIZE;
+            File outputDir = icon.outputPath;
+            File disabledDir = icon.disabledPath;
 
-        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(
-                this.threads);
+            if (i > 0) {
+                outputDir = sizedDirectory(icon.outputPath, sizes[0], sizes[i]);
+                if (disabledDir != null) {
+                    disabledDir = sizedDirectory(disabledDir, sizes[0],
+                            sizes[i]);
+                }
+            }
 
-        // Distribute the rasterization operations between multiple threads
-        while (totalSourceIcons > 0) {
-            final int curStart = start;
-            start += threadExecSize;
+            rasters.add(createRaster(icon, nativeWidth, nativeHeight, scale,
+                    outputDir, disabledDir, sizes[i], ""));
 
-            int batchSize = 0;
+            if (i == 0) {
+                for (float hidpi : settings.hidpiScales) {
+                    rasters.add(createRaster(icon, nativeWidth, nativeHeight,
+                            scale * hidpi, outputDir, disabledDir, sizes[i],
+                            RenderSettings.hidpiSuffix(hidpi)));
+                }
+            }
+        }
 
-            // Determine if we can fit a full batch in this callable
-            // or if we are at the remainder end of gathered icons
-            if (totalSourceIcons >= threadExecSize) {
-                batchSize = threadExecSize;
-            } else {
-                batchSize = totalSourceIcons;
+        Collections.sort(rasters, new Comparator<IconRaster>() {
+            public int compare(IconRaster o1, IconRaster o2) {
+                return (o2.width * o2.height) - (o1.width * o1.height);
             }
+        });
 
-            totalSourceIcons -= threadExecSize;
+        return rasters;
+    }
 
-            final int execCount = batchSize;
+    private BufferedImage findRendered(List<IconRaster> rasters, int width,
+            int height, RenderQuality quality) {
+        for (IconRaster raster : rasters) {
+            if (raster.image != null && raster.width == width
+                    && raster.height == height
+                    && raster.quality.compareTo(quality) >= 0) {
+                return raster.image;
+            }
+        }
+        return null;
+    }
 
-            Callable<Object> runnable = new Callable<Object>() {
-                public Object call() throws Exception {
-                    for (int count = 0; count < execCount; count++) {
-                        rasterize(icons.get(curStart + count));
+    private IconRaster createRaster(IconDef icon, int nativeWidth,
+            int nativeHeight, float scale, File outputDir, File disabledDir,
+            int size, String suffix) {
+        String fileName = icon.nameBase + suffix + ".png";
+        IconRaster raster = new IconRaster(Math.max(1,
+                Math.round(nativeWidth * scale)), Math.max(1,
+                Math.round(nativeHeight * scale)),
+                new File(outputDir, fileName), disabledDir == null ? null
+                        : new File(disabledDir, fileName));
+        raster.variant = size + suffix;
+        raster.size = size;
+        raster.quality = settings.quality(size);
+        return raster;
+    }
+
+    /**
+     * Finds the directory the icons of an additional size go in, following
+     * the Eclipse convention of naming folders after their size (obj16,
+     * obj32...). Folders without a size in their name get a subfolder.
+     * 
+     * @param primaryDir
+     *            the directory of the primary size
+     * @param primarySize
+     * @param size
+     * @return the directory for the size
+     */
+    static File sizedDirectory(File primaryDir, int primarySize, int size) {
+        String name = primaryDir.getName();
+        String primarySuffix = Integer.toString(primarySize);
+
+        if (name.endsWith(primarySuffix)) {
+            String sized = name.substring(0, name.length()
+                    - primarySuffix.length())
+                    + size;
+            return new File(primaryDir.getParentFile(), sized);
+        }
+
+        return new File(primaryDir, size + "x" + size);
+    }
+
+    /**
+     * Scales a rendered icon down with a Lanczos filter.
+     * 
+     * @param image
+     * @param width
+     * @param height
+     * @return the scaled image
+     */
+    static BufferedImage downscale(BufferedImage image, int width, int height) {
+        ResampleOp resampleOp = new ResampleOp(width, height);
+        resampleOp.setFilter(ResampleFilters.getLanczos3Filter());
+        // The icons are already spread over the render threads
+        resampleOp.setNumberOfThreads(1);
+        return resampleOp.filter(image, null);
+    }
+
+    /**
+     * Estimates how expensive an icon is to render, used to schedule the most
+     * expensive icons first.
+     * 
+     * @param icon
+     *            the icon to estimate
+     * @return the relative cost of rendering the icon
+     */
+    long estimateCost(IconDef icon) {
+        // Larger documents have more nodes to parse and paint, filters are
+        // rendered to offscreen images
+        SvgScan scan = scan(icon);
+        if (scan == null) {
+            return svgLength(icon);
+        }
+        return scan.fileBytes + scan.filterPrimitives * FILTER_PRIMITIVE_COST;
+    }
+
+    /**
+     * @param icon
+     * @return the size of the icon's svg in bytes
+     */
+    private static long svgLength(IconDef icon) {
+        return icon.svgData != null ? icon.svgData.length : icon.svgPath
+                .length();
+    }
+
+    /**
+     * Scans the icon's svg, once.
+     * 
+     * @param icon
+     * @return the scan, or null if the svg couldn't be scanned
+     */
+    private SvgScan scan(IconDef icon) {
+        if (icon.scan == null) {
+            try {
+                icon.scan = icon.svgData != null ? SvgScan.scan(icon.svgData,
+                        icon.svgPath.toString()) : SvgScan.scan(icon.svgPath);
+            } catch (IOException e) {
+                // The parse stage reports svgs that can't be read
+                log("Could not scan " + icon.svgPath + ": " + e.getMessage());
+            }
+        }
+        return icon.scan;
+    }
+
+    /**
+     * @param length
+     *            an svg length
+     * @param fallback
+     * @return the length in whole pixels, or fallback if it's missing or
+     *         relative
+     */
+    private static int pixelLength(String length, int fallback) {
+        float pixels = SvgScan.parseLength(length);
+        return pixels > 0 ? Math.max(1, Math.round(pixels)) : fallback;
+    }
+
+    /**
+     * Creates the render pipeline: parse, render, filter/encode and write
+     * stages with their own threads. Batik rendering gets the render threads,
+     * writing is I/O bound and gets a small fixed pool, so the disk is kept
+     * busy while the processors render.
+     * 
+     * @return the new pipeline, not yet started
+     */
+    private RenderPipeline<RenderJob> createPipeline() {
+        int helpers = Math.max(1, threads / 2);
+        int parseThreads = settings.parseThreads > 0 ? settings.parseThreads
+                : helpers;
+        int encodeThreads = settings.encodeThreads > 0 ? settings.encodeThreads
+                : helpers;
+        int capacity = settings.queueCapacity > 0 ? settings.queueCapacity
+                : threads * 4;
+
+        // Waiting icons are taken most expensive first, so the long renders
+        // aren't left running on their own at the end while the other threads
+        // idle
+        RenderPipeline<RenderJob> renderPipeline = new RenderPipeline<RenderJob>(
+                new Comparator<RenderJob>() {
+                    public int compare(RenderJob o1, RenderJob o2) {
+                        return Long.valueOf(o2.icon.cost).compareTo(
+                                o1.icon.cost);
                     }
+                }, new RenderPipeline.Listener<RenderJob>() {
+                    public void jobFinished(RenderJob job, Throwable error) {
+                        if (error != null) {
+                            // Don't let one bad document go unreported
+                            fail(job.icon, job.iconMetrics,
+                                    "Unexpected error", error);
+                        }
+                        releaseMemory(job);
+                        metrics.finish(job.iconMetrics);
+                        counter.incrementAndGet();
+                    }
+                });
 
-                    counter.set(counter.get() + execCount);
-                    System.out.println("Finished rendering batch, index: "
-                            + curStart);
+        renderPipeline.addStage("parse", parseThreads, capacity,
+                new RenderPipeline.Stage<RenderJob>() {
+                    public boolean process(RenderJob job) {
+                        return parseStage(job);
+                    }
+                });
+        renderPipeline.addStage("render", threads, capacity,
+                new RenderPipeline.Stage<RenderJob>() {
+                    public boolean process(RenderJob job) {
+                        return renderStage(job);
+                    }
+                });
+        renderPipeline.addStage("encode", encodeThreads, capacity,
+                new RenderPipeline.Stage<RenderJob>() {
+                    public boolean process(RenderJob job) {
+                        return encodeStage(job);
+                    }
+                });
+        renderPipeline.addStage("write", settings.writeThreads, capacity,
+                new RenderPipeline.Stage<RenderJob>() {
+                    public boolean process(RenderJob job) {
+                        writeStage(job);
+                        return false;
+                    }
+                });
 
-                    return null;
-                }
-            };
+        return renderPipeline;
+    }
+
+    /**
+     * Estimates the heap an icon needs while it is parsed, rendered and
+     * encoded.
+     * 
+     * @param icon
+     * @return the estimated bytes
+     * @throws IOException
+     *             if the svg could not be read
+     */
+    long estimateMemory(IconDef icon) throws IOException {
+        SvgScan scan = scan(icon);
+        if (scan == null) {
+            return MemoryBudget.estimate(svgLength(icon),
+                    icon.svgData != null ? MemoryBudget
+                            .countElements(new ByteArrayInputStream(
+                                    icon.svgData)) : MemoryBudget
+                            .countElements(icon.svgPath),
+                    estimatePixels(icon));
+        }
+        return MemoryBudget.estimate(scan.fileBytes, scan.elements,
+                estimatePixels(icon));
+    }
+
+    /**
+     * Estimates the pixels rendered for an icon, from its scanned dimensions
+     * or, if it couldn't be scanned, as if it were designed on the
+     * {@link #BASE_SIZE} grid like most of the set.
+     * 
+     * @param icon
+     * @return the total pixels of the icon's rasters and of its supersampled
+     *         render
+     */
+    long estimatePixels(IconDef icon) {
+        SvgScan scan = icon.scan;
+        int nativeWidth = scan == null ? BASE_SIZE : scan
+                .getPixelWidth(BASE_SIZE);
+        int nativeHeight = scan == null ? BASE_SIZE : scan
+                .getPixelHeight(BASE_SIZE);
+
+        long pixels = 0;
+        long largest = 0;
+        for (IconRaster raster : createRasters(icon, nativeWidth, nativeHeight)) {
+            pixels += (long) raster.width * raster.height;
+            largest = Math.max(largest, Math.max(raster.width, raster.height));
+        }
+
+        // The supersampled render is held while it is scaled down
+        if (settings.supersample > 1) {
+            long side = largest * settings.supersample;
+            pixels += side * side;
+        }
+        return pixels;
+    }
+
+    /**
+     * Queues an icon for rendering, it starts as soon as the parse stage has
+     * room for it. Blocks while the pipeline is full, so the icons held in
+     * memory stay bounded however fast they are submitted.
+     * 
+     * @param icon
+     *            the icon to render
+     */
+    public void submit(IconDef icon) {
+        icon.cost = estimateCost(icon);
+        RenderJob job = new RenderJob(icon, metrics.begin(icon.nameBase,
+                String.valueOf(icon.inputPath)));
+
+        RenderPipeline<RenderJob> running;
+        synchronized (this) {
+            if (pipeline == null) {
+                pipeline = createPipeline();
+                pipeline.start();
+            }
+            running = pipeline;
+        }
+
+        try {
+            running.submit(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for every submitted icon to finish rendering and stops the
+     * pipeline's threads.
+     */
+    public void awaitRendering() {
+        RenderPipeline<RenderJob> running;
+        synchronized (this) {
+            running = pipeline;
+            pipeline = null;
+        }
+
+        if (running == null) {
+            return;
+        }
+
+        try {
+            running.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metrics.recordThreads(running.getThreadTotals());
+        running.shutdown();
+    }
+
+    /**
+     * Handles concurrently rasterizing the icons on many different threads to
+     * reduce the time duration on multicore systems.
+     */
+    public void rasterizeAll() {
+        List<IconDef> queue;
+        synchronized (icons) {
+            queue = new ArrayList<IconDef>(icons);
+        }
 
-            tasks.add(runnable);
+        for (IconDef icon : queue) {
+            icon.cost = estimateCost(icon);
         }
 
-        // Execute the rasterization operations that
-        // have been added to the pool
+        // The pipeline only orders the icons waiting in its queues, so hand
+        // them over most expensive first
+        Collections.sort(queue, new Comparator<IconDef>() {
+            public int compare(IconDef o1, IconDef o2) {
+                return Long.valueOf(o2.cost).compareTo(o1.cost);
+            }
+        });
+
+        metrics.start();
+        for (IconDef icon : queue) {
+            submit(icon);
+        }
+        awaitRendering();
+        metrics.stop();
+
+        printFailedIcons();
+    }
+
+    /**
+     * Finds the icons below the resources directory and renders them while
+     * the search is still going, rather than gathering everything first. The
+     * search waits whenever the render pipeline is full.
+     * 
+     * @param resources
+     *            the directory holding the icon sets
+     * @param outputBase
+     *            the directory rendered icon sets are written to
+     * @throws IOException
+     *             if the resources could not be searched
+     */
+    public void discoverAndRasterize(File resources, File outputBase)
+            throws IOException {
+        metrics.start();
         try {
-            execPool.invokeAll(tasks);
-        } catch (InterruptedException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            new IconDiscovery(threads).discover(resources, outputBase,
+                    new IconDiscovery.Listener() {
+                        public void iconFound(String setName, File svg,
+                                File outputDir, File disabledDir) {
+                            submit(addIcon(setName, svg, outputDir,
+                                    disabledDir));
+                        }
+                    });
+        } finally {
+            awaitRendering();
+            metrics.stop();
         }
 
-        // Print info about failed render operations, so they can be fixed
+        printFailedIcons();
+    }
+
+    /**
+     * Print info about failed render operations, so they can be fixed
+     */
+    private void printFailedIcons() {
         System.out.println("Failed Icon Count: " + failedIcons.size());
         for (IconDef icon : failedIcons) {
             System.out.println("Failed Icon: " + icon.nameBase);
         }
-
     }
 
     /**
      * Use batik to rasterize the input SVG into a raster image at the specified
-     * image dimensions.
+     * image dimensions, using the calling thread's {@link RenderContext}.
      * 
      * @param width
      * @param height
@@ -389,227 +1443,382 @@ public class RasterizerUtil {
      */
     public static boolean renderIcon(int width, int height,
             TranscoderInput tinput, OutputStream stream) {
-     PNGTranscoder t = new PNGTranscoder() {
-            protected ImageRenderer createRenderer() {
-                ImageRenderer renderer = super.createRenderer();
-
-                RenderingHints renderHints = renderer.getRenderingHints();
-
-                renderHints.add(new RenderingHints(RenderingHints.KEY_TEXT_ANTIALIASING,
-                    RenderingHints.VALUE_TEXT_ANTIALIAS_OFF));
-                
-                renderHints.add(new RenderingHints(RenderingHints.KEY_RENDERING,
-                    RenderingHints.VALUE_RENDER_QUALITY));
-                
-                renderHints.add(new RenderingHints(RenderingHints.KEY_DITHERING,
-                    RenderingHints.VALUE_DITHER_DISABLE));
-                
-                renderHints.add(new RenderingHints(RenderingHints.KEY_INTERPOLATION,
-                    RenderingHints.VALUE_INTERPOLATION_BICUBIC));
-                
-                renderHints.add(new RenderingHints(RenderingHints.KEY_ALPHA_INTERPOLATION,
-                    RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY));
-                
-                renderHints.add(new RenderingHints(RenderingHints.KEY_ANTIALIASING,
-                    RenderingHints.VALUE_ANTIALIAS_ON));
-
-                renderHints.add(new RenderingHints(RenderingHints.KEY_COLOR_RENDERING,
-                    RenderingHints.VALUE_COLOR_RENDER_QUALITY));
-
-                renderHints.add(new RenderingHints(RenderingHints.KEY_STROKE_CONTROL,
-                    RenderingHints.VALUE_STROKE_PURE));
-
-                renderHints.add(new RenderingHints(RenderingHints.KEY_FRACTIONALMETRICS,
-                    RenderingHints.VALUE_FRACTIONALMETRICS_ON));
-
-                renderer.setRenderingHints(renderHints);
-
-                return renderer;
-            }
-        };
-        
-        t.addTranscodingHint(PNGTranscoder.KEY_WIDTH, new Float(width));
-        t.addTranscodingHint(PNGTranscoder.KEY_HEIGHT, new Float(height));
-
-        t.setErrorHandler(new ErrorHandler() {
-            public void warning(TranscoderException arg0)
-                    throws TranscoderException {
-                System.err.println("WARN: " + arg0.getMessage());
-            }
-
-            public void fatalError(TranscoderException arg0)
-                    throws TranscoderException {
-                System.err.println("FATAL: " + arg0.getMessage());
-            }
-
-            public void error(TranscoderException arg0)
-                    throws TranscoderException {
-                System.err.println("ERROR: " + arg0.getMessage());
-            }
-        });
-
-        TranscoderOutput output = new TranscoderOutput(stream);
-
-        try {
-            t.transcode(tinput, output);
-
-            stream.close();
-            return true;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        } finally {
-
-        }
+        return RenderContext.get().render(width, height, tinput, stream);
     }
 
     /**
      * Search the resources directory for svg icons and add them to our
      * collection for rasterization later.
      * 
-     * @param raster
      * @param outputName
+     *            the icon set (gallery) the icons belong to
+     * @param rootDir
+     *            the icon set's directory
      * @param iconDir
+     *            the directory to search
      * @param outputBase
-     * @param outputDir2
-     */
-    public void gatherIcons(String outputName, File rootDir, File iconDir,
-            File outputBase) {
-
-        File[] listFiles = iconDir.listFiles();
-
-        for (File child : listFiles) {
-            if (child.isDirectory()) {
-                gatherIcons(outputName, rootDir, child, outputBase);
-                continue;
-            }
-
-            if (child.getName().endsWith("svg")) {
-                // Compute a relative path for the output dir
-                URI rootUri = rootDir.toURI();
-                URI iconUri = iconDir.toURI();
-
-                String relativePath = rootUri.relativize(iconUri).getPath();
-                File outputDir = new File(outputBase, relativePath);
-                File disabledOutputDir = null;
-
-                File parentFile = child.getParentFile();
-
-                // Determine if/where to put a disabled version of the icon
-                // Eclipse traditionally uses a prefix of d for disabled, e for
-                // enabled
-                // in the folder name
-                if (parentFile != null) {
-                    String parentDirName = parentFile.getName();
-                    if (parentDirName.startsWith("e")) {
-                        StringBuilder builder = new StringBuilder();
-                        builder.append("d");
-                        builder.append(parentDirName.substring(1,
-                                parentDirName.length()));
-                        String disabledVariant = builder.toString();
-
-                        File setParent = parentFile.getParentFile();
-                        for (File disabledFolder : setParent.listFiles()) {
-                            if (disabledFolder.getName()
-                                    .equals(disabledVariant)) {
-                                String path = rootUri.relativize(
-                                        disabledFolder.toURI()).getPath();
-                                disabledOutputDir = new File(outputBase, path);
-                            }
+     *            the directory the set's output goes in
+     */
+    public void gatherIcons(final String outputName, File rootDir,
+            File iconDir, File outputBase) {
+        try {
+            new IconDiscovery(1).walk(outputName, rootDir.toPath(),
+                    iconDir.toPath(), outputBase, new IconDiscovery.Listener() {
+                        public void iconFound(String setName, File svg,
+                                File outputDir, File disabledDir) {
+                            addIcon(outputName, svg, outputDir, disabledDir);
                         }
+                    });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                    }
-                }
+    /**
+     * Packs the rendered icons of each bundle into atlas images with an index
+     * of where each icon is, see {@link IconAtlas}. Reads the icons back from
+     * disk, so icons skipped as up to date are included.
+     * 
+     * @param targetDir
+     *            the directory the icon sets were rendered to
+     * @param atlasDir
+     *            the directory to write the atlases to
+     */
+    public void renderAtlases(File targetDir, File atlasDir) {
+        int atlasCount = 0;
+        int iconCount = 0;
 
-                IconDef createIcon = createIcon(child, outputDir,
-                        disabledOutputDir, SIZES);
+        for (Entry<String, List<IconDef>> entry : galleryIconSets.entrySet()) {
+            File setDir = new File(targetDir, entry.getKey());
+            Map<String, IconAtlas> atlases = new TreeMap<String, IconAtlas>();
 
-                // Update the gallery icons sets
-                List<IconDef> list = galleryIconSets.get(rootDir.getName());
+            for (IconDef icon : entry.getValue()) {
+                String bundle = bundlePath(setDir, icon.outputPath);
+                if (bundle == null) {
+                    continue;
+                }
+
+                IconAtlas atlas = atlases.get(bundle);
+                if (atlas == null) {
+                    atlas = new IconAtlas(bundle);
+                    atlases.put(bundle, atlas);
+                }
 
-                if (list == null) {
-                    list = new ArrayList<IconDef>();
-                    galleryIconSets.put(rootDir.getName(), list);
+                // Only the file names are needed, which don't depend on the
+                // native size
+                File bundleDir = new File(setDir, bundle);
+                for (IconRaster raster : createRasters(icon, BASE_SIZE,
+                        BASE_SIZE)) {
+                    atlas.add(raster.variant,
+                            relativeName(bundleDir, raster.file), raster.file);
+                    if (raster.disabledFile != null) {
+                        atlas.add(raster.variant + "-disabled",
+                                relativeName(bundleDir, raster.disabledFile),
+                                raster.disabledFile);
+                    }
                 }
+            }
 
-                list.add(createIcon);
+            for (Entry<String, IconAtlas> atlas : atlases.entrySet()) {
+                try {
+                    iconCount += atlas.getValue().write(
+                            new File(new File(atlasDir, entry.getKey()),
+                                    atlas.getKey()), atlasEncoder);
+                    atlasCount++;
+                } catch (IOException e) {
+                    System.err.println("Could not write atlas for "
+                            + atlas.getKey() + ": " + e);
+                }
             }
         }
+
+        System.out.println("Packed " + iconCount + " icons into atlases for "
+                + atlasCount + " bundles.");
+    }
+
+    /**
+     * Finds the bundle an output directory belongs to: the first directory
+     * below the icon set, or below its bundles folder.
+     * 
+     * @param setDir
+     * @param outputDir
+     * @return the bundle's path relative to the icon set, or null if the
+     *         directory isn't in a bundle
+     */
+    static String bundlePath(File setDir, File outputDir) {
+        String relative = setDir.toPath().relativize(outputDir.toPath())
+                .toString().replace(File.separatorChar, '/');
+        String[] segments = relative.split("/");
+
+        if (segments.length > 1 && segments[0].equals("bundles")) {
+            return segments[0] + "/" + segments[1];
+        }
+        if (segments.length > 0 && segments[0].length() > 0
+                && !segments[0].equals("..")) {
+            return segments[0];
+        }
+        return null;
+    }
+
+    private static String relativeName(File dir, File file) {
+        return dir.toPath().relativize(file.toPath()).toString()
+                .replace(File.separatorChar, '/');
     }
 
     /**
      * Renders each icon set into a gallery image for reviewing and showing off
-     * icons, and then composes them into a master gallery image.
+     * icons, and then composes them into a master gallery image. The sets are
+     * composed at the same time, from the rasters kept in memory by the render
+     * where there are any. Each icon is scored against its gif, see
+     * {@link GifFidelity}, the scores are written to gif-fidelity.csv and the
+     * icons scoring below the threshold are drawn next to their gif in a
+     * comparison gallery.
      * 
      * @param rasterizer
      * @param targetDir
      * @param iconSize
      * @param width
      */
-    public void renderGalleries(File targetDir, int iconSize, int width) {
-        // Render each icon set and a master list
-        List<IconDef> masterList = new ArrayList<IconDef>();
-        Map<String, List<IconDef>> iconSets2 = galleryIconSets;
+    public void renderGalleries(final File targetDir, final int iconSize,
+            final int width) {
+        // Render each icon set, keeping the galleries for the master image
+        final Map<String, BufferedImage> galleries = new TreeMap<String, BufferedImage>();
+        final List<GifFidelity.Score> scores = Collections
+                .synchronizedList(new ArrayList<GifFidelity.Score>());
+        List<Callable<Object>> sets = new ArrayList<Callable<Object>>();
+
+        for (Entry<String, List<IconDef>> entry : galleryIconSets.entrySet()) {
+            final String key = entry.getKey();
+            final List<IconDef> value = entry.getValue();
+
+            sets.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    System.out.println("Creating gallery for: " + key);
+                    BufferedImage gallery = renderGallery(targetDir, key,
+                            value, iconSize, width, 3);
+                    synchronized (galleries) {
+                        galleries.put(key, gallery);
+                    }
+                    Map<IconDef, GifFidelity.Score> setScores = scoreGifs(key,
+                            value);
+                    scores.addAll(setScores.values());
+                    renderGifCompareGallery(targetDir, key, setScores,
+                            iconSize, 6);
+                    return null;
+                }
+            });
+        }
+        // The sets' tiles go to the shared gallery threads, so the sets get
+        // their own
+        ExecutorService setPool = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(threads, sets.size())));
+        try {
+            inParallel(setPool, sets);
+        } finally {
+            setPool.shutdown();
+        }
 
-        for (Entry<String, List<IconDef>> entry : iconSets2.entrySet()) {
-            String key = entry.getKey();
-            List<IconDef> value = entry.getValue();
+        // Render the master image
+        System.out.println("Rendering master icon gallery...");
+        List<BufferedImage> images = new ArrayList<BufferedImage>(
+                galleries.values());
+        renderMasterGallery(targetDir, images, iconSize, iconSize + width,
+                true);
+        renderMasterGallery(targetDir, images, iconSize, iconSize + width,
+                false);
+
+        List<GifFidelity.Score> ranked = GifFidelity.rank(scores);
+        GifFidelity.printSummary(System.out, ranked, targetDir,
+                settings.gifThreshold, 10);
+        try {
+            GifFidelity.writeCsv(ranked, targetDir, new File(targetDir,
+                    "gif-fidelity.csv"));
+        } catch (IOException e) {
+            System.err.println("Could not write gif fidelity report: "
+                    + e.getMessage());
+        }
+    }
 
-            masterList.addAll(value);
+    /**
+     * Runs tasks on a pool and waits for them, reporting any that fail.
+     * 
+     * @param pool
+     * @param tasks
+     */
+    private static void inParallel(ExecutorService pool,
+            List<Callable<Object>> tasks) {
+        try {
+            for (Future<Object> result : pool.invokeAll(tasks)) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            System.out.println("Creating gallery for: " + key);
-            renderGallery(targetDir, key, value, iconSize, width, 3);
-            renderGifCompareGallery(targetDir, key, value, iconSize, width, 6);
+    private synchronized ExecutorService getGalleryPool() {
+        if (galleryPool == null) {
+            galleryPool = Executors.newFixedThreadPool(Math.max(1, threads),
+                    new ThreadFactory() {
+                        private int count;
+
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "gallery-"
+                                    + (++count));
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
         }
+        return galleryPool;
+    }
 
-        // Render the master image
-        System.out.println("Rendering master icon gallery...");
-        renderMasterGallery(targetDir, iconSize, iconSize + width, true);
-        renderMasterGallery(targetDir, iconSize, iconSize + width, false);
+    /**
+     * @param def
+     * @return the icon's primary raster, from memory if the render kept it
+     * @throws IOException
+     *             if the raster couldn't be read back
+     */
+    private static BufferedImage galleryImage(IconDef def) throws IOException {
+        BufferedImage image = def.galleryImage;
+        if (image == null) {
+            image = ImageIO.read(def.galleryRasterPath);
+            if (image == null) {
+                throw new IOException("Not an image");
+            }
+        }
+        return image;
     }
 
     /**
+     * @return the image at the gallery's icon size, resampled with Lanczos3
+     *         unless it is that size already
+     */
+    private static BufferedImage galleryTile(BufferedImage image, int iconSize) {
+        if (image.getWidth() == iconSize && image.getHeight() == iconSize) {
+            return image;
+        }
+
+        return downscale(image, iconSize, iconSize);
+    }
+
+    /**
+     * @return the icons of a set that appear in its galleries, the failed
+     *         icons are left out
+     */
+    private List<IconDef> galleryIcons(List<IconDef> value) {
+        List<IconDef> shown = new ArrayList<IconDef>();
+        synchronized (galleryIconSets) {
+            for (IconDef def : value) {
+                if (failedIcons.contains(def)) {
+                    continue;
+                }
+                if (def.galleryRasterPath == null) {
+                    System.err.println("Undefined gallery image for : "
+                            + def.nameBase);
+                    continue;
+                }
+                shown.add(def);
+            }
+        }
+        return shown;
+    }
+
+    /**
+     * Scores each icon of a set against its gif, in parallel on the gallery
+     * threads. Icons without a gif aren't scored.
      * 
-     * @param root
      * @param key
+     *            the icon set
      * @param value
+     *            the set's icons
+     * @return the scores by icon
+     */
+    private Map<IconDef, GifFidelity.Score> scoreGifs(final String key,
+            List<IconDef> value) {
+        final Map<IconDef, GifFidelity.Score> scores = new HashMap<IconDef, GifFidelity.Score>();
+        List<Callable<Object>> icons = new ArrayList<Callable<Object>>();
+        for (final IconDef def : galleryIcons(value)) {
+            icons.add(new Callable<Object>() {
+                public Object call() {
+                    File gifPath = new File(def.galleryRasterPath
+                            .getParentFile(), def.nameBase + ".gif");
+                    try {
+                        BufferedImage gifImage = ImageIO.read(gifPath);
+                        if (gifImage == null) {
+                            return null;
+                        }
+                        GifFidelity.Score score = GifFidelity.score(key,
+                                def.galleryRasterPath, gifImage,
+                                galleryImage(def));
+                        synchronized (scores) {
+                            scores.put(def, score);
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Could not score icon against its gif: "
+                                + def.galleryRasterPath.getAbsolutePath()
+                                + ", " + e);
+                    }
+                    return null;
+                }
+            });
+        }
+        inParallel(getGalleryPool(), icons);
+        return scores;
+    }
+
+    /**
+     * Draws the icons of a set that score below the gif fidelity threshold
+     * next to their gif, worst match first, so they can be reviewed. No
+     * gallery is written if every icon scores above it.
+     * 
+     * @param root
+     * @param key
+     *            the icon set
+     * @param scores
+     *            the set's icons and their scores
      * @param iconSize
-     * @param width
      * @param margin
      */
-    private void renderGifCompareGallery(File root, String key, List<IconDef> value,
-            int iconSize, int width, int margin) {
-    	int leftColumnWidth = 300;
+    private void renderGifCompareGallery(File root, final String key,
+            Map<IconDef, GifFidelity.Score> scores, final int iconSize,
+            final int margin) {
+        File file = new File(root, key + "-" + iconSize + "-gifcompare.png");
+
+        final Map<GifFidelity.Score, IconDef> icons = new HashMap<GifFidelity.Score, IconDef>();
+        List<GifFidelity.Score> below = new ArrayList<GifFidelity.Score>();
+        for (Entry<IconDef, GifFidelity.Score> entry : scores.entrySet()) {
+            if (entry.getValue().getScore() < settings.gifThreshold) {
+                icons.put(entry.getValue(), entry.getKey());
+                below.add(entry.getValue());
+            }
+        }
+        if (below.isEmpty()) {
+            file.delete();
+            return;
+        }
+        below = GifFidelity.rank(below);
+
+    	final int leftColumnWidth = 300;
     	int textHeaderHeight = 31;
-        int outputSize = iconSize;
-        int widthTotal = (outputSize*4) + (margin * 6) + leftColumnWidth;
+        final int widthTotal = (iconSize*4) + (margin * 6) + leftColumnWidth;
         
-        int rowHeight = iconSize + (margin*2);
+        final int rowHeight = iconSize + (margin*2);
         
         // Compute the height and add some room for the text header (31 px)
-        int height = (value.size() * rowHeight) + textHeaderHeight;
+        int height = (below.size() * rowHeight) + textHeaderHeight;
 
-        BufferedImage bi = new BufferedImage(widthTotal + iconSize, height,
+        final BufferedImage bi = new BufferedImage(widthTotal + iconSize, height,
                 BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = bi.createGraphics();
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                 RenderingHints.VALUE_ANTIALIAS_ON);
 
-        g.setColor(Color.GRAY);
-        g.drawString("SVG Icon Set: " + key + " - Count: " + value.size(), 8,
-                20);
-
-        int x = leftColumnWidth;
-        int y = textHeaderHeight;
-
-        // Render
-        ResampleOp resampleOp = new ResampleOp(outputSize, outputSize);
-        resampleOp.setFilter(ResampleFilters.getLanczos3Filter());
-        // resampleOp.setUnsharpenMask(AdvancedResizeOp.UnsharpenMask.Oversharpened);
-        resampleOp.setNumberOfThreads(Runtime.getRuntime()
-                .availableProcessors());
-
-        int second = leftColumnWidth + margin + iconSize;
+        final int second = leftColumnWidth + margin + iconSize;
         
         g.setColor(Color.WHITE);
         g.fillRect(0, 0, widthTotal+10, height);
@@ -617,50 +1826,58 @@ public class RasterizerUtil {
         g.setColor(Color.DARK_GRAY);
         g.fillRect(second + (margin/2) + iconSize + 20, 0, (margin*2) + (iconSize*2)+10, height);
 
-        g.drawString(key + " (GIF / PNG)", 15, 20);
+        g.drawString(key + " (GIF / PNG), " + below.size() + " icons below "
+                + settings.gifThreshold, 15, 20);
+        g.dispose();
         
-        // Render each icon into the gallery grid
-        for (IconDef def : value) {
-            // Skip failed icons
-            if (failedIcons.contains(def)) {
-                continue;
-            }
-
-            try {
-                if (def.galleryRasterPath == null) {
-                    System.err.println("Undefined gallery image for : "
-                            + def.nameBase);
-                    continue;
+        // Render each icon into its own row of the gallery, each row is
+        // drawn through its own view of the image
+        List<Callable<Object>> rows = new ArrayList<Callable<Object>>();
+        int y = textHeaderHeight;
+        for (final GifFidelity.Score score : below) {
+            final IconDef def = icons.get(score);
+            final int rowY = y;
+            rows.add(new Callable<Object>() {
+                public Object call() {
+                    try {
+                        File gifPath = new File(def.galleryRasterPath
+                                .getParentFile(), def.nameBase + ".gif");
+                        BufferedImage gifImage = ImageIO.read(gifPath);
+                        BufferedImage iconImage = galleryImage(def);
+
+                        Graphics2D g = bi.getSubimage(0, rowY, bi.getWidth(),
+                                rowHeight).createGraphics();
+                        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                                RenderingHints.VALUE_ANTIALIAS_ON);
+                        g.setColor(Color.DARK_GRAY);
+
+                        g.drawString(String.format(Locale.ROOT, "%.3f  %s",
+                                score.getScore(), def.nameBase), 5, margin * 3);
+
+                        g.drawLine(0, 0, widthTotal, 0);
+                        g.drawImage(gifImage, leftColumnWidth, margin, null);
+                        g.drawImage(iconImage, second, margin, null);
+
+                        g.drawImage(gifImage, second + margin + iconSize + 30,
+                                margin, null);
+                        g.drawImage(iconImage, second + (margin * 2)
+                                + (iconSize * 2) + 30, margin, null);
+                        g.dispose();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        System.err.println("Error rendering icon for gallery: "
+                                + def.galleryRasterPath.getAbsolutePath());
+                    }
+                    return null;
                 }
-
-                File gifPath = new File(def.galleryRasterPath.getParentFile(), def.nameBase + ".gif");
-                BufferedImage gifImage = ImageIO.read(gifPath);
-                BufferedImage iconImage = ImageIO.read(def.galleryRasterPath);
-                //BufferedImage sizedImage = resampleOp.filter(iconImage, null);
-
-                g.drawString(def.nameBase, 5, y+(margin*3));
-
-                g.drawLine(0, y, widthTotal, y);
-                g.drawImage(gifImage, leftColumnWidth, y + margin, null);
-                g.drawImage(iconImage, second, y + margin, null);
-                
-                g.drawImage(gifImage, second + margin + iconSize + 30, y + margin, null);
-                g.drawImage(iconImage, second + (margin*2) + (iconSize*2) + 30, y + margin, null);
-
-                y += iconSize + margin*2;
-            } catch (Exception e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-                System.err.println("Error rendering icon for gallery: "
-                        + def.galleryRasterPath.getAbsolutePath());
-                continue;
-            }
+            });
+            y += rowHeight;
         }
+        inParallel(getGalleryPool(), rows);
 
         try {
             // Write the gallery image to disk
-            ImageIO.write(bi, "PNG", new File(root, key + "-" + iconSize
-                    + "-gifcompare.png"));
+            galleryEncoder.write(bi, file);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -669,14 +1886,16 @@ public class RasterizerUtil {
     
     
     /**
-     * Renders an icon set into a grid within an image.
+     * Renders an icon set into a grid within an image. Each tile is resampled
+     * and copied into its own cell in parallel.
      * 
      * @param root
      * @param key
      * @param value
+     * @return the gallery
      */
-    private void renderGallery(File root, String key, List<IconDef> value,
-            int iconSize, int width, int margin) {
+    BufferedImage renderGallery(File root, String key, List<IconDef> value,
+            final int iconSize, int width, final int margin) {
         int textHeaderHeight = 31;
         int outputSize = iconSize;
         int outputTotal = outputSize + (margin * 2);
@@ -690,7 +1909,7 @@ public class RasterizerUtil {
         int height = Math.max(outputTotal, rowCount * outputTotal)
                 + textHeaderHeight;
 
-        BufferedImage bi = new BufferedImage(width + iconSize, height,
+        final BufferedImage bi = new BufferedImage(width + iconSize, height,
                 BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = bi.createGraphics();
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
@@ -699,88 +1918,150 @@ public class RasterizerUtil {
         g.setColor(Color.GRAY);
         g.drawString("SVG Icon Set: " + key + " - Count: " + value.size(), 8,
                 20);
+        g.dispose();
 
         int x = 1;
         int y = textHeaderHeight;
 
-        // Render
-        ResampleOp resampleOp = new ResampleOp(outputSize, outputSize);
-        resampleOp.setFilter(ResampleFilters.getLanczos3Filter());
-        // resampleOp.setUnsharpenMask(AdvancedResizeOp.UnsharpenMask.Oversharpened);
-        resampleOp.setNumberOfThreads(Runtime.getRuntime()
-                .availableProcessors());
+        // Lay the icons out in the grid, then fill in the cells. The gallery
+        // is transparent below the header, so copying a tile's pixels is the
+        // same as drawing it
+        List<Callable<Object>> tiles = new ArrayList<Callable<Object>>();
+        for (final IconDef def : galleryIcons(value)) {
+            final int tileX = x + margin;
+            final int tileY = y + margin;
+            tiles.add(new Callable<Object>() {
+                public Object call() {
+                    try {
+                        BufferedImage sizedImage = galleryTile(
+                                galleryImage(def), iconSize);
+                        int w = Math.min(sizedImage.getWidth(), bi.getWidth()
+                                - tileX);
+                        int h = Math.min(sizedImage.getHeight(),
+                                bi.getHeight() - tileY);
+                        if (w > 0 && h > 0) {
+                            bi.setRGB(tileX, tileY, w, h,
+                                    sizedImage.getRGB(0, 0, w, h, null, 0, w),
+                                    0, w);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        System.err.println("Error rendering icon for gallery: "
+                                + def.galleryRasterPath.getAbsolutePath());
+                    }
+                    return null;
+                }
+            });
 
-        // Render each icon into the gallery grid
-        for (IconDef def : value) {
-            // Skip failed icons
-            if (failedIcons.contains(def)) {
-                continue;
+            x += outputTotal;
+
+            if (x >= width) {
+                x = 1;
+                y += outputTotal;
             }
+        }
+        inParallel(getGalleryPool(), tiles);
 
-            try {
-                if (def.galleryRasterPath == null) {
-                    System.err.println("Undefined gallery image for : "
-                            + def.nameBase);
-                    continue;
-                }
-                BufferedImage iconImage = ImageIO.read(def.galleryRasterPath);
-                BufferedImage sizedImage = resampleOp.filter(iconImage, null);
+        try {
+            // Write the gallery image to disk
+            galleryEncoder.write(bi, new File(root, key + "-" + iconSize
+                    + "-gallery.png"));
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
 
-                g.drawImage(sizedImage, x + margin, y + margin, null);
+        return bi;
+    }
 
-                x += outputTotal;
+    /**
+     * Redraws one icon's tile in its icon set's gallery, written by an
+     * earlier {@link #renderGallery}, instead of composing the whole gallery
+     * again. The tile is found the way renderGallery lays the icons out.
+     * 
+     * @param root
+     *            the directory the gallery was written to
+     * @param key
+     *            the icon set
+     * @param icon
+     * @param iconSize
+     * @param width
+     * @param margin
+     * @return false if there is no gallery or the icon isn't in it
+     * @throws IOException
+     */
+    boolean updateGalleryTile(File root, String key, IconDef icon,
+            int iconSize, int width, int margin) throws IOException {
+        File file = new File(root, key + "-" + iconSize + "-gallery.png");
+        List<IconDef> value = galleryIconSets.get(key);
+        if (!file.exists() || value == null || failedIcons.contains(icon)) {
+            return false;
+        }
 
+        int outputTotal = iconSize + (margin * 2);
+        int x = 1;
+        int y = 31;
+        boolean found = false;
+        synchronized (galleryIconSets) {
+            for (IconDef def : value) {
+                if (def == icon) {
+                    found = true;
+                    break;
+                }
+                if (failedIcons.contains(def)) {
+                    continue;
+                }
+                x += outputTotal;
                 if (x >= width) {
                     x = 1;
                     y += outputTotal;
                 }
-            } catch (Exception e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-                System.err.println("Error rendering icon for gallery: "
-                        + def.galleryRasterPath.getAbsolutePath());
-                continue;
             }
         }
 
-        try {
-            // Write the gallery image to disk
-            ImageIO.write(bi, "PNG", new File(root, key + "-" + iconSize
-                    + "-gallery.png"));
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        BufferedImage read = ImageIO.read(file);
+        if (!found || read == null || y + outputTotal > read.getHeight()) {
+            return false;
         }
+
+        // The gallery may have been written indexed, draw on a copy
+        BufferedImage bi = new BufferedImage(read.getWidth(),
+                read.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = bi.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(read, 0, 0, null);
+
+        BufferedImage sizedImage = galleryTile(galleryImage(icon), iconSize);
+
+        g.setColor(new Color(0, true));
+        g.fillRect(x, y, outputTotal, outputTotal);
+        g.setComposite(AlphaComposite.SrcOver);
+        g.drawImage(sizedImage, x + margin, y + margin, null);
+        g.dispose();
+
+        galleryEncoder.write(bi, file);
+        return true;
     }
 
     /**
      * Renders a master gallery image that contains every icon set at the
-     * current resolution.
+     * current resolution, from the icon set galleries just rendered.
      * 
      * @param root
+     * @param images
+     *            the icon set galleries
      * @param iconSize
      * @param width
      * @param dark
      */
-    private void renderMasterGallery(File root, int iconSize, int width,
-            boolean dark) {
+    private void renderMasterGallery(File root, List<BufferedImage> images,
+            int iconSize, int width, boolean dark) {
         int headerHeight = 30;
-        List<BufferedImage> images = new ArrayList<BufferedImage>();
-        for (File file : root.listFiles()) {
-            if (file.getName().endsWith(iconSize + "-gallery.png")) {
-                BufferedImage set = null;
-                try {
-                    set = ImageIO.read(file);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-                images.add(set);
-                headerHeight += set.getHeight();
-            }
+        for (BufferedImage set : images) {
+            headerHeight += set.getHeight();
         }
 
-        BufferedImage bi = new BufferedImage(width, headerHeight,
+        final BufferedImage bi = new BufferedImage(width, headerHeight,
                 BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = bi.createGraphics();
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
@@ -797,20 +2078,35 @@ public class RasterizerUtil {
         g.drawString("l33t labs Bling3D SVG Icons for Eclipse - Count: "
                 + counter.get() + " " + iconSize + "x" + iconSize
                 + " Rendered: " + new Date().toString(), 8, 20);
+        g.dispose();
 
-        int x = 0;
         int y = 31;
 
-        // Draw each icon set image into the uber gallery
-        for (BufferedImage image : images) {
-            g.drawImage(image, x, y, null);
+        // Draw each icon set image into its own strip of the uber gallery
+        List<Callable<Object>> strips = new ArrayList<Callable<Object>>();
+        for (final BufferedImage image : images) {
+            final int stripY = y;
+            final int stripHeight = Math.min(image.getHeight(),
+                    bi.getHeight() - stripY);
+            if (stripHeight > 0) {
+                strips.add(new Callable<Object>() {
+                    public Object call() {
+                        Graphics2D g = bi.getSubimage(0, stripY,
+                                bi.getWidth(), stripHeight).createGraphics();
+                        g.drawImage(image, 0, 0, null);
+                        g.dispose();
+                        return null;
+                    }
+                });
+            }
             y += image.getHeight();
         }
+        inParallel(getGalleryPool(), strips);
 
         try {
             // Write the uber gallery to disk
             String bgState = (dark) ? "dark" : "light";
-            ImageIO.write(bi, "PNG", new File(root, "global-svg-" + iconSize
+            galleryEncoder.write(bi, new File(root, "global-svg-" + iconSize
                     + "-" + bgState + "-icons.png"));
         } catch (IOException e) {
             // TODO Auto-generated catch block
@@ -845,27 +2141,168 @@ public class RasterizerUtil {
 
         long totalStartTime = System.currentTimeMillis();
 
-        RasterizerUtil rasterizer = new RasterizerUtil(threads);
+        RenderSettings settings = RenderSettings.fromSystemProperties();
+        RasterizerUtil rasterizer = new RasterizerUtil(threads, settings);
 
         File mavenTargetDir = new File("target/");
         File resources = new File("src/main/resources/");
 
-        for (File file : resources.listFiles()) {
-            String dirName = file.getName();
-            File outputBase = new File(mavenTargetDir, dirName);
+        // Render and package the optimized copies of the svgs
+        File svgRoot = resources;
+        if (settings.optimize) {
+            File optimizedDir = new File(mavenTargetDir, "svg");
+            SvgOptimizer optimizer = new SvgOptimizer(
+                    settings.optimizePrecision, settings.optimizeTolerance);
+            long optimizeStartTime = System.currentTimeMillis();
+            try {
+                optimizer.optimizeAll(resources, optimizedDir, threads);
+                rasterizer.setOptimizedSources(resources, optimizedDir);
+                svgRoot = optimizedDir;
+            } catch (IOException e) {
+                System.err.println("Could not optimize svgs, rendering the originals: "
+                        + e.getMessage());
+            }
+            optimizer.printSummary(System.out);
+            System.out.println("SVGs Optimized, Took: "
+                    + (System.currentTimeMillis() - optimizeStartTime)
+                    + " ms.");
+        }
+
+        // Every icon is rendered to check it against the golden set, rather
+        // than skipped or taken from the cache
+        GoldenImages golden = null;
+        if (settings.golden != null) {
+            golden = new GoldenImages(settings.goldenDir, mavenTargetDir,
+                    settings.golden.equals("update"),
+                    settings.goldenTolerance, settings.goldenThreshold);
+            try {
+                golden.clearDiffs();
+            } catch (IOException e) {
+                System.err.println("Could not delete old diff images: "
+                        + e.getMessage());
+            }
+            rasterizer.setGoldenImages(golden);
+        }
+
+        RenderManifest manifest = null;
+        if (settings.incremental && golden == null) {
+            manifest = new RenderManifest(new File(mavenTargetDir,
+                    "render-manifest.properties"));
+            manifest.load();
+            rasterizer.setManifest(manifest);
+            System.out.println("Rendering incrementally, "
+                    + manifest.getPreviousSize() + " icons in manifest.");
+        }
+
+        RenderCache cache = null;
+        if (settings.cache && golden == null) {
+            cache = new RenderCache(settings.cacheDir,
+                    settings.cacheSize);
+            cache.open();
+            rasterizer.setCache(cache);
+        }
 
-            rasterizer.gatherIcons(dirName, file, file, outputBase);
+        // The archive is written while the icons render. The icons are
+        // rendered even if it can't be, but the build fails
+        DistPackager packager = null;
+        boolean packagingFailed = false;
+        if (settings.dist != null) {
+            packager = new DistPackager(settings.dist, mavenTargetDir,
+                    settings.distSets, settings.distBundles, threads);
+            try {
+                packager.start(svgRoot, new File("LICENSE.txt"), new File(
+                        "COPYRIGHT.txt"));
+                rasterizer.setPackager(packager);
+            } catch (IOException e) {
+                System.err.println("Could not package the icon sets: "
+                        + e.getMessage());
+                packager = null;
+                packagingFailed = true;
+            }
         }
 
+        // Icons start rendering as soon as they are found
         System.out.println("Rendering icons with " + threads + " threads.");
+        for (int size : settings.sizes) {
+            if (settings.quality(size) != RenderQuality.RELEASE) {
+                System.out.println("Rendering " + size + "px icons in "
+                        + settings.quality(size).getName()
+                        + " quality, not for release.");
+            }
+        }
         long startTime = System.currentTimeMillis();
-        rasterizer.rasterizeAll();
+        try {
+            rasterizer.discoverAndRasterize(resources, mavenTargetDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
         // Account for each output size and the gray icons
         int fullIconCount = rasterizer.getIconsRendered();
         System.out.println(fullIconCount + " Icons Rendered, Took: "
                 + (System.currentTimeMillis() - startTime) + " ms.");
 
+        if (manifest != null) {
+            System.out.println(rasterizer.getIconsUpToDate()
+                    + " Icons were up to date and skipped.");
+            manifest.save();
+        }
+
+        // Write the per-icon timings, so slow icons can be found
+        RenderMetrics metrics = rasterizer.getMetrics();
+        metrics.printSummary(System.out);
+        rasterizer.getMemoryBudget().printSummary(System.out);
+        if (cache != null) {
+            cache.printSummary(System.out);
+        }
+        try {
+            metrics.writeJson(new File(mavenTargetDir, "render-report.json"));
+            metrics.writeCsv(new File(mavenTargetDir, "render-report.csv"));
+        } catch (IOException e) {
+            System.err.println("Could not write render report: "
+                    + e.getMessage());
+        }
+
+        if (packager != null) {
+            startTime = System.currentTimeMillis();
+            try {
+                packager.finish(rasterizer.galleryIconSets.keySet());
+                packager.printSummary(System.out);
+            } catch (IOException e) {
+                System.err.println("Could not package the icon sets: "
+                        + e.getMessage());
+                packagingFailed = true;
+            }
+            System.out.println("Icon Sets Packaged, Took: "
+                    + (System.currentTimeMillis() - startTime) + " ms.");
+        }
+
+        boolean goldenFailed = false;
+        if (golden != null) {
+            try {
+                golden.findStale();
+            } catch (IOException e) {
+                System.err.println("Could not list the golden set: "
+                        + e.getMessage());
+            }
+            golden.printSummary(System.out);
+            try {
+                golden.writeJson(new File(mavenTargetDir, "golden-report.json"));
+            } catch (IOException e) {
+                System.err.println("Could not write golden report: "
+                        + e.getMessage());
+            }
+            goldenFailed = golden.hasDifferences();
+        }
+
+        if (settings.atlas) {
+            startTime = System.currentTimeMillis();
+            rasterizer.renderAtlases(mavenTargetDir, new File(mavenTargetDir,
+                    "atlas"));
+            System.out.println("Icon Atlases Rendered, Took: "
+                    + (System.currentTimeMillis() - startTime) + " ms.");
+        }
+
         // Render a gallery at a few different icon sizes (using the previously
         // rendered icons
         startTime = System.currentTimeMillis();
@@ -880,7 +2317,8 @@ public class RasterizerUtil {
         System.out.println("Rasterization operations completed, Took: "
                 + (System.currentTimeMillis() - totalStartTime) + " ms.");
 
-        System.exit(0);
+        // Fails the build when icons changed or couldn't be packaged
+        System.exit(goldenFailed || packagingFailed ? 1 : 0);
     }
 
 }
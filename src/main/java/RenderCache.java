@@ -0,0 +1,343 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A content addressed store of rendered icons, kept outside the build
+ * directory so it survives <code>ant clean</code>, branch switches and
+ * separate checkouts. Icons are keyed by the hash of their svg and of every
+ * setting that affects their pixels, so an icon rendered anywhere with the
+ * same inputs is never rendered again.</p>
+ *
+ * <p>Each entry is one file holding every PNG rendered for an icon:</p>
+ *
+ * <pre>
+ * int    magic 'ESVC'
+ * short  version (1)
+ * int    native width, native height
+ * short  part count, then per part:
+ *        the part's name (e.g. 16, 16@2x, 16-disabled), int length, bytes
+ * </pre>
+ *
+ * <p>Entries are written to a temporary file and renamed into place, so a
+ * cache directory can be shared by concurrent builds. The least recently
+ * used entries are deleted when the cache grows past its size cap, use is
+ * tracked with the entries' modification times.</p>
+ */
+public class RenderCache {
+
+    static final int MAGIC = 0x45535643;
+
+    static final int VERSION = 1;
+
+    private static final String SUFFIX = ".icon";
+
+    /**
+     * <p>The PNGs rendered for an icon.</p>
+     */
+    public static class Entry {
+
+        /** The dimensions the svg is designed at. */
+        int nativeWidth, nativeHeight;
+
+        /** Part name -> PNG. */
+        final Map<String, byte[]> parts = new LinkedHashMap<String, byte[]>();
+    }
+
+    private final File dir;
+
+    private final long maxBytes;
+
+    /** Entry file -> size, least recently used first. Guarded by this. */
+    private final LinkedHashMap<File, Long> entries = new LinkedHashMap<File, Long>(
+            16, 0.75f, true);
+
+    /** The size of the entries. Guarded by this. */
+    private long totalBytes;
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    private final AtomicInteger evictions = new AtomicInteger();
+
+    /**
+     * @param dir
+     *            the cache directory, created if needed
+     * @param maxBytes
+     *            the size the cache is trimmed to
+     */
+    public RenderCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the default cache directory, ~/.cache/eclipse-svg
+     */
+    public static File defaultDirectory() {
+        return new File(new File(System.getProperty("user.home"), ".cache"),
+                "eclipse-svg");
+    }
+
+    /**
+     * Finds the existing entries, oldest first, and trims the cache to its
+     * cap.
+     */
+    public synchronized void open() {
+        dir.mkdirs();
+
+        List<File> files = new ArrayList<File>();
+        File[] buckets = dir.listFiles();
+        if (buckets != null) {
+            for (File bucket : buckets) {
+                File[] bucketFiles = bucket.listFiles();
+                if (bucketFiles == null) {
+                    continue;
+                }
+                for (File file : bucketFiles) {
+                    if (file.getName().endsWith(SUFFIX)) {
+                        files.add(file);
+                    }
+                }
+            }
+        }
+
+        final Map<File, Long> modified = new LinkedHashMap<File, Long>();
+        for (File file : files) {
+            modified.put(file, file.lastModified());
+        }
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                return modified.get(o1).compareTo(modified.get(o2));
+            }
+        });
+
+        entries.clear();
+        totalBytes = 0;
+        for (File file : files) {
+            long size = file.length();
+            entries.put(file, size);
+            totalBytes += size;
+        }
+        evict();
+    }
+
+    /**
+     * @param sourceHash
+     *            the hash of the svg's contents
+     * @param fingerprint
+     *            describes everything else that affects the rendered PNGs
+     * @return the key of the icon's entry
+     */
+    public static String key(String sourceHash, String fingerprint) {
+        return ContentHash.of(sourceHash + ";" + fingerprint);
+    }
+
+    /**
+     * Reads an icon's entry. Hits and misses aren't counted here, the
+     * caller may still find the entry unusable and counts them with
+     * {@link #hit()} and {@link #miss()}.
+     *
+     * @param key
+     * @return the icon's entry, or null if it isn't cached or can't be read
+     */
+    public Entry get(String key) {
+        File file = file(key);
+        synchronized (this) {
+            if (entries.get(file) == null) {
+                // Another build sharing the directory may have added it
+                if (!file.isFile()) {
+                    return null;
+                }
+                // Read once, another build may rewrite it meanwhile
+                long length = file.length();
+                entries.put(file, length);
+                totalBytes += length;
+            }
+        }
+
+        Entry entry;
+        try {
+            entry = read(file);
+        } catch (IOException e) {
+            // Deleted by another build, or damaged
+            remove(file);
+            return null;
+        }
+
+        // Mark it as recently used for the next builds too
+        file.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * Counts an icon whose PNGs were taken from the cache.
+     */
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * Counts an icon that had to be rendered, not cached or with an entry
+     * that couldn't be used.
+     */
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Stores an icon's PNGs. A failure to write is reported and otherwise
+     * ignored, the cache is only an optimization.
+     *
+     * @param key
+     * @param entry
+     */
+    public void put(String key, Entry entry) {
+        File file = file(key);
+        File temp = null;
+        try {
+            file.getParentFile().mkdirs();
+            temp = File.createTempFile(key, ".tmp", file.getParentFile());
+            write(temp, entry);
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not write render cache entry " + file
+                    + ": " + e.getMessage());
+            if (temp != null) {
+                temp.delete();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            long length = file.length();
+            Long previous = entries.put(file, length);
+            totalBytes += length - (previous != null ? previous : 0);
+            evict();
+        }
+    }
+
+    /**
+     * Prints the hits, misses and size of the cache.
+     *
+     * @param out
+     */
+    public synchronized void printSummary(PrintStream out) {
+        out.println(String.format(Locale.ROOT,
+                "Render cache %s: %d hits, %d misses, %d evicted, %.1f of %.0f MB",
+                dir, hits.get(), misses.get(), evictions.get(),
+                totalBytes / 1048576.0, maxBytes / 1048576.0));
+    }
+
+    /**
+     * @return the number of icons found in the cache
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of icons that weren't in the cache
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    private File file(String key) {
+        // Spread the entries over directories named after the key's start
+        return new File(new File(dir, key.substring(0, 2)), key + SUFFIX);
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its cap.
+     */
+    private synchronized void evict() {
+        Iterator<Map.Entry<File, Long>> iterator = entries
+                .entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<File, Long> oldest = iterator.next();
+            iterator.remove();
+            totalBytes -= oldest.getValue();
+            oldest.getKey().delete();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private synchronized void remove(File file) {
+        Long size = entries.remove(file);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        file.delete();
+    }
+
+    private static Entry read(File file) throws IOException {
+        // A damaged length mustn't allocate more than the file could hold
+        long left = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                throw new IOException("Not a render cache entry");
+            }
+
+            Entry entry = new Entry();
+            entry.nativeWidth = in.readInt();
+            entry.nativeHeight = in.readInt();
+            int parts = in.readShort();
+            for (int i = 0; i < parts; i++) {
+                String name = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > left) {
+                    throw new IOException("Damaged render cache entry");
+                }
+                left -= length;
+                byte[] data = new byte[length];
+                in.readFully(data);
+                entry.parts.put(name, data);
+            }
+            return entry;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, Entry entry) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(entry.nativeWidth);
+            out.writeInt(entry.nativeHeight);
+            out.writeShort(entry.parts.size());
+            for (Map.Entry<String, byte[]> part : entry.parts.entrySet()) {
+                out.writeUTF(part.getKey());
+                out.writeInt(part.getValue().length);
+                out.write(part.getValue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
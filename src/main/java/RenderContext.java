@@ -0,0 +1,241 @@
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.apache.batik.dom.svg.SAXSVGDocumentFactory;
+import org.apache.batik.gvt.renderer.ImageRenderer;
+import org.apache.batik.transcoder.ErrorHandler;
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.batik.transcoder.TranscoderInput;
+import org.apache.batik.transcoder.TranscoderOutput;
+import org.apache.batik.transcoder.image.ImageTranscoder;
+import org.apache.batik.util.XMLResourceDescriptor;
+import org.w3c.dom.svg.SVGDocument;
+
+/**
+ * <p>The parser and transcoder a render thread needs, created once per
+ * thread and reused for every icon it renders rather than rebuilt per
+ * icon.</p>
+ *
+ * <p>Neither the document factory nor the transcoder are thread safe, so a
+ * context must only be used by the thread that obtained it from
+ * {@link #get()}.</p>
+ */
+public class RenderContext {
+
+    /** Reports transcoding problems without aborting the render. */
+    private static final ErrorHandler ERROR_HANDLER = new ErrorHandler() {
+        public void warning(TranscoderException arg0)
+                throws TranscoderException {
+            System.err.println("WARN: " + arg0.getMessage());
+        }
+
+        public void fatalError(TranscoderException arg0)
+                throws TranscoderException {
+            System.err.println("FATAL: " + arg0.getMessage());
+        }
+
+        public void error(TranscoderException arg0)
+                throws TranscoderException {
+            System.err.println("ERROR: " + arg0.getMessage());
+        }
+    };
+
+    /**
+     * <p>A transcoder that keeps the raster Batik renders instead of encoding
+     * it, so post-processing can work on it directly and PNG encoding only
+     * happens once when the final files are written.</p>
+     */
+    private static class BufferedImageTranscoder extends ImageTranscoder {
+
+        /**
+         * The rendering hints added to Batik's defaults, set before each
+         * transcode, which creates its renderer.
+         */
+        RenderingHints renderHints;
+
+        /** The raster produced by the last transcode. */
+        private BufferedImage image;
+
+        protected ImageRenderer createRenderer() {
+            ImageRenderer renderer = super.createRenderer();
+
+            RenderingHints hints = renderer.getRenderingHints();
+            hints.add(renderHints);
+            renderer.setRenderingHints(hints);
+
+            return renderer;
+        }
+
+        public BufferedImage createImage(int width, int height) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        public void writeImage(BufferedImage img, TranscoderOutput output)
+                throws TranscoderException {
+            image = img;
+        }
+
+        /**
+         * @return the last rendered raster, the transcoder no longer
+         *         references it afterwards
+         */
+        BufferedImage takeImage() {
+            BufferedImage result = image;
+            image = null;
+            return result;
+        }
+    }
+
+    private static final ThreadLocal<RenderContext> CONTEXTS = new ThreadLocal<RenderContext>() {
+        protected RenderContext initialValue() {
+            return new RenderContext();
+        }
+    };
+
+    /** Parses svg files into Batik documents. */
+    private final SAXSVGDocumentFactory documentFactory;
+
+    /** The rendering hints of each quality profile. */
+    private final Map<RenderQuality, RenderingHints> renderHints = new EnumMap<RenderQuality, RenderingHints>(
+            RenderQuality.class);
+
+    /** Rasterizes documents, the output size is set per render. */
+    private final BufferedImageTranscoder transcoder;
+
+    /**
+     * Creates a new context, use {@link #get()} to share the current
+     * thread's context instead.
+     */
+    public RenderContext() {
+        String parser = XMLResourceDescriptor.getXMLParserClassName();
+        documentFactory = new SAXSVGDocumentFactory(parser);
+
+        for (RenderQuality quality : RenderQuality.values()) {
+            renderHints.put(quality, quality.createRenderingHints());
+        }
+
+        transcoder = new BufferedImageTranscoder();
+        transcoder.setErrorHandler(ERROR_HANDLER);
+    }
+
+    /**
+     * @return the render context belonging to the calling thread
+     */
+    public static RenderContext get() {
+        return CONTEXTS.get();
+    }
+
+    /**
+     * Parses an svg file into a document that can be rendered.
+     *
+     * @param uri
+     *            the uri to give the document
+     * @param file
+     *            the svg file
+     * @return the parsed document
+     * @throws IOException
+     */
+    public SVGDocument parse(String uri, File file) throws IOException {
+        InputStream stream = new FileInputStream(file);
+        try {
+            return parse(uri, stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Parses svg data into a document that can be rendered.
+     *
+     * @param uri
+     *            the uri to give the document, relative references are
+     *            resolved against it
+     * @param stream
+     *            the svg data, left open
+     * @return the parsed document
+     * @throws IOException
+     */
+    public SVGDocument parse(String uri, InputStream stream)
+            throws IOException {
+        return (SVGDocument) documentFactory.createDocument(uri, stream);
+    }
+
+    /**
+     * Use batik to rasterize the input SVG into a raster image at the
+     * specified image dimensions, in release quality.
+     *
+     * @param width
+     * @param height
+     * @param tinput
+     * @return the rendered ARGB image
+     * @throws TranscoderException
+     *             if the document could not be rendered
+     */
+    public BufferedImage render(int width, int height, TranscoderInput tinput)
+            throws TranscoderException {
+        return render(width, height, tinput, RenderQuality.RELEASE);
+    }
+
+    /**
+     * Use batik to rasterize the input SVG into a raster image at the
+     * specified image dimensions.
+     *
+     * @param width
+     * @param height
+     * @param tinput
+     * @param quality
+     *            the rendering hints to use
+     * @return the rendered ARGB image
+     * @throws TranscoderException
+     *             if the document could not be rendered
+     */
+    public BufferedImage render(int width, int height,
+            TranscoderInput tinput, RenderQuality quality)
+            throws TranscoderException {
+        transcoder.renderHints = renderHints.get(quality);
+        transcoder.addTranscodingHint(ImageTranscoder.KEY_WIDTH, new Float(width));
+        transcoder.addTranscodingHint(ImageTranscoder.KEY_HEIGHT, new Float(height));
+
+        transcoder.transcode(tinput, new TranscoderOutput());
+
+        BufferedImage image = transcoder.takeImage();
+        if (image == null) {
+            throw new TranscoderException("No image was rendered");
+        }
+        return image;
+    }
+
+    /**
+     * Use batik to rasterize the input SVG into a PNG image at the specified
+     * image dimensions.
+     *
+     * @param width
+     * @param height
+     * @param tinput
+     * @param stream
+     *            receives the PNG data, closed when the render completes
+     * @return true if the icon rendered
+     */
+    public boolean render(int width, int height, TranscoderInput tinput,
+            OutputStream stream) {
+        try {
+            BufferedImage image = render(width, height, tinput);
+            ImageIO.write(image, "PNG", stream);
+
+            stream.close();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * <p>Records what was used to produce each rendered icon (the svg content
+ * hash, the render settings and the hashes of the files written) so an
+ * incremental run can skip icons whose inputs have not changed.</p>
+ *
+ * <p>The manifest is a properties file keyed by the svg input path, each
+ * value has the form
+ * <code>svgHash;settingsHash;output=hash|output=hash...</code></p>
+ */
+public class RenderManifest {
+
+    private static final String FIELD_SEPARATOR = ";";
+
+    private static final String OUTPUT_SEPARATOR = "|";
+
+    /** The file the manifest is loaded from and saved to. */
+    private final File file;
+
+    /** The entries recorded by the previous run. */
+    private final Properties previous;
+
+    /**
+     * The entries for this run, icons that no longer exist are dropped when
+     * the manifest is saved.
+     */
+    private final Properties current;
+
+    /**
+     * @param file
+     *            the manifest file, it is fine if it does not exist yet
+     */
+    public RenderManifest(File file) {
+        this.file = file;
+        this.previous = new Properties();
+        this.current = new Properties();
+    }
+
+    /**
+     * Loads the entries recorded by the previous run, a missing or unreadable
+     * manifest simply means every icon gets rendered.
+     */
+    public void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            previous.load(in);
+        } catch (IOException e) {
+            System.err.println("Could not read render manifest, rendering all icons: "
+                    + e.getMessage());
+            previous.clear();
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes the entries recorded during this run.
+     */
+    public void save() {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            current.store(out, "Eclipse SVG render manifest");
+        } catch (IOException e) {
+            System.err.println("Could not write render manifest: "
+                    + e.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * @return the number of entries previously recorded
+     */
+    public int getPreviousSize() {
+        return previous.size();
+    }
+
+    /**
+     * Checks whether an icon was rendered from the same svg with the same
+     * settings, and every output it wrote is still on disk untouched. If so
+     * the previous entry is carried over into this run.
+     *
+     * @param key
+     *            the icon's input path
+     * @param svgHash
+     *            the hash of the icon's current svg content
+     * @param settingsHash
+     *            the hash of the current render settings for the icon
+     * @return true if the icon does not need to be rendered again
+     */
+    public boolean isUpToDate(String key, String svgHash, String settingsHash) {
+        String entry = previous.getProperty(key);
+        if (entry == null) {
+            return false;
+        }
+
+        String[] fields = entry.split(FIELD_SEPARATOR, -1);
+        if (fields.length != 3 || !fields[0].equals(svgHash)
+                || !fields[1].equals(settingsHash)) {
+            return false;
+        }
+
+        if (fields[2].length() > 0) {
+            for (String output : fields[2].split("\\" + OUTPUT_SEPARATOR)) {
+                int split = output.lastIndexOf('=');
+                if (split < 0) {
+                    return false;
+                }
+
+                File outputFile = new File(output.substring(0, split));
+                if (!outputFile.isFile()) {
+                    return false;
+                }
+
+                try {
+                    if (!ContentHash.of(outputFile).equals(
+                            output.substring(split + 1))) {
+                        return false;
+                    }
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        }
+
+        current.setProperty(key, entry);
+        return true;
+    }
+
+    /**
+     * Records a successfully rendered icon.
+     *
+     * @param key
+     *            the icon's input path
+     * @param svgHash
+     *            the hash of the svg content that was rendered
+     * @param settingsHash
+     *            the hash of the render settings used
+     * @param outputs
+     *            every file written for the icon
+     * @throws IOException
+     *             if an output could not be hashed
+     */
+    public void record(String key, String svgHash, String settingsHash,
+            List<File> outputs) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        builder.append(svgHash).append(FIELD_SEPARATOR);
+        builder.append(settingsHash).append(FIELD_SEPARATOR);
+
+        for (int i = 0; i < outputs.size(); i++) {
+            File output = outputs.get(i);
+            if (i > 0) {
+                builder.append(OUTPUT_SEPARATOR);
+            }
+            builder.append(output.getPath()).append('=')
+                    .append(ContentHash.of(output));
+        }
+
+        current.setProperty(key, builder.toString());
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,478 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>Collects per-icon timings of each render stage from the worker threads
+ * and summarizes them into a machine readable report, so slow icons and
+ * regressions can be found without reading the console output.</p>
+ *
+ * <p>Recording is lock free: each icon's metrics belong to the stage
+ * currently working on it, and are handed from stage to stage with the icon
+ * until {@link #finish(IconMetrics)} records them.</p>
+ */
+public class RenderMetrics {
+
+    /** The stages an icon goes through. */
+    enum Stage {
+        PARSE, RENDER, FILTER, ENCODE, WRITE;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** The outcome of an icon. */
+    enum Status {
+        RENDERED, CACHED, UP_TO_DATE, FAILED;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    /** How many of the slowest icons the report names. */
+    private static final int SLOWEST_COUNT = 20;
+
+    private static final double[] PERCENTILES = new double[] { 50, 95, 99 };
+
+    /**
+     * <p>The measurements of a single icon.</p>
+     */
+    static class IconMetrics {
+
+        /** The icon's name minus extension. */
+        final String name;
+
+        /** The svg input path. */
+        final String path;
+
+        /** The thread that rendered the icon. */
+        String thread;
+
+        /** The time spent in each stage. */
+        final long[] stageNanos = new long[Stage.values().length];
+
+        /** The total time spent working on the icon, the sum of its stages. */
+        long totalNanos;
+
+        /**
+         * The time from the icon being queued until it was finished,
+         * including the time spent waiting between stages.
+         */
+        long latencyNanos;
+
+        /** The number of bytes written for the icon. */
+        long bytesWritten;
+
+        /** The number of rasters rendered for the icon. */
+        int rasters;
+
+        Status status = Status.RENDERED;
+
+        /** Why the icon failed, null if it didn't. */
+        String failure;
+
+        /** When the icon was queued. */
+        private final long startNanos;
+
+        /** The end of the last recorded stage. */
+        private long markNanos;
+
+        IconMetrics(String name, String path) {
+            this.name = name;
+            this.path = path;
+            this.thread = Thread.currentThread().getName();
+            this.startNanos = System.nanoTime();
+            this.markNanos = startNanos;
+        }
+
+        /**
+         * Resets the stage clock, time since the last mark is not counted
+         * towards any stage.
+         */
+        void mark() {
+            markNanos = System.nanoTime();
+        }
+
+        /**
+         * Adds the time since the last mark to a stage.
+         *
+         * @param stage
+         */
+        void endStage(Stage stage) {
+            long now = System.nanoTime();
+            stageNanos[stage.ordinal()] += now - markNanos;
+            markNanos = now;
+        }
+
+        /**
+         * Marks the icon as failed.
+         *
+         * @param reason
+         */
+        void fail(String reason) {
+            status = Status.FAILED;
+            failure = reason;
+        }
+    }
+
+    /** The metrics of every finished icon. */
+    private final ConcurrentLinkedQueue<IconMetrics> icons = new ConcurrentLinkedQueue<IconMetrics>();
+
+    /**
+     * The jobs processed and busy nanoseconds of each worker thread, as
+     * reported by the render pipeline.
+     */
+    private final Map<String, long[]> threads = new LinkedHashMap<String, long[]>();
+
+    /** When the run started and stopped. */
+    private long startNanos, stopNanos;
+
+    /**
+     * Marks the start of the measured run.
+     */
+    public void start() {
+        startNanos = System.nanoTime();
+        stopNanos = 0;
+    }
+
+    /**
+     * Marks the end of the measured run.
+     */
+    public void stop() {
+        stopNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts measuring an icon when it is queued.
+     *
+     * @param name
+     * @param path
+     * @return the icon's metrics, to be passed to finish()
+     */
+    public IconMetrics begin(String name, String path) {
+        return new IconMetrics(name, path);
+    }
+
+    /**
+     * Records a finished icon.
+     *
+     * @param metrics
+     */
+    public void finish(IconMetrics metrics) {
+        metrics.latencyNanos = System.nanoTime() - metrics.startNanos;
+        metrics.totalNanos = 0;
+        for (long nanos : metrics.stageNanos) {
+            metrics.totalNanos += nanos;
+        }
+        icons.add(metrics);
+    }
+
+    /**
+     * Adds the work done by each worker thread, see
+     * {@link RenderPipeline#getThreadTotals()}.
+     *
+     * @param totals
+     *            thread name -> { jobs, busy nanos }
+     */
+    public void recordThreads(Map<String, long[]> totals) {
+        synchronized (threads) {
+            for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+                long[] total = threads.get(entry.getKey());
+                if (total == null) {
+                    total = new long[2];
+                    threads.put(entry.getKey(), total);
+                }
+                total[0] += entry.getValue()[0];
+                total[1] += entry.getValue()[1];
+            }
+        }
+    }
+
+    private Map<String, long[]> getThreads() {
+        synchronized (threads) {
+            return new LinkedHashMap<String, long[]>(threads);
+        }
+    }
+
+    /**
+     * @return the metrics of every finished icon
+     */
+    public List<IconMetrics> getIcons() {
+        return new ArrayList<IconMetrics>(icons);
+    }
+
+    private long wallNanos() {
+        long stop = stopNanos == 0 ? System.nanoTime() : stopNanos;
+        return Math.max(1, stop - startNanos);
+    }
+
+    /**
+     * @param values
+     *            sorted ascending
+     * @param percentile
+     *            0-100
+     * @return the nearest rank percentile, 0 when there are no values
+     */
+    static long percentile(long[] values, double percentile) {
+        if (values.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * values.length);
+        return values[Math.max(0, Math.min(values.length - 1, rank - 1))];
+    }
+
+    /**
+     * @param icons
+     * @param stage
+     *            the stage, or null for the icon totals
+     * @param latency
+     *            whether to use the icon latencies rather than the totals
+     *            when stage is null
+     * @return the sorted times of the rendered icons
+     */
+    private static long[] sortedNanos(List<IconMetrics> icons, Stage stage,
+            boolean latency) {
+        long[] values = new long[icons.size()];
+        int count = 0;
+        for (IconMetrics icon : icons) {
+            if (icon.status == Status.RENDERED) {
+                if (stage != null) {
+                    values[count++] = icon.stageNanos[stage.ordinal()];
+                } else {
+                    values[count++] = latency ? icon.latencyNanos
+                            : icon.totalNanos;
+                }
+            }
+        }
+        values = Arrays.copyOf(values, count);
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static List<IconMetrics> slowest(List<IconMetrics> icons) {
+        List<IconMetrics> slowest = new ArrayList<IconMetrics>(icons);
+        Collections.sort(slowest, new Comparator<IconMetrics>() {
+            public int compare(IconMetrics o1, IconMetrics o2) {
+                return Long.valueOf(o2.totalNanos).compareTo(o1.totalNanos);
+            }
+        });
+        return slowest.subList(0, Math.min(SLOWEST_COUNT, slowest.size()));
+    }
+
+    private static int count(List<IconMetrics> icons, Status status) {
+        int count = 0;
+        for (IconMetrics icon : icons) {
+            if (icon.status == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void writeDistribution(JsonWriter json, String name,
+            long[] sorted) throws IOException {
+        long total = 0;
+        for (long value : sorted) {
+            total += value;
+        }
+
+        json.name(name).beginObject();
+        json.name("totalMillis").value(millis(total));
+        for (double percentile : PERCENTILES) {
+            json.name("p" + (int) percentile + "Millis").value(
+                    millis(percentile(sorted, percentile)));
+        }
+        json.name("maxMillis").value(
+                millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+        json.endObject();
+    }
+
+    /**
+     * Writes the summary, per-thread utilization, slowest icons and failures
+     * as JSON.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeJson(File file) throws IOException {
+        List<IconMetrics> icons = getIcons();
+        long wall = wallNanos();
+
+        long bytes = 0;
+        for (IconMetrics icon : icons) {
+            bytes += icon.bytesWritten;
+        }
+
+        JsonWriter json = new JsonWriter(new FileWriter(file));
+        try {
+            json.beginObject();
+            json.name("icons").value(icons.size());
+            json.name("rendered").value(count(icons, Status.RENDERED));
+            json.name("cached").value(count(icons, Status.CACHED));
+            json.name("upToDate").value(count(icons, Status.UP_TO_DATE));
+            json.name("failed").value(count(icons, Status.FAILED));
+            json.name("wallMillis").value(millis(wall));
+            json.name("iconsPerSecond").value(icons.size() / (wall / 1e9));
+            json.name("bytesWritten").value(bytes);
+
+            json.name("stages").beginObject();
+            for (Stage stage : Stage.values()) {
+                writeDistribution(json, stage.label(),
+                        sortedNanos(icons, stage, false));
+            }
+            writeDistribution(json, "total", sortedNanos(icons, null, false));
+            writeDistribution(json, "latency", sortedNanos(icons, null, true));
+            json.endObject();
+
+            json.name("threads").beginArray();
+            for (Map.Entry<String, long[]> entry : getThreads().entrySet()) {
+                json.beginObject();
+                json.name("name").value(entry.getKey());
+                json.name("icons").value(entry.getValue()[0]);
+                json.name("busyMillis").value(millis(entry.getValue()[1]));
+                json.name("utilization").value(
+                        entry.getValue()[1] / (double) wall);
+                json.endObject();
+            }
+            json.endArray();
+
+            json.name("slowest").beginArray();
+            for (IconMetrics icon : slowest(icons)) {
+                json.beginObject();
+                json.name("name").value(icon.name);
+                json.name("path").value(icon.path);
+                json.name("totalMillis").value(millis(icon.totalNanos));
+                for (Stage stage : Stage.values()) {
+                    json.name(stage.label() + "Millis").value(
+                            millis(icon.stageNanos[stage.ordinal()]));
+                }
+                json.endObject();
+            }
+            json.endArray();
+
+            json.name("failures").beginArray();
+            for (IconMetrics icon : icons) {
+                if (icon.status == Status.FAILED) {
+                    json.beginObject();
+                    json.name("name").value(icon.name);
+                    json.name("path").value(icon.path);
+                    json.name("reason").value(icon.failure);
+                    json.endObject();
+                }
+            }
+            json.endArray();
+            json.endObject();
+        } finally {
+            json.close();
+        }
+    }
+
+    /**
+     * Writes one row per icon with its stage timings.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeCsv(File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            StringBuilder header = new StringBuilder("name,path,thread,status");
+            for (Stage stage : Stage.values()) {
+                header.append(',').append(stage.label()).append("_ms");
+            }
+            header.append(",total_ms,latency_ms,rasters,bytes,failure");
+            writer.println(header);
+
+            for (IconMetrics icon : getIcons()) {
+                StringBuilder row = new StringBuilder();
+                row.append(csv(icon.name)).append(',');
+                row.append(csv(icon.path)).append(',');
+                row.append(csv(icon.thread)).append(',');
+                row.append(icon.status.label());
+                for (Stage stage : Stage.values()) {
+                    row.append(String.format(Locale.ROOT, ",%.3f",
+                            millis(icon.stageNanos[stage.ordinal()])));
+                }
+                row.append(String.format(Locale.ROOT, ",%.3f,%.3f",
+                        millis(icon.totalNanos), millis(icon.latencyNanos)));
+                row.append(',').append(icon.rasters);
+                row.append(',').append(icon.bytesWritten);
+                row.append(',').append(
+                        icon.failure == null ? "" : csv(icon.failure));
+                writer.println(row);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+                && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Prints the throughput, stage percentiles and the slowest icons.
+     *
+     * @param out
+     */
+    public void printSummary(PrintStream out) {
+        List<IconMetrics> icons = getIcons();
+        long wall = wallNanos();
+
+        out.println(String.format(Locale.ROOT,
+                "%d icons in %.0f ms (%.1f icons/s): %d rendered, %d cached, %d up to date, %d failed",
+                icons.size(), millis(wall), icons.size() / (wall / 1e9),
+                count(icons, Status.RENDERED), count(icons, Status.CACHED),
+                count(icons, Status.UP_TO_DATE),
+                count(icons, Status.FAILED)));
+
+        for (Stage stage : Stage.values()) {
+            long[] sorted = sortedNanos(icons, stage, false);
+            out.println(String.format(Locale.ROOT,
+                    "  %-8s p50 %7.2f ms  p95 %7.2f ms  p99 %7.2f ms",
+                    stage.label(), millis(percentile(sorted, 50)),
+                    millis(percentile(sorted, 95)),
+                    millis(percentile(sorted, 99))));
+        }
+
+        // How busy each stage's threads were, to help size the pools
+        Map<String, long[]> threadTotals = getThreads();
+        if (!threadTotals.isEmpty()) {
+            StringBuilder utilization = new StringBuilder("Thread utilization:");
+            for (Map.Entry<String, long[]> entry : threadTotals.entrySet()) {
+                utilization.append(String.format(Locale.ROOT, "  %s %.0f%%",
+                        entry.getKey(), 100.0 * entry.getValue()[1] / wall));
+            }
+            out.println(utilization);
+        }
+
+        List<IconMetrics> slowest = slowest(icons);
+        out.println("Slowest icons:");
+        for (int i = 0; i < Math.min(5, slowest.size()); i++) {
+            IconMetrics icon = slowest.get(i);
+            out.println(String.format(Locale.ROOT, "  %8.1f ms  %s",
+                    millis(icon.totalNanos), icon.path));
+        }
+    }
+}
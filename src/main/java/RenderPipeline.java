@@ -0,0 +1,320 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <p>Runs jobs through a fixed sequence of stages, each stage with its own
+ * threads and a bounded queue in front of it. A job moves to the next stage
+ * as soon as its stage is done with it, so CPU bound stages overlap with
+ * I/O bound ones.</p>
+ *
+ * <p>When a queue is full the stage feeding it blocks, and ultimately so does
+ * {@link #submit(Object)}. The number of jobs held in memory is therefore
+ * bounded by the queue capacities and thread counts, however many jobs are
+ * submitted.</p>
+ *
+ * <p>The pipeline replaces the work-stealing ForkJoinPool icons used to be
+ * rendered on, one task per icon. A ForkJoinPool's queues are unbounded and
+ * can't make the code submitting to them wait, so every discovered icon was
+ * held at once, and its one group of threads can't give the CPU bound and
+ * I/O bound steps their own thread counts. Stealing isn't needed to keep
+ * the threads busy either: all threads of a stage take from one shared
+ * queue, so no thread has a backlog of its own while another idles, and
+ * with an order the most expensive waiting job is taken first, as the pool
+ * did.</p>
+ *
+ * @param <T>
+ *            the type of job
+ */
+public class RenderPipeline<T> {
+
+    /**
+     * <p>One step of the work done on a job.</p>
+     */
+    public interface Stage<T> {
+
+        /**
+         * @param job
+         * @return true to pass the job to the next stage, false if the job
+         *         is finished
+         * @throws Exception
+         *             if the job failed, it is finished and goes no further
+         */
+        boolean process(T job) throws Exception;
+    }
+
+    /**
+     * <p>Told about every job leaving the pipeline, called from the thread
+     * of the stage the job left in.</p>
+     */
+    public interface Listener<T> {
+
+        /**
+         * @param job
+         * @param error
+         *            the exception or error that ended the job, null if a
+         *            stage finished it normally
+         */
+        void jobFinished(T job, Throwable error);
+    }
+
+    /**
+     * <p>A bounded queue, a blocking queue without a capacity of its own
+     * guarded by permits for each free slot.</p>
+     */
+    private static class StageQueue<T> {
+
+        private final BlockingQueue<T> queue;
+
+        private final Semaphore free;
+
+        StageQueue(int capacity, Comparator<? super T> order) {
+            if (order == null) {
+                queue = new LinkedBlockingQueue<T>();
+            } else {
+                queue = new PriorityBlockingQueue<T>(capacity, order);
+            }
+            free = new Semaphore(capacity);
+        }
+
+        void put(T job) throws InterruptedException {
+            free.acquire();
+            queue.add(job);
+        }
+
+        T take() throws InterruptedException {
+            T job = queue.take();
+            free.release();
+            return job;
+        }
+    }
+
+    /**
+     * <p>A stage's threads and their input queue.</p>
+     */
+    private class StageWorkers {
+
+        final Stage<T> stage;
+
+        final StageQueue<T> queue;
+
+        final List<Worker> workers = new ArrayList<Worker>();
+
+        /** The stage after this one, null for the last stage. */
+        StageWorkers next;
+
+        StageWorkers(String name, int threads, int capacity, Stage<T> stage) {
+            this.stage = stage;
+            this.queue = new StageQueue<T>(capacity, order);
+            for (int i = 0; i < threads; i++) {
+                workers.add(new Worker(this, name + "-" + (i + 1)));
+            }
+        }
+    }
+
+    /**
+     * <p>A thread taking jobs from a stage's queue until the pipeline is shut
+     * down.</p>
+     */
+    private class Worker extends Thread {
+
+        private final StageWorkers stage;
+
+        /** The jobs processed, only written by this thread. */
+        long jobs;
+
+        /** The time spent processing jobs, only written by this thread. */
+        long busyNanos;
+
+        Worker(StageWorkers stage, String name) {
+            super(name);
+            this.stage = stage;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    T job = stage.queue.take();
+
+                    long start = System.nanoTime();
+                    boolean passOn = false;
+                    Throwable error = null;
+                    try {
+                        passOn = stage.stage.process(job);
+                    } catch (Throwable e) {
+                        // Errors too, e.g. running out of stack or heap on a
+                        // huge document, end only the job. A dead worker
+                        // would leave the job in flight and await() waiting
+                        // forever
+                        error = e;
+                    }
+                    busyNanos += System.nanoTime() - start;
+                    jobs++;
+
+                    if (passOn && stage.next != null) {
+                        stage.next.queue.put(job);
+                    } else {
+                        finished(job, error);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Shut down
+            }
+        }
+    }
+
+    /** The order jobs are taken from the queues in, null for FIFO. */
+    private final Comparator<? super T> order;
+
+    private final Listener<T> listener;
+
+    private final List<StageWorkers> stages = new ArrayList<StageWorkers>();
+
+    /** The number of submitted jobs that haven't finished. */
+    private int inFlight;
+
+    /** Guards inFlight, notified when it drops to zero. */
+    private final Object inFlightLock = new Object();
+
+    private boolean started;
+
+    /**
+     * @param order
+     *            the order waiting jobs are taken from the queues in, or
+     *            null for first in first out
+     * @param listener
+     *            told about every finished job
+     */
+    public RenderPipeline(Comparator<? super T> order, Listener<T> listener) {
+        this.order = order;
+        this.listener = listener;
+    }
+
+    /**
+     * Appends a stage, stages must all be added before the pipeline is
+     * started.
+     *
+     * @param name
+     *            the name of the stage, its threads are named after it
+     * @param threads
+     *            the number of threads running the stage
+     * @param capacity
+     *            the number of jobs that can wait for the stage
+     * @param stage
+     * @return this pipeline
+     */
+    public RenderPipeline<T> addStage(String name, int threads, int capacity,
+            Stage<T> stage) {
+        if (started) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+
+        StageWorkers workers = new StageWorkers(name, Math.max(1, threads),
+                Math.max(1, capacity), stage);
+        if (!stages.isEmpty()) {
+            stages.get(stages.size() - 1).next = workers;
+        }
+        stages.add(workers);
+        return this;
+    }
+
+    /**
+     * Starts the threads of every stage.
+     */
+    public void start() {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("Pipeline has no stages");
+        }
+
+        started = true;
+        for (StageWorkers stage : stages) {
+            for (Worker worker : stage.workers) {
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Queues a job for the first stage, blocking while its queue is full.
+     *
+     * @param job
+     * @throws InterruptedException
+     */
+    public void submit(T job) throws InterruptedException {
+        synchronized (inFlightLock) {
+            inFlight++;
+        }
+
+        try {
+            stages.get(0).queue.put(job);
+        } catch (InterruptedException e) {
+            finished(job, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for every submitted job to finish.
+     *
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        synchronized (inFlightLock) {
+            while (inFlight > 0) {
+                inFlightLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops the threads of every stage, jobs still queued are dropped.
+     */
+    public void shutdown() {
+        for (StageWorkers stage : stages) {
+            for (Worker worker : stage.workers) {
+                worker.interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of jobs processed and nanoseconds spent processing
+     *         them by each thread, in stage order. Only accurate while no
+     *         jobs are in flight.
+     */
+    public Map<String, long[]> getThreadTotals() {
+        Map<String, long[]> totals = new LinkedHashMap<String, long[]>();
+        synchronized (inFlightLock) {
+            for (StageWorkers stage : stages) {
+                for (Worker worker : stage.workers) {
+                    totals.put(worker.getName(), new long[] { worker.jobs,
+                            worker.busyNanos });
+                }
+            }
+        }
+        return totals;
+    }
+
+    private void finished(T job, Throwable error) {
+        try {
+            listener.jobFinished(job, error);
+        } catch (Throwable e) {
+            // Keep the stage's thread alive for the other jobs
+            e.printStackTrace();
+        } finally {
+            synchronized (inFlightLock) {
+                inFlight--;
+                if (inFlight == 0) {
+                    inFlightLock.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.awt.RenderingHints;
+import java.util.Locale;
+
+/**
+ * <p>The named sets of rendering hints icons can be rendered with, chosen
+ * per run and per size, see {@link RenderSettings#quality(int)}.</p>
+ *
+ * <p>release is the highest quality and what the icon sets are shipped
+ * with. default leaves Batik's own hints as they are (antialiased, bilinear
+ * interpolation, normalized strokes). preview asks Java2D for speed
+ * everywhere it can and is meant for checking icons while designing them
+ * and for smoke tests. It keeps antialiasing, icons without it aren't
+ * usable at 16px, and pure strokes, normalizing them costs time and moves
+ * most edges by a fraction of a pixel.</p>
+ *
+ * <p>Most of an icon's render time goes to Batik building its tree from the
+ * document, not to rasterizing it, so the profiles differ more in pixels
+ * than in speed.</p>
+ *
+ * <p>"ant bench-quality" measures the throughput of each profile and how
+ * far its pixels are from release.</p>
+ */
+public enum RenderQuality {
+
+    PREVIEW, DEFAULT, RELEASE;
+
+    /**
+     * @return the name the profile is selected with, e.g. preview
+     */
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param name
+     *            a profile name, in any case
+     * @return the profile
+     * @throws IllegalArgumentException
+     *             if there's no profile of that name
+     */
+    public static RenderQuality fromName(String name) {
+        for (RenderQuality quality : values()) {
+            if (quality.getName().equalsIgnoreCase(name.trim())) {
+                return quality;
+            }
+        }
+        throw new IllegalArgumentException("Unknown render quality '" + name
+                + "', use preview, default or release");
+    }
+
+    /**
+     * @return the hints to add to Batik's defaults, a new set each call
+     */
+    public RenderingHints createRenderingHints() {
+        switch (this) {
+        case PREVIEW:
+            return createPreviewHints();
+        case DEFAULT:
+            return new RenderingHints(null);
+        default:
+            return createReleaseHints();
+        }
+    }
+
+    private static RenderingHints createPreviewHints() {
+        RenderingHints renderHints = new RenderingHints(RenderingHints.KEY_TEXT_ANTIALIASING,
+            RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+
+        renderHints.put(RenderingHints.KEY_RENDERING,
+            RenderingHints.VALUE_RENDER_SPEED);
+
+        renderHints.put(RenderingHints.KEY_DITHERING,
+            RenderingHints.VALUE_DITHER_DISABLE);
+
+        renderHints.put(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+
+        renderHints.put(RenderingHints.KEY_ALPHA_INTERPOLATION,
+            RenderingHints.VALUE_ALPHA_INTERPOLATION_SPEED);
+
+        renderHints.put(RenderingHints.KEY_ANTIALIASING,
+            RenderingHints.VALUE_ANTIALIAS_ON);
+
+        renderHints.put(RenderingHints.KEY_COLOR_RENDERING,
+            RenderingHints.VALUE_COLOR_RENDER_SPEED);
+
+        renderHints.put(RenderingHints.KEY_STROKE_CONTROL,
+            RenderingHints.VALUE_STROKE_PURE);
+
+        renderHints.put(RenderingHints.KEY_FRACTIONALMETRICS,
+            RenderingHints.VALUE_FRACTIONALMETRICS_OFF);
+
+        return renderHints;
+    }
+
+    /**
+     * @return the highest quality hint set
+     */
+    private static RenderingHints createReleaseHints() {
+        RenderingHints renderHints = new RenderingHints(RenderingHints.KEY_TEXT_ANTIALIASING,
+            RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+
+        renderHints.put(RenderingHints.KEY_RENDERING,
+            RenderingHints.VALUE_RENDER_QUALITY);
+
+        renderHints.put(RenderingHints.KEY_DITHERING,
+            RenderingHints.VALUE_DITHER_DISABLE);
+
+        renderHints.put(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+
+        renderHints.put(RenderingHints.KEY_ALPHA_INTERPOLATION,
+            RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+
+        renderHints.put(RenderingHints.KEY_ANTIALIASING,
+            RenderingHints.VALUE_ANTIALIAS_ON);
+
+        renderHints.put(RenderingHints.KEY_COLOR_RENDERING,
+            RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+
+        renderHints.put(RenderingHints.KEY_STROKE_CONTROL,
+            RenderingHints.VALUE_STROKE_PURE);
+
+        renderHints.put(RenderingHints.KEY_FRACTIONALMETRICS,
+            RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+
+        return renderHints;
+    }
+}
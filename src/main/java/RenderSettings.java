@@ -0,0 +1,460 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>The options for a render run. They are read from system properties so
+ * they can be passed through from the ant build, see the render target in
+ * build.xml.</p>
+ */
+public class RenderSettings {
+
+    /**
+     * Bump this whenever a change to the rasterizer should invalidate the
+     * output recorded by previous incremental runs.
+     */
+    static final int RENDER_VERSION = 2;
+
+    /** Skip icons whose svg and settings match the render manifest. */
+    boolean incremental;
+
+    /** Print per-icon progress and failure stack traces. */
+    boolean verbose;
+
+    /** The rendering hints icons are rendered with. */
+    RenderQuality quality = RenderQuality.RELEASE;
+
+    /** Icon size -> the rendering hints of that size, if not quality. */
+    Map<Integer, RenderQuality> sizeQuality = new TreeMap<Integer, RenderQuality>();
+
+    /**
+     * Render each icon once at this multiple of its largest raster and scale
+     * that down to every raster, 1 renders each raster directly.
+     */
+    int supersample = 1;
+
+    /**
+     * The kernels supersampled icons are scaled down with. Each applies to
+     * its size and the sizes above it, up to the next size listed.
+     */
+    TreeMap<Integer, String> downscaleFilters = new TreeMap<Integer, String>();
+
+    /** The PNG compression effort, 0 (fastest) to 9 (smallest). */
+    int pngCompression = 9;
+
+    /** Write PNGs with at most 256 colors as indexed PNGs. */
+    boolean pngPalette = true;
+
+    /**
+     * The brightness and contrast adjustment of disabled icons, 1 leaves
+     * the desaturated icon as it is.
+     */
+    float disabledBrightness = 1.0f, disabledContrast = 1.0f;
+
+    /** Take unchanged icons from the render cache shared between builds. */
+    boolean cache = true;
+
+    /** The render cache directory. */
+    File cacheDir = RenderCache.defaultDirectory();
+
+    /** The size in bytes the render cache is trimmed to. */
+    long cacheSize = 512L * 1024 * 1024;
+
+    /** Also pack each bundle's rendered icons into atlases. */
+    boolean atlas;
+
+    /** Render and package optimized copies of the svgs, see SvgOptimizer. */
+    boolean optimize = true;
+
+    /** The decimals the optimizer rounds path coordinates to. */
+    int optimizePrecision = 3;
+
+    /**
+     * The largest difference of any channel, 0 to 255, an optimized svg's
+     * renders may have from the original's.
+     */
+    int optimizeTolerance = 2;
+
+    /**
+     * The distribution archive to write while rendering, see DistPackager,
+     * null to not package the icons.
+     */
+    File dist;
+
+    /** The icon sets to package, all of them if empty. */
+    List<String> distSets = new ArrayList<String>();
+
+    /** Also write an archive per bundle. */
+    boolean distBundles;
+
+    /**
+     * What to do with the golden images, see GoldenImages: verify, update,
+     * or null for nothing.
+     */
+    String golden;
+
+    /** The golden set. */
+    File goldenDir = new File("golden");
+
+    /** The difference of a channel, 0 to 255, golden pixels may have. */
+    int goldenTolerance;
+
+    /** The number of pixels of an icon that may differ from its golden. */
+    int goldenThreshold;
+
+    /**
+     * The gif fidelity score, see GifFidelity, below which icons are drawn
+     * next to their gif for review.
+     */
+    float gifThreshold = 0.6f;
+
+    /**
+     * The sizes icons are rendered at, relative to the 16px grid the set is
+     * designed on. The first size is the primary one, written with the
+     * icon's plain name.
+     */
+    int[] sizes = new int[] { 16 };
+
+    /**
+     * The HiDPI scales of the primary size to render, written next to it
+     * with Eclipse's name@2x.png naming.
+     */
+    float[] hidpiScales = new float[0];
+
+    /**
+     * The threads parsing svg documents and encoding PNGs, 0 to use half as
+     * many as render with Batik.
+     */
+    int parseThreads, encodeThreads;
+
+    /**
+     * The threads writing PNGs and copying gifs. Writing is I/O bound, so
+     * this doesn't depend on the number of processors.
+     */
+    int writeThreads = 2;
+
+    /**
+     * The number of icons that can wait in front of each render pipeline
+     * stage, 0 to use four per render thread. Bounds the memory held by
+     * parsed documents and rasters.
+     */
+    int queueCapacity;
+
+    /**
+     * The heap in bytes icons being rendered can use between them, 0 to use
+     * 60% of the maximum heap.
+     */
+    long heapBudget;
+
+    /**
+     * Creates the default settings.
+     */
+    public RenderSettings() {
+        // Box averaging matches antialiased coverage, which keeps small
+        // icons crisp, larger icons can take Lanczos' sharper edges
+        downscaleFilters.put(0, "box");
+        downscaleFilters.put(48, "lanczos3");
+    }
+
+    /**
+     * Creates the default settings, overridden by any eclipse.svg.* system
+     * properties that are set.
+     *
+     * @return the settings for this run
+     */
+    public static RenderSettings fromSystemProperties() {
+        RenderSettings settings = new RenderSettings();
+        settings.incremental = Boolean.getBoolean("eclipse.svg.incremental");
+        settings.verbose = Boolean.getBoolean("eclipse.svg.verbose");
+        settings.atlas = Boolean.getBoolean("eclipse.svg.atlas");
+
+        String optimize = System.getProperty("eclipse.svg.optimize");
+        if (optimize != null && optimize.trim().length() > 0) {
+            settings.optimize = Boolean.parseBoolean(optimize.trim());
+        }
+        settings.optimizePrecision = Integer.getInteger(
+                "eclipse.svg.optimizeprecision", settings.optimizePrecision);
+        settings.optimizeTolerance = Integer.getInteger(
+                "eclipse.svg.optimizetolerance", settings.optimizeTolerance);
+
+        String dist = System.getProperty("eclipse.svg.dist");
+        if (dist != null && dist.trim().length() > 0) {
+            settings.dist = new File(dist.trim());
+        }
+        String distSets = System.getProperty("eclipse.svg.distsets");
+        if (distSets != null) {
+            for (String set : distSets.split(",")) {
+                if (set.trim().length() > 0) {
+                    settings.distSets.add(set.trim());
+                }
+            }
+        }
+        settings.distBundles = Boolean.getBoolean("eclipse.svg.distbundles");
+
+        String golden = System.getProperty("eclipse.svg.golden");
+        if (golden != null && golden.trim().length() > 0) {
+            settings.golden = golden.trim().toLowerCase(Locale.ROOT);
+            if (!settings.golden.equals("verify")
+                    && !settings.golden.equals("update")) {
+                throw new IllegalArgumentException("Unknown golden mode '"
+                        + golden + "', use verify or update");
+            }
+        }
+        String goldenDir = System.getProperty("eclipse.svg.goldendir");
+        if (goldenDir != null && goldenDir.trim().length() > 0) {
+            settings.goldenDir = new File(goldenDir.trim());
+        }
+        settings.goldenTolerance = Integer.getInteger(
+                "eclipse.svg.goldentolerance", settings.goldenTolerance);
+        settings.goldenThreshold = Integer.getInteger(
+                "eclipse.svg.goldenthreshold", settings.goldenThreshold);
+        settings.gifThreshold = floatProperty("eclipse.svg.gifthreshold",
+                settings.gifThreshold);
+
+        String cache = System.getProperty("eclipse.svg.cache");
+        if (cache != null && cache.trim().length() > 0) {
+            settings.cache = Boolean.parseBoolean(cache.trim());
+        }
+        String cacheDir = System.getProperty("eclipse.svg.cachedir");
+        if (cacheDir != null && cacheDir.trim().length() > 0) {
+            settings.cacheDir = new File(cacheDir.trim());
+        }
+        settings.cacheSize = Long.getLong("eclipse.svg.cachesize",
+                settings.cacheSize / (1024 * 1024)) * 1024 * 1024;
+
+        String quality = System.getProperty("eclipse.svg.quality");
+        if (quality != null && quality.trim().length() > 0) {
+            settings.parseQuality(quality);
+        }
+
+        settings.supersample = Math.max(1, Integer.getInteger(
+                "eclipse.svg.supersample", settings.supersample));
+        String downscaleFilters = System
+                .getProperty("eclipse.svg.downscalefilter");
+        if (downscaleFilters != null && downscaleFilters.trim().length() > 0) {
+            settings.parseDownscaleFilters(downscaleFilters);
+        }
+
+        settings.pngCompression = Integer.getInteger(
+                "eclipse.svg.pngcompression", settings.pngCompression);
+        String pngPalette = System.getProperty("eclipse.svg.pngpalette");
+        if (pngPalette != null && pngPalette.trim().length() > 0) {
+            settings.pngPalette = Boolean.parseBoolean(pngPalette.trim());
+        }
+
+        settings.disabledBrightness = floatProperty(
+                "eclipse.svg.disabledbrightness", settings.disabledBrightness);
+        settings.disabledContrast = floatProperty(
+                "eclipse.svg.disabledcontrast", settings.disabledContrast);
+
+        settings.parseThreads = Integer.getInteger("eclipse.svg.parsethreads",
+                settings.parseThreads);
+        settings.encodeThreads = Integer.getInteger(
+                "eclipse.svg.encodethreads", settings.encodeThreads);
+        settings.writeThreads = Integer.getInteger("eclipse.svg.writethreads",
+                settings.writeThreads);
+        settings.queueCapacity = Integer.getInteger(
+                "eclipse.svg.queuecapacity", settings.queueCapacity);
+
+        settings.heapBudget = Long.getLong("eclipse.svg.heapbudget", 0) * 1024 * 1024;
+
+        String sizes = System.getProperty("eclipse.svg.sizes");
+        if (sizes != null && sizes.trim().length() > 0) {
+            float[] parsed = parseList(sizes);
+            settings.sizes = new int[parsed.length];
+            for (int i = 0; i < parsed.length; i++) {
+                settings.sizes[i] = Math.round(parsed[i]);
+            }
+        }
+
+        String hidpi = System.getProperty("eclipse.svg.hidpi");
+        if (hidpi != null && hidpi.trim().length() > 0) {
+            settings.hidpiScales = parseList(hidpi);
+        }
+
+        return settings;
+    }
+
+    /**
+     * Sets the quality profiles from a comma separated list of a profile
+     * name for every size and size=name entries for particular sizes, e.g.
+     * "preview" or "default,32=release".
+     *
+     * @param list
+     * @throws IllegalArgumentException
+     *             if a profile doesn't exist
+     */
+    void parseQuality(String list) {
+        for (String entry : list.split(",")) {
+            int equals = entry.indexOf('=');
+            if (equals < 0) {
+                quality = RenderQuality.fromName(entry);
+            } else {
+                sizeQuality.put(
+                        Integer.valueOf(entry.substring(0, equals).trim()),
+                        RenderQuality.fromName(entry.substring(equals + 1)));
+            }
+        }
+    }
+
+    /**
+     * @param size
+     *            an icon size, e.g. 16
+     * @return the rendering hints to render icons of that size with
+     */
+    public RenderQuality quality(int size) {
+        RenderQuality forSize = sizeQuality.get(size);
+        return forSize != null ? forSize : quality;
+    }
+
+    /**
+     * Sets the downscale kernels from a comma separated list of a kernel for
+     * every size and size=kernel entries for a size and those above it, e.g.
+     * "box,48=lanczos3".
+     *
+     * @param list
+     * @throws IllegalArgumentException
+     *             if a kernel doesn't exist
+     */
+    void parseDownscaleFilters(String list) {
+        for (String entry : list.split(",")) {
+            int equals = entry.indexOf('=');
+            int size = 0;
+            String name = entry;
+            if (equals >= 0) {
+                size = Integer.parseInt(entry.substring(0, equals).trim());
+                name = entry.substring(equals + 1);
+            }
+            // Fail now rather than on the first icon
+            IconResampler.filter(name);
+            downscaleFilters.put(size, name.trim());
+        }
+    }
+
+    /**
+     * @param size
+     *            an icon size, e.g. 16
+     * @return the name of the kernel supersampled icons of that size are
+     *         scaled down with
+     */
+    public String downscaleFilter(int size) {
+        Map.Entry<Integer, String> entry = downscaleFilters.floorEntry(size);
+        return entry != null ? entry.getValue() : "box";
+    }
+
+    /**
+     * @param key
+     * @param def
+     * @return the system property as a float, or def if it isn't set
+     */
+    static float floatProperty(String key, float def) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return def;
+        }
+        return Float.parseFloat(value.trim());
+    }
+
+    /**
+     * @param list
+     *            a comma separated list of numbers
+     * @return the parsed numbers
+     */
+    static float[] parseList(String list) {
+        String[] split = list.split(",");
+        float[] values = new float[split.length];
+        for (int i = 0; i < split.length; i++) {
+            values[i] = Float.parseFloat(split[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * @param scale
+     *            a HiDPI scale
+     * @return the file name suffix Eclipse uses for the scale, e.g. @2x
+     */
+    static String hidpiSuffix(float scale) {
+        if (scale == Math.round(scale)) {
+            return "@" + Math.round(scale) + "x";
+        }
+        return "@" + scale + "x";
+    }
+
+    /**
+     * Describes every setting that affects the pixels rendered for an icon,
+     * used to detect when previous output was made with different settings.
+     *
+     * @param sizes
+     *            the sizes the icon is rendered at
+     * @return a string that changes whenever the output would change
+     */
+    public String fingerprint(int[] sizes) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("version=").append(RENDER_VERSION);
+
+        builder.append(";sizes=");
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(sizes[i]);
+        }
+
+        builder.append(";hidpi=");
+        for (int i = 0; i < hidpiScales.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(hidpiScales[i]);
+        }
+
+        // The quality of every raster, the HiDPI variants included. A
+        // variant is rendered in the quality of its icon size, not of its
+        // pixel size, e.g. 16@2x in that of 16 rather than 32. Only
+        // non-release renders are told apart, so output recorded before
+        // there were profiles stays valid
+        StringBuilder qualities = new StringBuilder();
+        boolean release = true;
+        for (int i = 0; i < sizes.length; i++) {
+            RenderQuality forSize = quality(sizes[i]);
+            release &= forSize == RenderQuality.RELEASE;
+            if (i > 0) {
+                qualities.append(',');
+            }
+            qualities.append(sizes[i]).append(':').append(forSize.getName());
+
+            if (i == 0) {
+                for (float hidpi : hidpiScales) {
+                    qualities.append(',').append(sizes[i])
+                            .append(hidpiSuffix(hidpi)).append(':')
+                            .append(forSize.getName());
+                }
+            }
+        }
+        if (!release) {
+            builder.append(";quality=").append(qualities);
+        }
+
+        if (supersample > 1) {
+            builder.append(";supersample=").append(supersample);
+            for (int i = 0; i < sizes.length; i++) {
+                builder.append(i > 0 ? ',' : ':').append(
+                        downscaleFilter(sizes[i]));
+            }
+        }
+
+        builder.append(";disabled=grayscale,hsb-s0");
+        if (disabledBrightness != 1.0f || disabledContrast != 1.0f) {
+            builder.append(",brightness=").append(disabledBrightness)
+                    .append(",contrast=").append(disabledContrast);
+        }
+        builder.append(";png=").append(pngCompression).append(',')
+                .append(pngPalette ? "palette" : "truecolor");
+
+        return builder.toString();
+    }
+}
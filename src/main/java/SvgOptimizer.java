@@ -0,0 +1,1142 @@
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.batik.dom.GenericDOMImplementation;
+import org.apache.batik.dom.util.DOMUtilities;
+import org.apache.batik.dom.util.SAXDocumentFactory;
+import org.apache.batik.parser.AWTTransformProducer;
+import org.apache.batik.parser.ParseException;
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.batik.transcoder.TranscoderInput;
+import org.apache.batik.util.XMLResourceDescriptor;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * <p>Writes smaller copies of the svg icons for rendering and distribution,
+ * with what only the editor needs removed.</p>
+ *
+ * <p>Inkscape saves its own view settings, metadata, layer attributes and
+ * every gradient ever used alongside the drawing. The optimizer removes
+ * comments, metadata, sodipodi and inkscape elements and attributes, defs
+ * nobody references, ids nobody references, identity transforms, empty and
+ * attribute-less groups, merges a group's transform into its only child,
+ * points references to duplicate gradients at one copy, and rounds path
+ * coordinates to a number of decimals. Styles are left as they are, Batik
+ * ignores the rest of a style after Inkscape's
+ * -inkscape-font-specification, so removing it would change the icon.</p>
+ *
+ * <p>Every optimized icon is rendered against its original at its native
+ * size and twice that. If any premultiplied channel differs by more than
+ * the tolerance it is optimized again without rounding, and failing that
+ * the original is copied, so an optimization that changes an icon costs its
+ * size savings, not its pixels. Copies newer than their svg are left alone,
+ * so only changed icons are optimized again.</p>
+ */
+public class SvgOptimizer {
+
+    /**
+     * Bump this whenever a change to the optimizer should invalidate the
+     * copies written by previous runs.
+     */
+    static final int OPTIMIZER_VERSION = 1;
+
+    private static final String SVG_NS = "http://www.w3.org/2000/svg";
+
+    private static final String XMLNS_NS = "http://www.w3.org/2000/xmlns/";
+
+    /** The namespaces of Inkscape's editor data. */
+    private static final Set<String> EDITOR_NAMESPACES = new HashSet<String>(
+            Arrays.asList("http://sodipodi.sourceforge.net/DTD/sodipodi-0.dtd",
+                    "http://www.inkscape.org/namespaces/inkscape"));
+
+    /** Elements whose whitespace is part of their content. */
+    private static final Set<String> TEXT_ELEMENTS = new HashSet<String>(
+            Arrays.asList("text", "tspan", "textPath", "title", "desc",
+                    "style", "script", "flowRoot", "flowPara", "flowSpan",
+                    "flowDiv"));
+
+    /** Children of defs that are used without being referenced by id. */
+    private static final Set<String> UNREFERENCED_DEFS = new HashSet<String>(
+            Arrays.asList("style", "script", "font", "font-face"));
+
+    /** Elements a group's transform can be moved onto. */
+    private static final Set<String> TRANSFORMABLE = new HashSet<String>(
+            Arrays.asList("g", "path", "rect", "circle", "ellipse", "line",
+                    "polyline", "polygon", "text", "image", "use"));
+
+    private static final Pattern URL_REFERENCE = Pattern
+            .compile("url\\(\\s*['\"]?#([^)'\"\\s]+)['\"]?\\s*\\)");
+
+    private static final Pattern NUMBER = Pattern
+            .compile("[-+]?(?:\\d+\\.?\\d*|\\.\\d+)(?:[eE][-+]?\\d+)?");
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The name of the file recording the options the copies were made with. */
+    private static final String STAMP = ".optimizer";
+
+    /** The decimals path coordinates are rounded to. */
+    private final int precision;
+
+    /** The largest channel difference an optimized icon's renders may have. */
+    private final int tolerance;
+
+    private final AtomicInteger optimized = new AtomicInteger();
+    private final AtomicInteger unrounded = new AtomicInteger();
+    private final AtomicInteger kept = new AtomicInteger();
+    private final AtomicInteger upToDate = new AtomicInteger();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+    private final AtomicLong elementsBefore = new AtomicLong();
+    private final AtomicLong elementsAfter = new AtomicLong();
+
+    /**
+     * @param precision
+     *            the decimals path coordinates are rounded to
+     * @param tolerance
+     *            the largest difference of any channel, 0 to 255, the
+     *            renders of an optimized icon may have from its original's
+     */
+    public SvgOptimizer(int precision, int tolerance) {
+        this.precision = precision;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Writes an optimized copy of every svg below the resources directory
+     * that changed since it was last copied, and removes the copies of svgs
+     * that no longer exist.
+     *
+     * @param resources
+     *            the directory holding the icon sets
+     * @param outputDir
+     *            the directory the copies go in, with the same layout
+     * @param threads
+     *            the number of icons to optimize at once
+     * @throws IOException
+     *             if the resources could not be searched or a copy could
+     *             not be written
+     */
+    public void optimizeAll(File resources, File outputDir, int threads)
+            throws IOException {
+        final Path sourceRoot = resources.toPath();
+        final Path outputRoot = outputDir.toPath();
+        final List<Path> sources = new ArrayList<Path>();
+        Files.walkFileTree(sourceRoot, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) {
+                if (file.getFileName().toString().endsWith(".svg")) {
+                    sources.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // Copies made with other options are all out of date
+        String stamp = "version=" + OPTIMIZER_VERSION + ";precision="
+                + precision + ";tolerance=" + tolerance;
+        File stampFile = new File(outputDir, STAMP);
+        final boolean stampMatches = stampFile.isFile()
+                && stamp.equals(new String(Files.readAllBytes(stampFile
+                        .toPath()), UTF8));
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+                threads));
+        try {
+            List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+            for (final Path source : sources) {
+                final File target = outputRoot.resolve(
+                        sourceRoot.relativize(source).toString()).toFile();
+                tasks.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        if (stampMatches
+                                && target.lastModified() >= source.toFile()
+                                        .lastModified()) {
+                            upToDate.incrementAndGet();
+                        } else {
+                            optimize(source.toFile(), target);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Object> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while optimizing", e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        removeStaleCopies(sourceRoot, outputRoot);
+        Files.write(stampFile.toPath(), stamp.getBytes(UTF8));
+    }
+
+    /**
+     * Optimizes one svg, copying it as it is if the optimized document
+     * renders differently or can't be optimized.
+     *
+     * @param source
+     * @param target
+     * @throws IOException
+     *             if the copy could not be written
+     */
+    void optimize(File source, File target) throws IOException {
+        byte[] original = Files.readAllBytes(source.toPath());
+        byte[] result = original;
+        int before = 0, after = 0;
+        try {
+            String uri = source.toURI().toString();
+            SvgScan scan = SvgScan.scan(source);
+            int width = scan.getPixelWidth(RasterizerUtil.BASE_SIZE);
+            int height = scan.getPixelHeight(RasterizerUtil.BASE_SIZE);
+            BufferedImage[] reference = null;
+
+            // Rounding moves edges by a fraction of a pixel, which may be
+            // enough to tip a sharp corner over its miter limit
+            for (boolean round : new boolean[] { true, false }) {
+                Document document = parse(uri, original);
+                before = countElements(document);
+                after = before;
+                optimize(document, round);
+                byte[] optimizedBytes = serialize(document);
+                if (optimizedBytes.length >= original.length) {
+                    break;
+                }
+
+                if (reference == null) {
+                    reference = render(uri, original, width, height);
+                }
+                if (isAlike(reference, render(uri, optimizedBytes, width,
+                        height))) {
+                    result = optimizedBytes;
+                    after = countElements(document);
+                    if (!round) {
+                        unrounded.incrementAndGet();
+                    }
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            // Broken svgs are copied for the rasterizer to report
+        }
+
+        if (result == original) {
+            kept.incrementAndGet();
+        } else {
+            optimized.incrementAndGet();
+        }
+        bytesBefore.addAndGet(original.length);
+        bytesAfter.addAndGet(result.length);
+        elementsBefore.addAndGet(before);
+        elementsAfter.addAndGet(after);
+        target.getParentFile().mkdirs();
+        Files.write(target.toPath(), result);
+    }
+
+    /**
+     * Optimizes a document in place.
+     *
+     * @param document
+     * @param round
+     *            whether to round the path coordinates
+     */
+    void optimize(Document document, boolean round) {
+        Element root = document.getDocumentElement();
+        removeEditorData(document);
+        removeWhitespace(root);
+        mergeDuplicateGradients(document);
+        removeUnusedDefs(document);
+        removeUnusedIds(document);
+        simplifyGroups(root);
+        if (round) {
+            roundPaths(root);
+        }
+        removeUnusedNamespaces(root);
+    }
+
+    /**
+     * Removes comments, processing instructions, metadata and everything in
+     * Inkscape's namespaces.
+     */
+    private void removeEditorData(Document document) {
+        for (Node node = document.getFirstChild(); node != null;) {
+            Node next = node.getNextSibling();
+            if (node.getNodeType() != Node.ELEMENT_NODE
+                    && node.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+                document.removeChild(node);
+            }
+            node = next;
+        }
+        removeEditorData(document.getDocumentElement());
+    }
+
+    private void removeEditorData(Element element) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = attributes.getLength() - 1; i >= 0; i--) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (EDITOR_NAMESPACES.contains(attribute.getNamespaceURI())) {
+                element.removeAttributeNode(attribute);
+            }
+        }
+
+        for (Node child = element.getFirstChild(); child != null;) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.COMMENT_NODE
+                    || child.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE) {
+                element.removeChild(child);
+            } else if (child.getNodeType() == Node.ELEMENT_NODE) {
+                if (EDITOR_NAMESPACES.contains(child.getNamespaceURI())
+                        || isSvg(child, "metadata")) {
+                    element.removeChild(child);
+                } else {
+                    removeEditorData((Element) child);
+                }
+            }
+            child = next;
+        }
+    }
+
+    /**
+     * Removes the whitespace between elements, outside of text.
+     */
+    private void removeWhitespace(Element element) {
+        if (TEXT_ELEMENTS.contains(element.getLocalName())
+                || element.hasAttribute("xml:space")) {
+            return;
+        }
+        for (Node child = element.getFirstChild(); child != null;) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.TEXT_NODE
+                    && child.getNodeValue().trim().length() == 0) {
+                element.removeChild(child);
+            } else if (child.getNodeType() == Node.ELEMENT_NODE) {
+                removeWhitespace((Element) child);
+            }
+            child = next;
+        }
+    }
+
+    /**
+     * Points every reference to a gradient at the first of its identical
+     * copies. Inkscape duplicates a gradient each time it is applied, and
+     * the copies may reference each other, so this repeats until no more
+     * copies are found. The unreferenced copies are removed with the unused
+     * defs.
+     */
+    void mergeDuplicateGradients(Document document) {
+        List<Element> gradients = new ArrayList<Element>();
+        collectElements(document.getDocumentElement(), "linearGradient",
+                gradients);
+        collectElements(document.getDocumentElement(), "radialGradient",
+                gradients);
+
+        Map<String, String> replacements;
+        do {
+            Map<String, String> firstIds = new HashMap<String, String>();
+            replacements = new HashMap<String, String>();
+            for (Element gradient : gradients) {
+                String id = gradient.getAttribute("id");
+                if (id.length() == 0 || gradient.getParentNode() == null) {
+                    continue;
+                }
+                String key = gradientKey(gradient);
+                String firstId = firstIds.get(key);
+                if (firstId == null) {
+                    firstIds.put(key, id);
+                } else {
+                    replacements.put(id, firstId);
+                    gradient.getParentNode().removeChild(gradient);
+                }
+            }
+            replaceReferences(document.getDocumentElement(), replacements);
+        } while (!replacements.isEmpty());
+    }
+
+    /**
+     * @return everything a gradient draws with: its attributes but its id
+     *         and those of its stops
+     */
+    private static String gradientKey(Element gradient) {
+        StringBuilder key = new StringBuilder();
+        appendAttributes(gradient, key);
+        for (Node child = gradient.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                appendAttributes((Element) child, key);
+            }
+        }
+        return key.toString();
+    }
+
+    private static void appendAttributes(Element element, StringBuilder key) {
+        Map<String, String> sorted = new TreeMap<String, String>();
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (!attribute.getName().equals("id")) {
+                sorted.put(attribute.getName(), attribute.getValue());
+            }
+        }
+        key.append('<').append(element.getLocalName()).append(sorted)
+                .append('>');
+    }
+
+    private void replaceReferences(Element element,
+            Map<String, String> replacements) {
+        if (replacements.isEmpty()) {
+            return;
+        }
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            String value = attribute.getValue();
+            if ("href".equals(attribute.getLocalName())
+                    && value.startsWith("#")) {
+                String replacement = replacements.get(value.substring(1));
+                if (replacement != null) {
+                    attribute.setValue("#" + replacement);
+                }
+            } else if (value.contains("url(")) {
+                Matcher matcher = URL_REFERENCE.matcher(value);
+                StringBuffer replaced = new StringBuffer();
+                while (matcher.find()) {
+                    String replacement = replacements.get(matcher.group(1));
+                    matcher.appendReplacement(replaced, Matcher
+                            .quoteReplacement(replacement == null ? matcher
+                                    .group() : "url(#" + replacement + ")"));
+                }
+                matcher.appendTail(replaced);
+                attribute.setValue(replaced.toString());
+            }
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                replaceReferences((Element) child, replacements);
+            }
+        }
+    }
+
+    /**
+     * Removes the children of defs that nothing references, repeating as
+     * long as that leaves others unreferenced, and then the empty defs.
+     */
+    private void removeUnusedDefs(Document document) {
+        List<Element> defs = new ArrayList<Element>();
+        collectElements(document.getDocumentElement(), "defs", defs);
+
+        boolean removed;
+        do {
+            removed = false;
+            Set<String> referenced = referencedIds(document);
+            for (Element def : defs) {
+                for (Node child = def.getFirstChild(); child != null;) {
+                    Node next = child.getNextSibling();
+                    if (child.getNodeType() == Node.ELEMENT_NODE
+                            && !UNREFERENCED_DEFS.contains(child
+                                    .getLocalName())
+                            && !referenced.contains(((Element) child)
+                                    .getAttribute("id"))) {
+                        def.removeChild(child);
+                        removed = true;
+                    }
+                    child = next;
+                }
+            }
+        } while (removed);
+
+        for (Element def : defs) {
+            if (def.getFirstChild() == null
+                    && !referencedIds(document).contains(
+                            def.getAttribute("id"))) {
+                def.getParentNode().removeChild(def);
+            }
+        }
+    }
+
+    /**
+     * Removes the ids nothing references, unless a stylesheet or script
+     * could select by them.
+     */
+    private void removeUnusedIds(Document document) {
+        List<Element> styles = new ArrayList<Element>();
+        collectElements(document.getDocumentElement(), "style", styles);
+        collectElements(document.getDocumentElement(), "script", styles);
+        if (styles.isEmpty()) {
+            removeUnusedIds(document.getDocumentElement(),
+                    referencedIds(document));
+        }
+    }
+
+    private void removeUnusedIds(Element element, Set<String> referenced) {
+        if (element.hasAttribute("id")
+                && !referenced.contains(element.getAttribute("id"))) {
+            element.removeAttribute("id");
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                removeUnusedIds((Element) child, referenced);
+            }
+        }
+    }
+
+    /**
+     * @return the ids referenced by url(#id) values and #id links anywhere
+     *         in the document, stylesheets included
+     */
+    private static Set<String> referencedIds(Document document) {
+        Set<String> ids = new HashSet<String>();
+        collectReferences(document.getDocumentElement(), ids);
+        return ids;
+    }
+
+    private static void collectReferences(Element element, Set<String> ids) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            String value = attribute.getValue();
+            if ("href".equals(attribute.getLocalName())
+                    && value.startsWith("#")) {
+                ids.add(value.substring(1));
+            } else {
+                collectUrlReferences(value, ids);
+            }
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                collectReferences((Element) child, ids);
+            } else if (child.getNodeType() == Node.TEXT_NODE
+                    || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                collectUrlReferences(child.getNodeValue(), ids);
+            }
+        }
+    }
+
+    private static void collectUrlReferences(String value, Set<String> ids) {
+        if (value.contains("url(")) {
+            Matcher matcher = URL_REFERENCE.matcher(value);
+            while (matcher.find()) {
+                ids.add(matcher.group(1));
+            }
+        }
+    }
+
+    /**
+     * Removes identity transforms, empty groups and groups without
+     * attributes, and moves the transform of a group with a single child
+     * onto the child, innermost groups first.
+     */
+    void simplifyGroups(Element element) {
+        for (Node child = element.getFirstChild(); child != null;) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                simplifyGroups((Element) child);
+            }
+            child = next;
+        }
+
+        AffineTransform transform = null;
+        if (element.hasAttribute("transform")) {
+            transform = parseTransform(element.getAttribute("transform"));
+            if (transform != null && transform.isIdentity()) {
+                element.removeAttribute("transform");
+            }
+        }
+
+        // A switch renders only its first matching child
+        Node parent = element.getParentNode();
+        if (!isSvg(element, "g") || parent == null
+                || parent.getNodeType() != Node.ELEMENT_NODE
+                || isSvg(parent, "switch")) {
+            return;
+        }
+
+        Element onlyChild = onlyChildElement(element);
+        NamedNodeMap attributes = element.getAttributes();
+        if (element.getFirstChild() == null && !element.hasAttribute("id")) {
+            parent.removeChild(element);
+        } else if (attributes.getLength() == 0) {
+            unwrap(element);
+        } else if (attributes.getLength() == 1 && transform != null
+                && element.hasAttribute("transform") && onlyChild != null
+                && SVG_NS.equals(onlyChild.getNamespaceURI())
+                && TRANSFORMABLE.contains(onlyChild.getLocalName())) {
+            AffineTransform childTransform = onlyChild
+                    .hasAttribute("transform") ? parseTransform(onlyChild
+                    .getAttribute("transform")) : new AffineTransform();
+            if (childTransform != null) {
+                AffineTransform merged = new AffineTransform(transform);
+                merged.concatenate(childTransform);
+                setOrRemove(onlyChild, "transform", formatTransform(merged));
+                unwrap(element);
+            }
+        }
+    }
+
+    /**
+     * @return the element's only child node if it's an element, otherwise
+     *         null
+     */
+    private static Element onlyChildElement(Element element) {
+        Node child = element.getFirstChild();
+        if (child != null && child.getNextSibling() == null
+                && child.getNodeType() == Node.ELEMENT_NODE) {
+            return (Element) child;
+        }
+        return null;
+    }
+
+    /**
+     * Replaces an element by its children.
+     */
+    private static void unwrap(Element element) {
+        Node parent = element.getParentNode();
+        while (element.getFirstChild() != null) {
+            parent.insertBefore(element.getFirstChild(), element);
+        }
+        parent.removeChild(element);
+    }
+
+    /**
+     * @return the transform, or null if it can't be parsed
+     */
+    private static AffineTransform parseTransform(String value) {
+        try {
+            return AWTTransformProducer.createAffineTransform(new StringReader(
+                    value));
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the shortest of translate() or matrix() for the transform,
+     *         empty for the identity
+     */
+    private String formatTransform(AffineTransform transform) {
+        // Transforms scale the path coordinates, keep more of their decimals
+        int decimals = precision + 3;
+        String[] translation = { format(transform.getTranslateX(), decimals),
+                format(transform.getTranslateY(), decimals) };
+        String[] matrix = { format(transform.getScaleX(), decimals),
+                format(transform.getShearY(), decimals),
+                format(transform.getShearX(), decimals),
+                format(transform.getScaleY(), decimals), translation[0],
+                translation[1] };
+
+        if (matrix[0].equals("1") && matrix[1].equals("0")
+                && matrix[2].equals("0") && matrix[3].equals("1")) {
+            if (translation[0].equals("0") && translation[1].equals("0")) {
+                return "";
+            }
+            return "translate(" + translation[0] + "," + translation[1] + ")";
+        }
+
+        StringBuilder result = new StringBuilder("matrix(");
+        for (int i = 0; i < matrix.length; i++) {
+            result.append(i == 0 ? "" : ",").append(matrix[i]);
+        }
+        return result.append(')').toString();
+    }
+
+    /**
+     * Rounds the coordinates of path data and polygon points.
+     */
+    private void roundPaths(Element element) {
+        if (element.hasAttribute("d")) {
+            String path = element.getAttribute("d");
+            try {
+                element.setAttribute("d", roundPath(path));
+            } catch (IllegalArgumentException e) {
+                // Leave path data Batik may read differently alone
+            }
+        }
+        if (element.hasAttribute("points")) {
+            element.setAttribute("points", roundNumbers(element
+                    .getAttribute("points")));
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                roundPaths((Element) child);
+            }
+        }
+    }
+
+    /**
+     * @param path
+     *            path data
+     * @return the path data with its coordinates rounded to the precision
+     * @throws IllegalArgumentException
+     *             if the path data can't be parsed
+     */
+    String roundPath(String path) {
+        return new PathRounder(path).round();
+    }
+
+    /**
+     * @return the value with every number rounded to the precision
+     */
+    private String roundNumbers(String value) {
+        Matcher matcher = NUMBER.matcher(value);
+        StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            matcher.appendReplacement(result,
+                    format(Double.parseDouble(matcher.group()), precision));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    /**
+     * <p>Rounds the coordinates of path data. Relative coordinates are
+     * rounded against the rounded point they are relative to, so the errors
+     * of a long run of relative segments don't add up and move the end of
+     * the path.</p>
+     */
+    private class PathRounder {
+
+        private final String path;
+
+        private final Matcher number;
+
+        private final StringBuilder result = new StringBuilder();
+
+        private int position;
+
+        /** The current point, as written and rounded. */
+        private double x, y, roundedX, roundedY;
+
+        /** The start of the current subpath, as written and rounded. */
+        private double startX, startY, roundedStartX, roundedStartY;
+
+        /** The last coordinate read, as written. */
+        private double last;
+
+        PathRounder(String path) {
+            this.path = path;
+            number = NUMBER.matcher(path);
+        }
+
+        /**
+         * @return the rounded path data
+         * @throws IllegalArgumentException
+         *             if the path data can't be parsed
+         */
+        String round() {
+            char command = 0;
+            while (skipSeparators()) {
+                char c = path.charAt(position);
+                if ("MmLlHhVvCcSsQqTtAaZz".indexOf(c) >= 0) {
+                    position++;
+                    command = c;
+                    result.append(result.length() == 0 ? "" : " ").append(c);
+                    if (c == 'Z' || c == 'z') {
+                        x = startX;
+                        y = startY;
+                        roundedX = roundedStartX;
+                        roundedY = roundedStartY;
+                        continue;
+                    }
+                } else if (command == 0 || command == 'Z' || command == 'z') {
+                    throw new IllegalArgumentException("Expected a command at "
+                            + position + " of " + path);
+                }
+                segment(command);
+
+                // Coordinates after a move are lines
+                if (command == 'M') {
+                    command = 'L';
+                } else if (command == 'm') {
+                    command = 'l';
+                }
+            }
+            return result.toString();
+        }
+
+        private void segment(char command) {
+            boolean relative = Character.isLowerCase(command);
+            switch (Character.toUpperCase(command)) {
+            case 'M':
+                point(relative, true);
+                startX = x;
+                startY = y;
+                roundedStartX = roundedX;
+                roundedStartY = roundedY;
+                break;
+            case 'L':
+            case 'T':
+                point(relative, true);
+                break;
+            case 'H':
+                result.append(' ');
+                roundedX = coordinate(relative, x, roundedX, true);
+                x = relative ? x + last : last;
+                break;
+            case 'V':
+                result.append(' ');
+                roundedY = coordinate(relative, y, roundedY, true);
+                y = relative ? y + last : last;
+                break;
+            case 'C':
+                point(relative, false);
+                point(relative, false);
+                point(relative, true);
+                break;
+            case 'S':
+            case 'Q':
+                point(relative, false);
+                point(relative, true);
+                break;
+            default:
+                // Arcs: radii, rotation, the two flags and the end point
+                result.append(' ').append(format(number(), precision));
+                result.append(',').append(format(number(), precision));
+                result.append(' ').append(format(number(), precision));
+                result.append(' ').append(flag()).append(' ').append(flag());
+                point(relative, true);
+            }
+        }
+
+        /**
+         * Reads and writes a coordinate pair, moving the current point to
+         * it if it's the end of the segment.
+         */
+        private void point(boolean relative, boolean end) {
+            result.append(' ');
+            double newRoundedX = coordinate(relative, x, roundedX, end);
+            double valueX = last;
+            result.append(',');
+            double newRoundedY = coordinate(relative, y, roundedY, end);
+            double valueY = last;
+            if (end) {
+                x = relative ? x + valueX : valueX;
+                y = relative ? y + valueY : valueY;
+                roundedX = newRoundedX;
+                roundedY = newRoundedY;
+            }
+        }
+
+        /**
+         * Reads and writes one coordinate.
+         *
+         * @return the rounded absolute coordinate
+         */
+        private double coordinate(boolean relative, double current,
+                double roundedCurrent, boolean end) {
+            last = number();
+            double absolute = relative ? current + last : last;
+
+            // Zero stays zero, so straight lines stay straight and control
+            // points on the end of a curve stay on it
+            BigDecimal written = BigDecimal.valueOf(
+                    relative && last != 0 ? absolute - roundedCurrent
+                            : last).setScale(precision, RoundingMode.HALF_EVEN);
+            result.append(format(written));
+            return relative ? roundedCurrent + written.doubleValue() : written
+                    .doubleValue();
+        }
+
+        private double number() {
+            if (!skipSeparators() || !number.region(position, path.length())
+                    .lookingAt()) {
+                throw new IllegalArgumentException("Expected a number at "
+                        + position + " of " + path);
+            }
+            position = number.end();
+            return Double.parseDouble(number.group());
+        }
+
+        private char flag() {
+            if (!skipSeparators()
+                    || (path.charAt(position) != '0' && path.charAt(position) != '1')) {
+                throw new IllegalArgumentException("Expected a flag at "
+                        + position + " of " + path);
+            }
+            return path.charAt(position++);
+        }
+
+        /**
+         * @return false if the end of the path was reached
+         */
+        private boolean skipSeparators() {
+            while (position < path.length()
+                    && (Character.isWhitespace(path.charAt(position)) || path
+                            .charAt(position) == ',')) {
+                position++;
+            }
+            return position < path.length();
+        }
+    }
+
+    private static String format(double value, int decimals) {
+        return format(BigDecimal.valueOf(value).setScale(decimals,
+                RoundingMode.HALF_EVEN));
+    }
+
+    private static String format(BigDecimal value) {
+        if (value.signum() == 0) {
+            return "0";
+        }
+        return value.stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Removes the declarations of namespace prefixes no longer used.
+     */
+    private void removeUnusedNamespaces(Element root) {
+        Set<String> prefixes = new HashSet<String>();
+        collectPrefixes(root, prefixes);
+        removeUnusedNamespaces(root, prefixes);
+    }
+
+    private static void collectPrefixes(Element element, Set<String> prefixes) {
+        if (element.getPrefix() != null) {
+            prefixes.add(element.getPrefix());
+        }
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (attribute.getPrefix() != null
+                    && !XMLNS_NS.equals(attribute.getNamespaceURI())) {
+                prefixes.add(attribute.getPrefix());
+            }
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                collectPrefixes((Element) child, prefixes);
+            }
+        }
+    }
+
+    private static void removeUnusedNamespaces(Element element,
+            Set<String> prefixes) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = attributes.getLength() - 1; i >= 0; i--) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (XMLNS_NS.equals(attribute.getNamespaceURI())
+                    && "xmlns".equals(attribute.getPrefix())
+                    && !prefixes.contains(attribute.getLocalName())) {
+                element.removeAttributeNode(attribute);
+            }
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                removeUnusedNamespaces((Element) child, prefixes);
+            }
+        }
+    }
+
+    /**
+     * Renders svg data at its native size and twice that.
+     */
+    private static BufferedImage[] render(String uri, byte[] data, int width,
+            int height) throws IOException, TranscoderException {
+        RenderContext context = RenderContext.get();
+        BufferedImage[] images = new BufferedImage[2];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = context.render(width * (i + 1), height * (i + 1),
+                    new TranscoderInput(context.parse(uri,
+                            new ByteArrayInputStream(data))));
+        }
+        return images;
+    }
+
+    /**
+     * @return true if no channel of the renders differs by more than the
+     *         tolerance
+     */
+    private boolean isAlike(BufferedImage[] reference, BufferedImage[] images) {
+        for (int i = 0; i < reference.length; i++) {
+            if (maxDifference(reference[i], images[i]) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the largest difference of any premultiplied channel
+     */
+    static int maxDifference(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            return 255;
+        }
+        int max = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                int pa = a.getRGB(x, y);
+                int pb = b.getRGB(x, y);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    max = Math.max(max, Math.abs(premultiplied(pa, shift)
+                            - premultiplied(pb, shift)));
+                }
+            }
+        }
+        return max;
+    }
+
+    private static int premultiplied(int argb, int shift) {
+        int channel = (argb >>> shift) & 0xff;
+        return shift == 24 ? channel : channel * (argb >>> 24) / 255;
+    }
+
+    /**
+     * Deletes the copies whose svg was deleted.
+     */
+    private static void removeStaleCopies(final Path sourceRoot,
+            final Path outputRoot) throws IOException {
+        if (!Files.isDirectory(outputRoot)) {
+            return;
+        }
+        Files.walkFileTree(outputRoot, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().endsWith(".svg")
+                        && !Files.exists(sourceRoot.resolve(outputRoot
+                                .relativize(file).toString()))) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Parses into a plain DOM, an svg DOM would write out the default value
+     * of every attribute.
+     */
+    static Document parse(String uri, byte[] data) throws IOException {
+        SAXDocumentFactory factory = new SAXDocumentFactory(
+                GenericDOMImplementation.getDOMImplementation(),
+                XMLResourceDescriptor.getXMLParserClassName());
+        return factory.createDocument(uri, new ByteArrayInputStream(data));
+    }
+
+    private static byte[] serialize(Document document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(out, UTF8);
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        DOMUtilities.writeDocument(document, writer);
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static void collectElements(Element element, String localName,
+            List<Element> elements) {
+        if (isSvg(element, localName)) {
+            elements.add(element);
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                collectElements((Element) child, localName, elements);
+            }
+        }
+    }
+
+    private static int countElements(Document document) {
+        List<Element> elements = new ArrayList<Element>();
+        collectElements(document.getDocumentElement(), null, elements);
+        return elements.size();
+    }
+
+    /**
+     * @param localName
+     *            the name to match, or null to match any svg element
+     */
+    private static boolean isSvg(Node node, String localName) {
+        return SVG_NS.equals(node.getNamespaceURI())
+                && (localName == null || localName.equals(node.getLocalName()));
+    }
+
+    private static void setOrRemove(Element element, String name, String value) {
+        if (value.length() == 0) {
+            element.removeAttribute(name);
+        } else {
+            element.setAttribute(name, value);
+        }
+    }
+
+    /**
+     * Prints how much smaller the icons got.
+     *
+     * @param out
+     */
+    public void printSummary(PrintStream out) {
+        out.println(String.format(Locale.ROOT,
+                "Optimized %d svgs (%d without rounding), %.1f to %.1f MB, "
+                        + "%d to %d elements, %d kept as they were, %d up to date",
+                optimized.get(), unrounded.get(), bytesBefore.get() / 1048576.0,
+                bytesAfter.get() / 1048576.0, elementsBefore.get(),
+                elementsAfter.get(), kept.get(), upToDate.get()));
+    }
+
+    /**
+     * @return the number of svgs that were optimized
+     */
+    public int getOptimized() {
+        return optimized.get();
+    }
+
+    /**
+     * @return the number of svgs copied as they were, because optimizing
+     *         changed their renders or they couldn't be read
+     */
+    public int getKept() {
+        return kept.get();
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * <p>What a quick streaming pass over an svg file tells about it, without
+ * building a Batik document: the root element's width, height and viewBox,
+ * and how many elements there are in all and of the kinds that are slow to
+ * render.</p>
+ *
+ * <p>Icons are scanned when they are submitted, so the render pipeline can
+ * order them by cost and admit them by memory before any of them is
+ * parsed, and the parse stage knows the icon's dimensions. The scan uses
+ * the xpp3 pull parser, which reads the file once and keeps nothing but the
+ * current element.</p>
+ */
+public class SvgScan {
+
+    /** Pixels per unit of the absolute CSS units, at Batik's 96 dpi. */
+    private static final String[] UNITS = { "px", "pt", "pc", "mm", "cm", "in" };
+
+    private static final float[] UNIT_PIXELS = { 1, 96 / 72.0f, 16, 96 / 25.4f,
+            96 / 2.54f, 96 };
+
+    /** The width and height of the root element, 0 if they're unknown. */
+    float width, height;
+
+    /** The root element's viewBox (x, y, width, height), null if none. */
+    float[] viewBox;
+
+    /** The number of elements. */
+    int elements;
+
+    /** The number of filter primitives, blurs and the like. */
+    int filterPrimitives;
+
+    /** The number of gradients. */
+    int gradients;
+
+    /** The number of elements drawing embedded raster images or text. */
+    int imagesAndText;
+
+    /** The size of the file in bytes. */
+    long fileBytes;
+
+    /**
+     * Scans an svg file.
+     *
+     * @param svg
+     * @return what the scan found
+     * @throws IOException
+     *             if the file can't be read, or isn't well formed XML
+     */
+    public static SvgScan scan(File svg) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(svg));
+        try {
+            return scan(in, svg.length(), svg.toString());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Scans svg data held in memory, e.g. an icon generated from a template.
+     *
+     * @param svg
+     * @param name
+     *            the name of the svg, for errors
+     * @return what the scan found
+     * @throws IOException
+     *             if the data isn't well formed XML
+     */
+    public static SvgScan scan(byte[] svg, String name) throws IOException {
+        return scan(new ByteArrayInputStream(svg), svg.length, name);
+    }
+
+    private static SvgScan scan(InputStream in, long fileBytes, String svg)
+            throws IOException {
+        SvgScan scan = new SvgScan();
+        scan.fileBytes = fileBytes;
+
+        try {
+            XmlPullParser parser = new MXParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(in, null);
+
+            int event;
+            while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (event != XmlPullParser.START_TAG) {
+                    continue;
+                }
+
+                scan.elements++;
+                String name = parser.getName();
+                if (parser.getDepth() == 1) {
+                    scan.readRoot(parser);
+                } else if (name.startsWith("fe")) {
+                    scan.filterPrimitives++;
+                } else if (name.endsWith("Gradient")) {
+                    scan.gradients++;
+                } else if (name.equals("image") || name.equals("text")) {
+                    scan.imagesAndText++;
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Could not scan " + svg + ": "
+                    + e.getMessage(), e);
+        }
+
+        return scan;
+    }
+
+    private void readRoot(XmlPullParser parser) {
+        String viewBoxValue = parser.getAttributeValue(null, "viewBox");
+        if (viewBoxValue != null) {
+            String[] values = viewBoxValue.trim().split("[\\s,]+");
+            if (values.length == 4) {
+                try {
+                    viewBox = new float[4];
+                    for (int i = 0; i < 4; i++) {
+                        viewBox[i] = Float.parseFloat(values[i]);
+                    }
+                } catch (NumberFormatException e) {
+                    viewBox = null;
+                }
+            }
+        }
+
+        // Like Batik, a missing or relative size falls back to the viewBox
+        width = parseLength(parser.getAttributeValue(null, "width"));
+        height = parseLength(parser.getAttributeValue(null, "height"));
+        if (viewBox != null && viewBox[2] > 0 && viewBox[3] > 0) {
+            if (width <= 0 && height <= 0) {
+                width = viewBox[2];
+                height = viewBox[3];
+            } else if (width <= 0) {
+                width = height * viewBox[2] / viewBox[3];
+            } else if (height <= 0) {
+                height = width * viewBox[3] / viewBox[2];
+            }
+        }
+    }
+
+    /**
+     * @param value
+     *            an svg length, e.g. 16, 16px, 12.5 or 1in
+     * @return the length in pixels, 0 if it's missing, relative (a
+     *         percentage or font relative) or can't be parsed
+     */
+    static float parseLength(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        String length = value.trim();
+        float pixels = 1;
+        for (int i = 0; i < UNITS.length; i++) {
+            if (length.endsWith(UNITS[i])) {
+                length = length.substring(0, length.length() - 2).trim();
+                pixels = UNIT_PIXELS[i];
+                break;
+            }
+        }
+
+        try {
+            return Math.max(0, Float.parseFloat(length) * pixels);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param fallback
+     *            the size to use if the scan found none
+     * @return the width rounded to whole pixels
+     */
+    public int getPixelWidth(int fallback) {
+        return width > 0 ? Math.max(1, Math.round(width)) : fallback;
+    }
+
+    /**
+     * @param fallback
+     *            the size to use if the scan found none
+     * @return the height rounded to whole pixels
+     */
+    public int getPixelHeight(int fallback) {
+        return height > 0 ? Math.max(1, Math.round(height)) : fallback;
+    }
+}
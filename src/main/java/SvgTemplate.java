@@ -0,0 +1,178 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>An svg with <code>${token}</code> placeholders, e.g. for colors, that
+ * icons are generated from by filling in the placeholders.</p>
+ *
+ * <p>The template is split once into the literal text between the
+ * placeholders and the placeholders themselves, so filling it in is a
+ * single pass that appends each literal and each value in turn, rather than
+ * a search of the whole text for every token. A compiled template is never
+ * changed and can be filled in from any number of threads.</p>
+ */
+public class SvgTemplate {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The text before, between and after the placeholders. */
+    private final String[] literals;
+
+    /** For each placeholder, the index of its token. */
+    private final int[] slots;
+
+    /** The distinct tokens, in the order they first appear. */
+    private final List<String> tokens;
+
+    private final Map<String, Integer> tokenIndexes;
+
+    /** The length of all literals together. */
+    private final int literalLength;
+
+    private SvgTemplate(List<String> literals, List<Integer> slots,
+            List<String> tokens, Map<String, Integer> tokenIndexes) {
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.slots = new int[slots.size()];
+        for (int i = 0; i < this.slots.length; i++) {
+            this.slots[i] = slots.get(i);
+        }
+        this.tokens = Collections.unmodifiableList(tokens);
+        this.tokenIndexes = tokenIndexes;
+
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Reads and compiles a template file, encoded as UTF-8.
+     *
+     * @param file
+     * @return the template
+     * @throws IOException
+     */
+    public static SvgTemplate read(File file) throws IOException {
+        return compile(new String(Files.readAllBytes(file.toPath()), UTF8));
+    }
+
+    /**
+     * Splits a template into its literal text and placeholders. A
+     * <code>${</code> without a closing brace is literal text.
+     *
+     * @param text
+     * @return the template
+     */
+    public static SvgTemplate compile(String text) {
+        List<String> literals = new ArrayList<String>();
+        List<Integer> slots = new ArrayList<Integer>();
+        List<String> tokens = new ArrayList<String>();
+        Map<String, Integer> tokenIndexes = new HashMap<String, Integer>();
+
+        int start = 0;
+        int open;
+        while ((open = text.indexOf("${", start)) >= 0) {
+            int close = text.indexOf('}', open + 2);
+            if (close < 0) {
+                break;
+            }
+
+            String token = text.substring(open + 2, close);
+            Integer index = tokenIndexes.get(token);
+            if (index == null) {
+                index = tokens.size();
+                tokens.add(token);
+                tokenIndexes.put(token, index);
+            }
+
+            literals.add(text.substring(start, open));
+            slots.add(index);
+            start = close + 1;
+        }
+        literals.add(text.substring(start));
+
+        return new SvgTemplate(literals, slots, tokens, tokenIndexes);
+    }
+
+    /**
+     * @return the distinct tokens of the template, in the order they first
+     *         appear, the indexes of the values passed to fill and write
+     */
+    public List<String> getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @param token
+     * @return the index of the token's value, or -1 if the template doesn't
+     *         have it
+     */
+    public int indexOf(String token) {
+        Integer index = tokenIndexes.get(token);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Fills in the template.
+     *
+     * @param values
+     *            the value of each token, by the token's index, null leaves
+     *            the token's placeholders in
+     * @return the filled in text
+     */
+    public String fill(String[] values) {
+        int length = literalLength;
+        for (int slot : slots) {
+            length += value(values, slot).length();
+        }
+
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < slots.length; i++) {
+            builder.append(literals[i]).append(value(values, slots[i]));
+        }
+        builder.append(literals[slots.length]);
+        return builder.toString();
+    }
+
+    /**
+     * Fills in the template and encodes it as UTF-8.
+     *
+     * @param values
+     *            the value of each token, see {@link #fill(String[])}
+     * @return the filled in svg
+     */
+    public byte[] fillBytes(String[] values) {
+        return fill(values).getBytes(UTF8);
+    }
+
+    /**
+     * Writes the filled in template.
+     *
+     * @param out
+     *            the writer, left open
+     * @param values
+     *            the value of each token, see {@link #fill(String[])}
+     * @throws IOException
+     */
+    public void write(Writer out, String[] values) throws IOException {
+        for (int i = 0; i < slots.length; i++) {
+            out.write(literals[i]);
+            out.write(value(values, slots[i]));
+        }
+        out.write(literals[slots.length]);
+    }
+
+    private String value(String[] values, int index) {
+        String value = values[index];
+        return value != null ? value : "${" + tokens.get(index) + "}";
+    }
+}
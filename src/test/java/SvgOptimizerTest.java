@@ -0,0 +1,408 @@
+import java.awt.Shape;
+import java.awt.geom.PathIterator;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.batik.parser.AWTPathProducer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * <p>Tests of the path rounding, group simplification and gradient merging
+ * of {@link SvgOptimizer}, the rewrites of the shipped svgs most likely to
+ * get the svg grammar wrong.</p>
+ *
+ * <p>Runs without a test framework: every public method whose name starts
+ * with test is run, failures are printed and the exit code is the number of
+ * failed tests, see the test target in build.xml.</p>
+ */
+public class SvgOptimizerTest {
+
+    private static final String SVG_NS = "http://www.w3.org/2000/svg";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Rounds to two decimals, like the render's default. */
+    private final SvgOptimizer optimizer = new SvgOptimizer(2, 2);
+
+    // Path rounding
+
+    public void testImplicitLinesAfterMove() {
+        assertEquals("M 1.23,5.68 10.11,12.22 3,4",
+                optimizer.roundPath("M1.234 5.678 10.111 12.222 3 4"));
+        assertSameShape("M1.234 5.678 10.111 12.222 3 4",
+                optimizer.roundPath("M1.234 5.678 10.111 12.222 3 4"));
+    }
+
+    public void testImplicitRelativeLinesAfterRelativeMove() {
+        String path = "m1.001 1.001 2.004 0 0 2.004";
+        assertEquals("m 1,1 2,0 0,2", optimizer.roundPath(path));
+        assertSameShape(path, optimizer.roundPath(path));
+    }
+
+    public void testRepeatedCommandsWithoutLetters() {
+        String path = "M0 0C1 1 2 2 3 3 4 4 5 5 6 6Q7 7 8 8 9 9 10 10";
+        assertEquals(
+                "M 0,0 C 1,1 2,2 3,3 4,4 5,5 6,6 Q 7,7 8,8 9,9 10,10",
+                optimizer.roundPath(path));
+    }
+
+    public void testCompactNumbers() {
+        // A sign or a second decimal point starts the next number, and
+        // halves round to even
+        String path = "M.5.5L1-2.25.125-1e1";
+        assertEquals("M 0.5,0.5 L 1,-2.25 0.12,-10",
+                optimizer.roundPath(path));
+        assertSameShape(path, optimizer.roundPath(path));
+    }
+
+    public void testCompactArcFlags() {
+        // The flags need no separator, here 0, 0 and the end point .5,.5
+        assertEquals("M 0,0 a 1,1 0 0 0 0.5,0.5",
+                optimizer.roundPath("M0 0a1 1 0 00.5.5"));
+        assertEquals("M 0,0 a 1,1 0 1 1 0.5,0.5",
+                optimizer.roundPath("M0 0a1 1 0 11.5.5"));
+        assertEquals("M 0,0 A 1,1 0 1 0 2,2",
+                optimizer.roundPath("M0,0A1,1,0,1,0,2,2"));
+        assertSameShape("M0 0a1 1 0 00.5.5", optimizer
+                .roundPath("M0 0a1 1 0 00.5.5"));
+    }
+
+    public void testRepeatedArcs() {
+        String path = "M0 0a2 2 0 0 1 2 2 2 2 0 0 1-2 2";
+        assertEquals("M 0,0 a 2,2 0 0 1 2,2 2,2 0 0 1 -2,2",
+                optimizer.roundPath(path));
+        assertSameShape(path, optimizer.roundPath(path));
+    }
+
+    public void testRelativeChainDoesNotDrift() {
+        // Each coordinate is rounded against the rounded current point, so
+        // three thirds still end at 1, not 0.99
+        String path = "m0 0l0.333 0 0.333 0 0.333 0";
+        assertEquals("m 0,0 l 0.33,0 0.34,0 0.33,0",
+                optimizer.roundPath(path));
+
+        StringBuilder chain = new StringBuilder("m0.004 0.004");
+        for (int i = 0; i < 200; i++) {
+            chain.append(" l0.004 0.006");
+        }
+        assertSameShape(chain.toString(), optimizer.roundPath(chain
+                .toString()));
+    }
+
+    public void testRelativeHorizontalAndVertical() {
+        String path = "M1.004 1.004h1.333v1.333h-1.333v-1.333";
+        assertSameShape(path, optimizer.roundPath(path));
+    }
+
+    public void testSmoothCurves() {
+        String path = "M0 0c1.111 0 2.222 1.111 3.333 1.111s2.222-1.111 3.333-1.111"
+                + "q1.111 1.111 2.222 0t2.222 0T12.345 0";
+        assertSameShape(path, optimizer.roundPath(path));
+    }
+
+    public void testMoveAfterClose() {
+        // Closing returns to the start of the subpath, a relative move
+        // after it is relative to that start
+        String path = "M1.111 1.111l2 0 0 2zm1.555 1.555l1 0 0 1z";
+        assertSameShape(path, optimizer.roundPath(path));
+        assertEquals("M 1.11,1.11 l 2,0 0,2 z m 1.56,1.56 l 1,0 0,1 z",
+                optimizer.roundPath(path));
+    }
+
+    public void testCloseFollowedByLine() {
+        // A segment right after z starts from the subpath's start
+        String path = "M1.111 1.111l2 0 0 2zl1 1";
+        assertSameShape(path, optimizer.roundPath(path));
+    }
+
+    public void testZeroStaysZero() {
+        assertEquals("M 0.33,0.33 l 0,1 1,0",
+                optimizer.roundPath("M0.333 0.333l0 1 1 0"));
+    }
+
+    public void testInvalidPaths() {
+        assertThrows("1 1");
+        assertThrows("M1 1 L");
+        assertThrows("M0 0a1 1 0 2 0 1 1");
+        assertThrows("M0 0z 1 1");
+    }
+
+    public void testInvalidPathLeftAlone() throws Exception {
+        Document document = parse("<path d=\"M1.2345 1 L\"/>");
+        optimizer.optimize(document, true);
+        assertEquals("M1.2345 1 L", first(document, "path")
+                .getAttribute("d"));
+    }
+
+    // Groups
+
+    public void testTransformMovedOntoOnlyChild() throws Exception {
+        Document document = parse("<g transform=\"translate(1,2)\">"
+                + "<path d=\"M0 0h1\"/></g>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(0, count(document, "g"));
+        assertEquals("translate(1,2)", first(document, "path").getAttribute(
+                "transform"));
+    }
+
+    public void testTransformsConcatenatedParentFirst() throws Exception {
+        // rotate(90) then scale(2,1), the child's transform applies first
+        Document document = parse("<g transform=\"rotate(90)\">"
+                + "<rect width=\"1\" height=\"1\" transform=\"scale(2,1)\"/></g>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(0, count(document, "g"));
+        assertEquals("matrix(0,2,-1,0,0,0)", first(document, "rect")
+                .getAttribute("transform"));
+    }
+
+    public void testNestedGroupsMergedInnermostFirst() throws Exception {
+        Document document = parse("<g transform=\"translate(1,0)\">"
+                + "<g transform=\"translate(0,2)\">"
+                + "<path d=\"M0 0h1\" transform=\"scale(2)\"/></g></g>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(0, count(document, "g"));
+        assertEquals("matrix(2,0,0,2,1,2)", first(document, "path")
+                .getAttribute("transform"));
+    }
+
+    public void testCancellingTransformsRemoved() throws Exception {
+        Document document = parse("<g transform=\"translate(1,2)\">"
+                + "<path d=\"M0 0h1\" transform=\"translate(-1,-2)\"/></g>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(0, count(document, "g"));
+        assertFalse(first(document, "path").hasAttribute("transform"));
+    }
+
+    public void testGroupWithOtherAttributesKept() throws Exception {
+        // The fill is inherited by the child, so the group stays
+        Document document = parse("<g transform=\"translate(1,2)\" fill=\"red\">"
+                + "<path d=\"M0 0h1\"/></g>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(1, count(document, "g"));
+        assertFalse(first(document, "path").hasAttribute("transform"));
+    }
+
+    public void testGroupWithSeveralChildrenKept() throws Exception {
+        Document document = parse("<g transform=\"translate(1,2)\">"
+                + "<path d=\"M0 0h1\"/><path d=\"M0 1h1\"/></g>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(1, count(document, "g"));
+        assertEquals("translate(1,2)", first(document, "g").getAttribute(
+                "transform"));
+    }
+
+    public void testTransformNotMovedOntoOtherElements() throws Exception {
+        // A transform on a gradient or a stop isn't the same transform
+        Document document = parse("<g transform=\"scale(2)\">"
+                + "<linearGradient id=\"a\"/></g>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(1, count(document, "g"));
+    }
+
+    public void testIdentityTransformAndBareGroupsRemoved() throws Exception {
+        Document document = parse("<g transform=\"translate(0,0)\">"
+                + "<g><path d=\"M0 0h1\"/><path d=\"M0 1h1\"/></g></g>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(0, count(document, "g"));
+        assertEquals(2, count(document, "path"));
+    }
+
+    public void testEmptyGroupsRemovedUnlessReferenced() throws Exception {
+        Document document = parse("<g/><g id=\"target\"/>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(1, count(document, "g"));
+        assertEquals("target", first(document, "g").getAttribute("id"));
+    }
+
+    public void testGroupsInSwitchKept() throws Exception {
+        Document document = parse("<switch><g><path d=\"M0 0h1\"/></g>"
+                + "<g transform=\"scale(2)\"><path d=\"M0 0h1\"/></g></switch>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(2, count(document, "g"));
+    }
+
+    public void testUnparsableTransformKept() throws Exception {
+        Document document = parse("<g transform=\"skew(1)\">"
+                + "<path d=\"M0 0h1\"/></g>");
+        optimizer.simplifyGroups(document.getDocumentElement());
+        assertEquals(1, count(document, "g"));
+        assertEquals("skew(1)", first(document, "g").getAttribute(
+                "transform"));
+    }
+
+    // Gradients
+
+    public void testDuplicateGradientsMerged() throws Exception {
+        Document document = parse("<defs>"
+                + "<linearGradient id=\"a\"><stop offset=\"0\" stop-color=\"#fff\"/></linearGradient>"
+                + "<linearGradient id=\"b\"><stop offset=\"0\" stop-color=\"#fff\"/></linearGradient>"
+                + "<linearGradient id=\"c\"><stop offset=\"1\" stop-color=\"#fff\"/></linearGradient>"
+                + "</defs><path fill=\"url(#b)\" stroke=\"url('#c')\" d=\"M0 0h1\"/>"
+                + "<path style=\"fill:url(#b);stroke:url(#a)\" d=\"M0 0h1\"/>");
+        optimizer.mergeDuplicateGradients(document);
+        assertEquals(2, count(document, "linearGradient"));
+        NodeList paths = document.getElementsByTagNameNS(SVG_NS, "path");
+        assertEquals("url(#a)", ((Element) paths.item(0)).getAttribute("fill"));
+        assertEquals("url('#c')", ((Element) paths.item(0))
+                .getAttribute("stroke"));
+        assertEquals("fill:url(#a);stroke:url(#a)", ((Element) paths.item(1))
+                .getAttribute("style"));
+    }
+
+    public void testGradientChainsMerged() throws Exception {
+        // Inkscape's copies reference a copy of their stops, once those are
+        // merged the copies referencing them are duplicates too
+        Document document = parse("<defs>"
+                + "<linearGradient id=\"s1\"><stop offset=\"0\"/></linearGradient>"
+                + "<linearGradient id=\"s2\"><stop offset=\"0\"/></linearGradient>"
+                + "<linearGradient id=\"a\" xlink:href=\"#s1\" x2=\"1\"/>"
+                + "<linearGradient id=\"b\" xlink:href=\"#s2\" x2=\"1\"/>"
+                + "</defs><path fill=\"url(#b)\" d=\"M0 0h1\"/>");
+        optimizer.mergeDuplicateGradients(document);
+        assertEquals(2, count(document, "linearGradient"));
+        assertEquals("url(#a)", first(document, "path").getAttribute("fill"));
+    }
+
+    public void testDifferentGradientsKept() throws Exception {
+        Document document = parse("<defs>"
+                + "<radialGradient id=\"a\" r=\"1\"><stop offset=\"0\"/></radialGradient>"
+                + "<radialGradient id=\"b\" r=\"2\"><stop offset=\"0\"/></radialGradient>"
+                + "<linearGradient id=\"c\" r=\"1\"><stop offset=\"0\"/></linearGradient>"
+                + "</defs>");
+        optimizer.mergeDuplicateGradients(document);
+        assertEquals(2, count(document, "radialGradient"));
+        assertEquals(1, count(document, "linearGradient"));
+    }
+
+    // Helpers
+
+    private static Document parse(String content) throws Exception {
+        String svg = "<svg xmlns=\"" + SVG_NS + "\""
+                + " xmlns:xlink=\"http://www.w3.org/1999/xlink\""
+                + " width=\"16\" height=\"16\">" + content + "</svg>";
+        return SvgOptimizer.parse("test.svg", svg.getBytes(UTF8));
+    }
+
+    private static int count(Document document, String localName) {
+        return document.getElementsByTagNameNS(SVG_NS, localName).getLength();
+    }
+
+    private static Element first(Document document, String localName) {
+        return (Element) document.getElementsByTagNameNS(SVG_NS, localName)
+                .item(0);
+    }
+
+    private void assertThrows(String path) {
+        try {
+            String rounded = optimizer.roundPath(path);
+            throw new AssertionError("Expected \"" + path
+                    + "\" to be rejected, got \"" + rounded + "\"");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Checks that Batik draws both paths with the same segments, with every
+     * coordinate within the rounding of the other's.
+     */
+    private static void assertSameShape(String expected, String actual) {
+        List<double[]> expectedSegments = segments(expected);
+        List<double[]> actualSegments = segments(actual);
+        assertEquals(expectedSegments.size(), actualSegments.size());
+
+        // Half of the last decimal, and a little for the arcs' radii
+        double tolerance = 0.006;
+        for (int i = 0; i < expectedSegments.size(); i++) {
+            double[] a = expectedSegments.get(i);
+            double[] b = actualSegments.get(i);
+            assertEquals((int) a[0], (int) b[0]);
+            for (int j = 1; j < a.length; j++) {
+                if (Math.abs(a[j] - b[j]) > tolerance) {
+                    throw new AssertionError("Segment " + i + " of \""
+                            + actual + "\" moved by " + Math.abs(a[j] - b[j])
+                            + " from \"" + expected + "\"");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the type and coordinates of each segment Batik draws a path
+     *         with
+     */
+    private static List<double[]> segments(String path) {
+        Shape shape;
+        try {
+            shape = AWTPathProducer.createShape(new StringReader(path),
+                    PathIterator.WIND_NON_ZERO);
+        } catch (Exception e) {
+            throw new AssertionError("Batik can't read \"" + path + "\": "
+                    + e);
+        }
+
+        List<double[]> segments = new ArrayList<double[]>();
+        double[] coordinates = new double[6];
+        for (PathIterator i = shape.getPathIterator(null); !i.isDone(); i
+                .next()) {
+            int type = i.currentSegment(coordinates);
+            double[] segment = new double[7];
+            segment[0] = type;
+            System.arraycopy(coordinates, 0, segment, 1, 6);
+            if (type == PathIterator.SEG_CLOSE) {
+                // The coordinates of a close are left over from before
+                segment = new double[] { type };
+            }
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    private static void assertEquals(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError("Expected <" + expected + "> but was <"
+                    + actual + ">");
+        }
+    }
+
+    private static void assertFalse(boolean value) {
+        if (value) {
+            throw new AssertionError("Expected false");
+        }
+    }
+
+    /**
+     * Runs every test, exiting with the number that failed.
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int run = 0;
+        int failed = 0;
+        for (Method method : SvgOptimizerTest.class.getMethods()) {
+            if (!method.getName().startsWith("test")) {
+                continue;
+            }
+
+            run++;
+            try {
+                method.invoke(new SvgOptimizerTest());
+            } catch (InvocationTargetException e) {
+                failed++;
+                System.out.println("FAILED " + method.getName() + ": "
+                        + e.getCause());
+            }
+        }
+
+        System.out.println("SvgOptimizerTest: " + run + " tests, " + failed
+                + " failed");
+        System.exit(failed);
+    }
+}